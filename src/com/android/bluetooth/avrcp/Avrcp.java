@@ -67,8 +67,13 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import android.provider.MediaStore;
 import android.content.ContentResolver;
@@ -95,6 +100,12 @@ public final class Avrcp {
     private final AudioManager mAudioManager;
     private A2dpService mA2dpService;
     private AvrcpMessageHandler mHandler;
+    /* Per device lanes for browse commands, so a slow MediaStore browse for
+     * one remote does not hold up control commands and notifications */
+    private HandlerThread[] mBrowseThreads;
+    private AvrcpBrowseHandler[] mBrowseHandlers;
+    /* Set by doQuit, releases browse lanes waiting for the Avrcp handler */
+    private volatile boolean mQuitting;
     private MediaSessionManager mMediaSessionManager;
     private MediaSessionChangeListener mSessionChangeListener;
     private MediaController mMediaController;
@@ -108,6 +119,12 @@ public final class Avrcp {
     private int mPlayPosChangedNT;
     private long mSongLengthMs;
     private long mPlaybackIntervalMs;
+    private long mPlayPosTimerTicks;
+    private long mMetadataUpdates;
+    private long mMetadataUnchanged;
+    private long mElementAttrRspHits;
+    private long mElementAttrRspMisses;
+    private long mPlayPosNotificationsSent;
     private long mSkipStartTime;
     
     Resources mResources;
@@ -183,8 +200,13 @@ public final class Avrcp {
     private static final int KEY_STATE_RELEASE = 0;
     private static final int SKIP_PERIOD = 400;
     private static final int SKIP_DOUBLE_INTERVAL = 3000;
+    /* The play position timer may fire this much after the earliest deadline
+     * so that devices due shortly after it are served by the same wakeup */
+    private static final long PLAY_POS_TIMER_SLACK_MS = 100L;
     private static final long MAX_MULTIPLIER_VALUE = 128L;
     private static final int CMD_TIMEOUT_DELAY = 2000;
+    /* How often a browse lane waiting for the Avrcp handler checks for quit */
+    private static final long BROWSE_HANDOFF_CHECK_MS = 2000L;
     private static final int MAX_ERROR_RETRY_TIMES = 6;
     private static final int AVRCP_MAX_VOL = 127;
     private static final int AVRCP_BASE_VOLUME_STEP = 1;
@@ -197,19 +219,19 @@ public final class Avrcp {
     public static final int AVRC_ID_VOL_DOWN = 0x42;
     private boolean pts_test = false;
 
-    private final static int TYPE_MEDIA_PLAYER_ITEM = 0x01;
-    private final static int TYPE_FOLDER_ITEM = 0x02;
-    private final static int TYPE_MEDIA_ELEMENT_ITEM = 0x03;
+    final static int TYPE_MEDIA_PLAYER_ITEM = 0x01;
+    final static int TYPE_FOLDER_ITEM = 0x02;
+    final static int TYPE_MEDIA_ELEMENT_ITEM = 0x03;
 
     private final static int FOLDER_UP = 0x00;
     private final static int FOLDER_DOWN = 0x01;
 
-    private static final String PATH_INVALID = "invalid";
-    private static final String PATH_ROOT = "root";
-    private static final String PATH_TITLES = "titles";
-    private static final String PATH_ALBUMS = "albums";
-    private static final String PATH_ARTISTS = "artists";
-    private static final String PATH_PLAYLISTS = "playlists";
+    static final String PATH_INVALID = "invalid";
+    static final String PATH_ROOT = "root";
+    static final String PATH_TITLES = "titles";
+    static final String PATH_ALBUMS = "albums";
+    static final String PATH_ARTISTS = "artists";
+    static final String PATH_PLAYLISTS = "playlists";
 
     private final static long UID_TITLES = 0x01;
     private final static long UID_ALBUM = 0x02;
@@ -217,30 +239,32 @@ public final class Avrcp {
     private final static long UID_PLAYLIST = 0x04;
     private final static int NUM_ROOT_ELEMENTS = 0x04;
 
-    private static final int INTERNAL_ERROR = 0x03;
-    private static final int OPERATION_SUCCESSFUL = 0x04;
-    private static final int INVALID_DIRECTION = 0x07;
-    private static final int NOT_A_DIRECTORY = 0x08;
-    private static final int DOES_NOT_EXIST = 0x09;
-    private static final int INVALID_SCOPE = 0x0a;
-    private static final int RANGE_OUT_OF_BOUNDS = 0x0b;
-    private static final int UID_A_DIRECTORY = 0x0c;
-    private static final int MEDIA_IN_USE = 0x0d;
-    private static final int INVALID_PLAYER_ID = 0x11;
-    private static final int PLAYER_NOT_BROWSABLE = 0x12;
-    private static final int PLAYER_NOT_ADDRESSED = 0x13;
-
-    private static final int FOLDER_TYPE_MIXED = 0x00;
-    private static final int FOLDER_TYPE_TITLES = 0x01;
-    private static final int FOLDER_TYPE_ALBUMS = 0x02;
-    private static final int FOLDER_TYPE_ARTISTS = 0x03;
-    private static final int FOLDER_TYPE_GENRES = 0x04;
-    private static final int FOLDER_TYPE_PLAYLISTS = 0x05;
-
-    private static final int MEDIA_TYPE_AUDIO = 0X00;
-    private static final int MEDIA_TYPE_VIDEO = 0X01;
-
-    private static final int MAX_BROWSE_ITEM_TO_SEND = 10;
+    static final int INTERNAL_ERROR = 0x03;
+    static final int OPERATION_SUCCESSFUL = 0x04;
+    static final int INVALID_DIRECTION = 0x07;
+    static final int NOT_A_DIRECTORY = 0x08;
+    static final int DOES_NOT_EXIST = 0x09;
+    static final int INVALID_SCOPE = 0x0a;
+    static final int RANGE_OUT_OF_BOUNDS = 0x0b;
+    static final int UID_A_DIRECTORY = 0x0c;
+    static final int MEDIA_IN_USE = 0x0d;
+    static final int INVALID_PLAYER_ID = 0x11;
+    static final int PLAYER_NOT_BROWSABLE = 0x12;
+    static final int PLAYER_NOT_ADDRESSED = 0x13;
+
+    static final int FOLDER_TYPE_MIXED = 0x00;
+    static final int FOLDER_TYPE_TITLES = 0x01;
+    static final int FOLDER_TYPE_ALBUMS = 0x02;
+    static final int FOLDER_TYPE_ARTISTS = 0x03;
+    static final int FOLDER_TYPE_GENRES = 0x04;
+    static final int FOLDER_TYPE_PLAYLISTS = 0x05;
+
+    static final int MEDIA_TYPE_AUDIO = 0X00;
+    static final int MEDIA_TYPE_VIDEO = 0X01;
+
+    static final int MAX_BROWSE_ITEM_TO_SEND = 10;
+    /* Number of upcoming now playing tracks whose cover art is prefetched */
+    private static final int COVER_ART_PREFETCH_TRACKS = 5;
     private static final int MAX_ATTRIB_COUNT = 0x08;
 
     private final static int ALBUMS_ITEM_INDEX = 0;
@@ -255,6 +279,10 @@ public final class Avrcp {
            "org.codeaurora.music.playersettingsresponse";
     // Max number of Avrcp connections at any time
     private int maxAvrcpConnections = 1;
+    /* Address of each connected device -> its deviceFeatures index. Updated
+     * through setCurrentDevice, read without locking from any thread */
+    private final ConcurrentHashMap<String, Integer> mDeviceIndexMap =
+            new ConcurrentHashMap<String, Integer>();
     BluetoothDevice mBrowserDevice = null;
     private static final int INVALID_DEVICE_INDEX = 0xFF;
     // codes for reset of of notifications
@@ -267,7 +295,7 @@ public final class Avrcp {
     private static final int INVALID_ADDRESSED_PLAYER_ID = -1;
     // Device dependent registered Notification & Variables
     private class DeviceDependentFeature {
-        private BluetoothDevice mCurrentDevice;
+        private volatile BluetoothDevice mCurrentDevice;
         private PlaybackState mCurrentPlayState;
         private int mPlayStatusChangedNT;
         private int mPlayerStatusChangeNT;
@@ -276,6 +304,7 @@ public final class Avrcp {
         private long mPrevPosMs;
         private long mPlaybackIntervalMs;
         private long mLastReportedPosition;
+        private long mPlayPosDueMs;
         private int mPlayPosChangedNT;
         private int mFeatures;
         private int mAbsoluteVolume;
@@ -289,9 +318,10 @@ public final class Avrcp {
         private int mAvailablePlayersChangedNT;
         private int mNowPlayingContentChangedNT;
         private String mRequestedAddressedPlayerPackageName;
-        private String mCurrentPath;
-        private String mCurrentPathUid;
-        private Uri mMediaUri;
+        /* Browse state, also read and written on the device browse lane */
+        private volatile String mCurrentPath;
+        private volatile String mCurrentPathUid;
+        private volatile Uri mMediaUri;
         private boolean isMusicAppResponsePending;
         private boolean isBrowsingSupported;
         private boolean isAbsoluteVolumeSupportingDevice;
@@ -306,6 +336,8 @@ public final class Avrcp {
         private int mLastLocalVolume;
         private int mAbsVolThreshold;
         private HashMap<Integer, Integer> mVolumeMapping;
+        private AvrcpNowPlayingEntries mNowPlayingEntries;
+        private final CommandLatency mCommandLatency = new CommandLatency();
 
         public DeviceDependentFeature() {
             mCurrentDevice = null;
@@ -317,6 +349,7 @@ public final class Avrcp {
             mPrevPosMs = -1;
             mPlaybackIntervalMs = 0L;
             mLastReportedPosition = -1;
+            mPlayPosDueMs = -1;
             mPlayPosChangedNT = NOTIFICATION_TYPE_CHANGED;
             mFeatures = 0;
             mAbsoluteVolume = -1;
@@ -333,6 +366,7 @@ public final class Avrcp {
             mCurrentPath = PATH_INVALID;
             mCurrentPathUid = null;
             mMediaUri = Uri.EMPTY;
+            mNowPlayingEntries = new AvrcpNowPlayingEntries();
             isMusicAppResponsePending = false;
             isBrowsingSupported = false;
             isAbsoluteVolumeSupportingDevice = false;
@@ -401,6 +435,8 @@ public final class Avrcp {
     public static final int NUMPLAYER_ATTRIBUTE = 2;
 
     private static AvrcpBipRsp mAvrcpBipRsp;
+    private AvrcpMediaLibrary mMediaLibrary;
+    private AvrcpBrowseCommands mBrowseCommands;
 
     private byte [] def_attrib = new byte [] {ATTRIBUTE_REPEATMODE, ATTRIBUTE_SHUFFLEMODE};
     private byte [] value_repmode = new byte [] { VALUE_REPEATMODE_OFF,
@@ -448,6 +484,14 @@ public final class Avrcp {
         mAudioStreamMax = mAudioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC);
         mVolumeStep = Math.max(AVRCP_BASE_VOLUME_STEP, AVRCP_MAX_VOL/mAudioStreamMax);
         mAvrcpBipRsp = new AvrcpBipRsp(mContext);
+        mMediaLibrary = new AvrcpMediaLibrary(mContext, new AvrcpMediaLibrary.Listener() {
+            @Override
+            public void onLibraryRebuilt(AvrcpMediaLibrary.Snapshot snapshot) {
+                mAvrcpBipRsp.pruneImgHandles();
+            }
+        });
+        mBrowseCommands = new AvrcpBrowseCommands(mContext.getContentResolver(), mMediaLibrary,
+                mAvrcpBipRsp);
         pts_test = SystemProperties.getBoolean("bt.avrcpct-passthrough.pts", false);
     }
 
@@ -458,6 +502,13 @@ public final class Avrcp {
         thread.start();
         Looper looper = thread.getLooper();
         mHandler = new AvrcpMessageHandler(looper);
+        mBrowseThreads = new HandlerThread[maxAvrcpConnections];
+        mBrowseHandlers = new AvrcpBrowseHandler[maxAvrcpConnections];
+        for (int i = 0; i < maxAvrcpConnections; i++) {
+            mBrowseThreads[i] = new HandlerThread("BluetoothAvrcpBrowse" + i);
+            mBrowseThreads[i].start();
+            mBrowseHandlers[i] = new AvrcpBrowseHandler(mBrowseThreads[i].getLooper());
+        }
         registerMediaPlayers();
         mSessionChangeListener = new MediaSessionChangeListener();
         mMediaSessionManager.addOnActiveSessionsChangedListener(mSessionChangeListener, null, mHandler);
@@ -492,6 +543,7 @@ public final class Avrcp {
             Log.e(TAG,"Unable to register Avrcp receiver", e);
         }
         mAvrcpBipRsp.start();
+        mMediaLibrary.start();
     }
 
     //Listen to intents from MediaPlayer and Audio Manager and update data structures
@@ -749,17 +801,23 @@ public final class Avrcp {
     public void doQuit() {
         if (DEBUG)
             Log.v(TAG, "doQuit");
+        mQuitting = true;
         mHandler.removeCallbacksAndMessages(null);
         Looper looper = mHandler.getLooper();
         if (looper != null) {
             looper.quit();
         }
+        for (int i = 0; i < maxAvrcpConnections; i++) {
+            mBrowseHandlers[i].removeCallbacksAndMessages(null);
+            mBrowseThreads[i].quit();
+        }
         mMediaSessionManager.removeOnActiveSessionsChangedListener(mSessionChangeListener);
         clearDeviceDependentFeature();
         for (int i = 0; i < maxAvrcpConnections; i++) {
             cleanupDeviceFeaturesIndex(i);
         }
         mAvrcpBipRsp.stop();
+        mMediaLibrary.stop();
         try {
             mContext.unregisterReceiver(mIntentReceiver);
         } catch (Exception e) {
@@ -923,6 +981,12 @@ public final class Avrcp {
 
         @Override
         public void handleMessage(Message msg) {
+            long startMs = SystemClock.uptimeMillis();
+            processMessage(msg);
+            recordCommandLatency(msg, startMs);
+        }
+
+        private void processMessage(Message msg) {
             int deviceIndex  = INVALID_DEVICE_INDEX;
             switch (msg.what) {
                 case MESSAGE_PLAYERSETTINGS_TIMEOUT:
@@ -1130,14 +1194,10 @@ public final class Avrcp {
                 ArrayList<Integer> attrList = itemAttr.mAttrList;
                 if (DEBUG)
                     Log.v(TAG, "MESSAGE_GET_ELEM_ATTRS:numAttr=" + numAttr);
-                attrIds = new int[numAttr];
-                textArray = new String[numAttr];
-                for (int i = 0; i < numAttr; ++i) {
-                    attrIds[i] = attrList.get(i).intValue();
-                    textArray[i] = mMediaAttributes.getString(attrIds[i]);
-                    Log.v(TAG, "getAttributeString:attrId=" + attrIds[i] +
-                               " str=" + textArray[i]);
-                }
+                ElementAttrRsp elementAttrRsp = mMediaAttributes.getElementAttrRsp(
+                        numAttr == attrList.size() ? attrList : attrList.subList(0, numAttr));
+                attrIds = elementAttrRsp.mAttrIds;
+                textArray = elementAttrRsp.mTextArray;
                 getElementAttrRspNative(numAttr ,attrIds ,textArray ,
                         getByteAddress(mAdapter.getRemoteDevice(itemAttr.mAddress)));
                 break;
@@ -1152,13 +1212,8 @@ public final class Avrcp {
             case MESSAGE_PLAY_INTERVAL_TIMEOUT:
                 if (DEBUG)
                     Log.v(TAG, "MESSAGE_PLAY_INTERVAL_TIMEOUT");
-                Log.v(TAG, "event for device address " + (BluetoothDevice)msg.obj);
-                deviceIndex = getIndexForDevice((BluetoothDevice) msg.obj);
-                if (deviceIndex == INVALID_DEVICE_INDEX) {
-                    Log.e(TAG,"invalid index for device");
-                    break;
-                }
-                sendPlayPosNotificationRsp(false, deviceIndex);
+                mPlayPosTimerTicks++;
+                updatePlayPosNotifications();
                 break;
 
             case MESSAGE_SET_ADDR_PLAYER_REQ_TIMEOUT:
@@ -1553,14 +1608,102 @@ public final class Avrcp {
             case MESSAGE_SET_BROWSED_PLAYER:
                 processSetBrowsedPlayer(msg.arg1, (String) msg.obj);
                 break;
-            case MESSAGE_CHANGE_PATH:
-                itemAttr = (ItemAttr)msg.obj;
-                processChangePath(msg.arg1, itemAttr.mUid, itemAttr.mAddress);
-                break;
             case MESSAGE_PLAY_ITEM:
                 itemAttr = (ItemAttr)msg.obj;
                 processPlayItem(msg.arg1, itemAttr.mUid, itemAttr.mAddress);
                 break;
+            case MESSAGE_CHANGE_PATH:
+            case MESSAGE_GET_ITEM_ATTRS:
+            case MESSAGE_GET_FOLDER_ITEMS:
+            case MESSAGE_GET_TOTAL_NUMBER_OF_ITEMS:
+                processBrowseMessage(msg);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Handles all browse commands of one device in the order they arrived,
+     * see getBrowseHandler. MediaStore backed commands run on the lane, the
+     * others are handed to the Avrcp handler and the lane waits for them.
+     */
+    private final class AvrcpBrowseHandler extends Handler {
+        private AvrcpBrowseHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            long startMs = SystemClock.uptimeMillis();
+            if (isBrowseLaneMessage(msg)) {
+                processBrowseMessage(msg);
+            } else {
+                runOnAvrcpHandler(msg);
+            }
+            recordCommandLatency(msg, startMs);
+        }
+    }
+
+    /* Browse commands that only touch MediaStore and per-device browse state */
+    private static boolean isBrowseLaneMessage(Message msg) {
+        switch (msg.what) {
+            case MESSAGE_CHANGE_PATH:
+                return true;
+            case MESSAGE_GET_ITEM_ATTRS:
+                return msg.arg2 == SCOPE_VIRTUAL_FILE_SYS || msg.arg2 == SCOPE_NOW_PLAYING;
+            case MESSAGE_GET_FOLDER_ITEMS:
+                return ((FolderListEntries) msg.obj).mScope == SCOPE_VIRTUAL_FILE_SYS;
+            case MESSAGE_GET_TOTAL_NUMBER_OF_ITEMS:
+                return msg.arg1 == SCOPE_VIRTUAL_FILE_SYS;
+            default:
+                return false;
+        }
+    }
+
+    /* Runs a browse command of the lane on the Avrcp handler and waits for it
+     * to be handled, so the next command of the device sees its result. The
+     * Avrcp handler never waits for a lane, so only quitting ends the wait. */
+    private void runOnAvrcpHandler(Message msg) {
+        final AvrcpMessageHandler handler = mHandler;
+        /* The lane's looper recycles msg once this returns, even when quitting */
+        final Message copy = Message.obtain(msg);
+        final CountDownLatch done = new CountDownLatch(1);
+        if (handler == null || !handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handler.processMessage(copy);
+                } finally {
+                    done.countDown();
+                }
+            }
+        })) {
+            return;
+        }
+        try {
+            while (!done.await(BROWSE_HANDOFF_CHECK_MS, TimeUnit.MILLISECONDS)) {
+                if (mQuitting) {
+                    Log.w(TAG, "runOnAvrcpHandler: quit while waiting on msg " + msg.what);
+                    return;
+                }
+                Log.w(TAG, "runOnAvrcpHandler: still waiting on msg " + msg.what);
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "runOnAvrcpHandler: interrupted on msg " + msg.what);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* Runs on the device browse lane for MediaStore backed scopes, on the
+     * Avrcp handler otherwise */
+    private void processBrowseMessage(Message msg) {
+        ItemAttr itemAttr;
+        int[] attrIds;
+        switch (msg.what) {
+            case MESSAGE_CHANGE_PATH:
+                itemAttr = (ItemAttr)msg.obj;
+                processChangePath(msg.arg1, itemAttr.mUid, itemAttr.mAddress);
+                break;
             case MESSAGE_GET_ITEM_ATTRS:
                 itemAttr = (ItemAttr)msg.obj;
                 attrIds = new int[msg.arg1];
@@ -1583,6 +1726,80 @@ public final class Avrcp {
             case MESSAGE_GET_TOTAL_NUMBER_OF_ITEMS:
                 processGetTotalNumberOfItems((byte)msg.arg1, (String) msg.obj);
                 break;
+        }
+    }
+
+    /* Browse lane of the device at address, the Avrcp handler if the device
+     * is not connected */
+    private Handler getBrowseHandler(String address) {
+        int deviceIndex = getIndexForAddress(address);
+        if (deviceIndex == INVALID_DEVICE_INDEX || mBrowseHandlers == null)
+            return mHandler;
+        return mBrowseHandlers[deviceIndex];
+    }
+
+    /* Address of the remote a message is for, or null for global messages */
+    private String getMessageAddress(Message msg) {
+        Object obj = msg.obj;
+        if (obj instanceof ItemAttr)
+            return ((ItemAttr) obj).mAddress;
+        if (obj instanceof FolderListEntries)
+            return ((FolderListEntries) obj).mAddress;
+        if (obj instanceof BluetoothDevice)
+            return ((BluetoothDevice) obj).getAddress();
+        if (obj instanceof String && BluetoothAdapter.checkBluetoothAddress((String) obj))
+            return (String) obj;
+        return null;
+    }
+
+    private void recordCommandLatency(Message msg, long startMs) {
+        String address = getMessageAddress(msg);
+        if (address == null)
+            return;
+        int deviceIndex = getIndexForAddress(address);
+        if (deviceIndex == INVALID_DEVICE_INDEX)
+            return;
+        long nowMs = SystemClock.uptimeMillis();
+        deviceFeatures[deviceIndex].mCommandLatency.record(msg.what,
+                Math.max(0, startMs - msg.getWhen()), nowMs - startMs);
+    }
+
+    /* Per message type latency of the commands of one remote: time spent
+     * queued behind other messages and time spent handling it, with a
+     * histogram of the two together. Recorded from the Avrcp handler and the
+     * browse lane */
+    class CommandLatency {
+        private final HashMap<Integer, Stats> mStats = new HashMap<Integer, Stats>();
+
+        private class Stats {
+            private long mQueuedMs;
+            private long mHandledMs;
+            private final AvrcpLatencyHistogram mTotal = new AvrcpLatencyHistogram();
+        }
+
+        synchronized void record(int what, long queuedMs, long handledMs) {
+            Stats stats = mStats.get(what);
+            if (stats == null) {
+                stats = new Stats();
+                mStats.put(what, stats);
+            }
+            stats.mQueuedMs += queuedMs;
+            stats.mHandledMs += handledMs;
+            stats.mTotal.record(queuedMs + handledMs);
+        }
+
+        synchronized void clear() {
+            mStats.clear();
+        }
+
+        synchronized void dump(StringBuilder sb) {
+            for (Map.Entry<Integer, Stats> entry : mStats.entrySet()) {
+                Stats stats = entry.getValue();
+                long count = stats.mTotal.getCount();
+                ProfileService.println(sb, "  msg " + entry.getKey() + ": " + count +
+                        " cmds, avg queued " + (stats.mQueuedMs / count) + "ms, avg handling " +
+                        (stats.mHandledMs / count) + "ms, max " + stats.mTotal.getMax() + "ms");
+                ProfileService.println(sb, "    latency " + stats.mTotal);
             }
         }
     }
@@ -1678,7 +1895,8 @@ public final class Avrcp {
                     NOTIFICATION_TYPE_REJECT;
             registerNotificationRspPlayPosNative(deviceFeatures[index].mPlayPosChangedNT,
                     -1 ,getByteAddress(device));
-            mHandler.removeMessages(MESSAGE_PLAY_INTERVAL_TIMEOUT);
+            deviceFeatures[index].mPlayPosDueMs = -1;
+            schedulePlayPosTimer(SystemClock.elapsedRealtime());
         } else {
             Log.v(TAG,"index " + index + " status is"+
                     deviceFeatures[index].mPlayPosChangedNT);
@@ -1761,9 +1979,7 @@ public final class Avrcp {
             }
         }
 
-        for (int deviceIndex = 0; deviceIndex < maxAvrcpConnections; deviceIndex++) {
-            sendPlayPosNotificationRsp(false, deviceIndex);
-        }
+        updatePlayPosNotifications();
     }
 
     private boolean isPlayStateToBeUpdated(int deviceIndex) {
@@ -1893,7 +2109,8 @@ public final class Avrcp {
                         registerNotificationRspPlayPosNative(
                                 deviceFeatures[i].mPlayPosChangedNT,
                                 -1 ,getByteAddress(deviceFeatures[i].mCurrentDevice));
-                        mHandler.removeMessages(MESSAGE_PLAY_INTERVAL_TIMEOUT);
+                        deviceFeatures[i].mPlayPosDueMs = -1;
+                        schedulePlayPosTimer(SystemClock.elapsedRealtime());
                     } else {
                         Log.v(TAG,"i " + i + " status is"+
                             deviceFeatures[i].mPlayPosChangedNT);
@@ -1903,23 +2120,11 @@ public final class Avrcp {
                 case TRACK_CHANGE_NOTIFICATION:
                     if (deviceFeatures[i].mTrackChangedNT ==
                             NOTIFICATION_TYPE_INTERIM) {
-                            long TrackNumberRsp = -1L;
-                            try {
-                                TrackNumberRsp = Long.parseLong(mMediaAttributes.getString
-                                    (MediaAttributes.ATTR_MEDIA_NUMBER));
-                            } catch (Exception e) {
-                                Log.e(TAG, "sendTrackChangedRsp Exception e" + e);
-                                TrackNumberRsp = -1L;
-                            }
                             if (DEBUG)
                             Log.v(TAG, "send Track Changed reject to stack");
                             deviceFeatures[i].mTrackChangedNT =
                                 NOTIFICATION_TYPE_REJECT;
-                            byte[] track = new byte[TRACK_ID_SIZE];
-                            /* track is stored in big endian format */
-                            for (int j = 0; j < TRACK_ID_SIZE; ++j) {
-                             track[j] = (byte) (TrackNumberRsp >> (56 - 8 * j));
-                            }
+                            byte[] track = mMediaAttributes.getTrackId();
                             registerNotificationRspTrackChangeNative(
                                  deviceFeatures[i].mTrackChangedNT ,
                                  track ,getByteAddress(deviceFeatures[i].mCurrentDevice));
@@ -1991,6 +2196,7 @@ public final class Avrcp {
         deviceFeatures[deviceIndex].mCurrentPathUid = null;
         deviceFeatures[deviceIndex].mMediaUri = mMediaUriStatic;
         mMediaUriStatic = null;
+        mBrowseCommands.invalidateItemAttrs();
 
         setBrowsedPlayerRspNative((byte)status, 0x0, numOfItems, 0x0, CHAR_SET_UTF8,
                                    folderNames, getByteAddress(device));
@@ -1998,6 +2204,7 @@ public final class Avrcp {
 
     void updateNowPlayingContentChanged() {
         Log.v(TAG, "updateNowPlayingContentChanged");
+        mBrowseCommands.invalidateItemAttrs();
         for (int i = 0; i < maxAvrcpConnections; i++) {
             if (deviceFeatures[i].mNowPlayingContentChangedNT ==
                     NOTIFICATION_TYPE_INTERIM) {
@@ -2039,7 +2246,6 @@ public final class Avrcp {
         int numItems = 0;
         long reqItems = (mCachedRequest.mEnd - mCachedRequest.mStart) + 1;
         long availableItems = 0;
-        Cursor cursor = null;
         int[] itemType = new int[MAX_BROWSE_ITEM_TO_SEND];
         long[] uid = new long[MAX_BROWSE_ITEM_TO_SEND];
         int[] type = new int[MAX_BROWSE_ITEM_TO_SEND];
@@ -2104,43 +2310,34 @@ public final class Avrcp {
             reqItems = availableItems;
         Log.i(TAG, "reqItems: " + reqItems);
 
+        AvrcpNowPlayingEntries entries = deviceFeatures[deviceIndex].mNowPlayingEntries;
+        entries.update(mContext.getContentResolver(), deviceFeatures[deviceIndex].mMediaUri,
+                mMediaLibrary.getGeneration(),
+                mMediaLibrary.getSnapshot(deviceFeatures[deviceIndex].mMediaUri), playList);
+        prefetchCoverArt(entries);
+
         for (index = 0; index < reqItems; index++) {
-            try {
-                cursor = mContext.getContentResolver().query(
-                     deviceFeatures[deviceIndex].mMediaUri, mCursorCols,
-                     MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id=" +
-                         playList[index + (int)mCachedRequest.mStart], null, null);
-                if (cursor != null) {
-                    int validAttrib = 0;
-                    cursor.moveToFirst();
-                    itemType[index] = TYPE_MEDIA_ELEMENT_ITEM;
-                    uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
-                    type[index] = MEDIA_TYPE_AUDIO;
-                    playable[index] = 0;
-                    displayName[index] = cursor.getString(cursor.getColumnIndexOrThrow(
-                                                            MediaStore.Audio.Media.TITLE));
-                    for (int attIndex = 0; attIndex < mCachedRequest.mAttrCnt; attIndex++) {
-                        int attr = mCachedRequest.mAttrList.get(attIndex).intValue();
-                        if ((attr <= MEDIA_ATTR_MAX) && (attr >= MEDIA_ATTR_MIN)) {
-                            attValues[(8 * index) + attIndex] = getAttributeStringFromCursor(
-                                    cursor, attr, deviceIndex);
-                            attIds[(8 * index) + attIndex] = attr;
-                            validAttrib ++;
-                        }
+            int position = index + (int)mCachedRequest.mStart;
+            AvrcpMediaLibrary.Track track = entries.getTrack(position);
+            int validAttrib = 0;
+            itemType[index] = TYPE_MEDIA_ELEMENT_ITEM;
+            uid[index] = entries.getUid(position);
+            type[index] = MEDIA_TYPE_AUDIO;
+            playable[index] = 0;
+            displayName[index] = (track != null) ? track.title : "";
+            for (int attIndex = 0; attIndex < mCachedRequest.mAttrCnt; attIndex++) {
+                int attr = mCachedRequest.mAttrList.get(attIndex).intValue();
+                if ((attr <= MEDIA_ATTR_MAX) && (attr >= MEDIA_ATTR_MIN)) {
+                    if (track != null) {
+                        attValues[(8 * index) + attIndex] =
+                                mBrowseCommands.getAttributeStringFromTrack(
+                                        track, track.id, entries.size(), attr);
                     }
-                    numAtt[index] = (byte)validAttrib;
-                }
-            } catch(Exception e) {
-                Log.i(TAG, "Exception e"+ e);
-                getFolderItemsRspNative((byte)INTERNAL_ERROR ,
-                        numItems, itemType, uid, type,
-                        playable, displayName, numAtt, attValues, attIds, mCachedRequest.mSize,
-                        getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
+                    attIds[(8 * index) + attIndex] = attr;
+                    validAttrib ++;
                 }
             }
+            numAtt[index] = (byte)validAttrib;
         }
         numItems = index;
         getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL ,
@@ -2149,6 +2346,38 @@ public final class Avrcp {
                 getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
     }
 
+    /* Ask the BIP responder to prepare the thumbnails of the tracks following
+     * the current one in the now playing list, so the remote finds them ready
+     * on the next track change */
+    private void prefetchCoverArt(AvrcpNowPlayingEntries entries) {
+        int size = entries.size();
+        if (size == 0)
+            return;
+
+        int current = -1;
+        if (mMediaAttributes.exists) {
+            for (int i = 0; i < size; i++) {
+                AvrcpMediaLibrary.Track track = entries.getTrack(i);
+                if (track != null && mMediaAttributes.title.equals(track.title) &&
+                        mMediaAttributes.albumName.equals(track.album)) {
+                    current = i;
+                    break;
+                }
+            }
+        }
+
+        ArrayList<String> albums = new ArrayList<String>();
+        int end = Math.min(size, current + 1 + COVER_ART_PREFETCH_TRACKS);
+        for (int i = current + 1; i < end; i++) {
+            AvrcpMediaLibrary.Track track = entries.getTrack(i);
+            if (track != null && track.album != null && !albums.contains(track.album))
+                albums.add(track.album);
+        }
+        if (DEBUG) Log.v(TAG, "prefetchCoverArt: current = " + current + " albums = " + albums);
+        if (!albums.isEmpty())
+            mAvrcpBipRsp.prefetchImgThumbs(albums);
+    }
+
     class CachedRequest {
         long mStart;
         long mEnd;
@@ -2205,6 +2434,10 @@ public final class Avrcp {
         private String playingTimeMs;
         private String coverArt;
         private String tracknum;
+        private long mediaNumberValue;
+        private long mediaTotalNumberValue;
+        private long playingTimeMsValue;
+        private byte[] trackId;
 
         private static final int ATTR_TITLE = 1;
         private static final int ATTR_ARTIST_NAME = 2;
@@ -2215,6 +2448,17 @@ public final class Avrcp {
         private static final int ATTR_PLAYING_TIME_MS = 7;
         private static final int ATTR_COVER_ART = 8;
 
+        private static final int ALL_ATTRS_MASK = (1 << (ATTR_COVER_ART + 1)) - 2;
+        /* Attributes prefetchCoverArt matches the now playing list by */
+        private static final int NOW_PLAYING_MATCH_MASK =
+                (1 << ATTR_TITLE) | (1 << ATTR_ALBUM_NAME);
+        private static final int MAX_ELEMENT_ATTR_RSPS = 4;
+
+        /* Encoded getElementAttrRspNative arrays of this track by requested
+         * attribute list. A metadata change replaces this object, and with
+         * it the cache. */
+        private final HashMap<List<Integer>, ElementAttrRsp> mElementAttrRsps =
+                new HashMap<List<Integer>, ElementAttrRsp>();
 
         public MediaAttributes(MediaMetadata data) {
             exists = data != null;
@@ -2223,14 +2467,20 @@ public final class Avrcp {
 
             artistName = stringOrBlank(data.getString(MediaMetadata.METADATA_KEY_ARTIST));
             albumName = stringOrBlank(data.getString(MediaMetadata.METADATA_KEY_ALBUM));
-            mediaNumber = longStringOrBlank(data.getLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER));
-            mediaTotalNumber = longStringOrBlank(data.getLong(MediaMetadata.METADATA_KEY_NUM_TRACKS));
+            mediaNumberValue = data.getLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER);
+            mediaNumber = Long.toString(mediaNumberValue);
+            mediaTotalNumberValue = data.getLong(MediaMetadata.METADATA_KEY_NUM_TRACKS);
+            mediaTotalNumber = Long.toString(mediaTotalNumberValue);
             genre = stringOrBlank(data.getString(MediaMetadata.METADATA_KEY_GENRE));
-            playingTimeMs = longStringOrBlank(data.getLong(MediaMetadata.METADATA_KEY_DURATION));
+            playingTimeMsValue = data.getLong(MediaMetadata.METADATA_KEY_DURATION);
+            playingTimeMs = Long.toString(playingTimeMsValue);
             tracknum = longStringOrBlank(data.getLong(MediaMetadata.METADATA_KEY_DISC_NUMBER));
+            title = getTitle(data);
+        }
 
+        private String getTitle(MediaMetadata data) {
             // Try harder for the title.
-            title = data.getString(MediaMetadata.METADATA_KEY_TITLE);
+            String title = data.getString(MediaMetadata.METADATA_KEY_TITLE);
 
             if (title == null) {
                 MediaDescription desc = data.getDescription();
@@ -2243,26 +2493,80 @@ public final class Avrcp {
 
             if (title == null)
                 title = new String();
-       }
-
-        public boolean equals(MediaAttributes other) {
-            if (other == null)
-                return false;
+            return title;
+        }
 
-            if (exists != other.exists)
-                return false;
+        /**
+         * Returns the attributes that differ between this track and |data| as
+         * a mask of (1 << ATTR_*), comparing raw values so that an unchanged
+         * callback builds no strings. The cover art handle is derived from
+         * the album and is not compared.
+         */
+        public int diff(MediaMetadata data) {
+            if (exists != (data != null))
+                return ALL_ATTRS_MASK;
 
             if (exists == false)
-                return true;
+                return 0;
 
-            return ((title.equals(other.title)) &&
-                (artistName.equals(other.artistName)) &&
-                (albumName.equals(other.albumName)) &&
-                (mediaNumber.equals(other.mediaNumber)) &&
-                (mediaTotalNumber.equals(other.mediaTotalNumber)) &&
-                (genre.equals(other.genre)) &&
-                (playingTimeMs.equals(other.playingTimeMs)) &&
-                (coverArt == null?true:(coverArt.equals(other.coverArt))));
+            int changed = 0;
+            if (!title.equals(getTitle(data)))
+                changed |= 1 << ATTR_TITLE;
+            if (!artistName.equals(stringOrBlank(
+                    data.getString(MediaMetadata.METADATA_KEY_ARTIST))))
+                changed |= 1 << ATTR_ARTIST_NAME;
+            if (!albumName.equals(stringOrBlank(
+                    data.getString(MediaMetadata.METADATA_KEY_ALBUM))))
+                changed |= 1 << ATTR_ALBUM_NAME;
+            if (mediaNumberValue != data.getLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER))
+                changed |= 1 << ATTR_MEDIA_NUMBER;
+            if (mediaTotalNumberValue != data.getLong(MediaMetadata.METADATA_KEY_NUM_TRACKS))
+                changed |= 1 << ATTR_MEDIA_TOTAL_NUMBER;
+            if (!genre.equals(stringOrBlank(
+                    data.getString(MediaMetadata.METADATA_KEY_GENRE))))
+                changed |= 1 << ATTR_GENRE;
+            if (playingTimeMsValue != data.getLong(MediaMetadata.METADATA_KEY_DURATION))
+                changed |= 1 << ATTR_PLAYING_TIME_MS;
+            return changed;
+        }
+
+        /* Track id of the track changed notification, big endian */
+        public byte[] getTrackId() {
+            if (trackId == null) {
+                long trackNumber = exists ? mediaNumberValue : -1L;
+                trackId = new byte[TRACK_ID_SIZE];
+                for (int i = 0; i < TRACK_ID_SIZE; ++i) {
+                    trackId[i] = (byte) (trackNumber >> (56 - 8 * i));
+                }
+            }
+            return trackId;
+        }
+
+        public ElementAttrRsp getElementAttrRsp(List<Integer> attrList) {
+            ElementAttrRsp rsp = mElementAttrRsps.get(attrList);
+            if (rsp != null) {
+                mElementAttrRspHits++;
+                // The handle changes as BIP connects and disconnects.
+                if (rsp.mCoverArtIndex >= 0)
+                    rsp.mTextArray[rsp.mCoverArtIndex] = getString(ATTR_COVER_ART);
+                return rsp;
+            }
+            mElementAttrRspMisses++;
+
+            int numAttr = attrList.size();
+            rsp = new ElementAttrRsp(numAttr);
+            for (int i = 0; i < numAttr; ++i) {
+                rsp.mAttrIds[i] = attrList.get(i).intValue();
+                rsp.mTextArray[i] = getString(rsp.mAttrIds[i]);
+                if (rsp.mAttrIds[i] == ATTR_COVER_ART)
+                    rsp.mCoverArtIndex = i;
+                Log.v(TAG, "getAttributeString:attrId=" + rsp.mAttrIds[i] +
+                           " str=" + rsp.mTextArray[i]);
+            }
+            if (mElementAttrRsps.size() >= MAX_ELEMENT_ATTR_RSPS)
+                mElementAttrRsps.clear();
+            mElementAttrRsps.put(new ArrayList<Integer>(attrList), rsp);
+            return rsp;
         }
 
         public String getString(int attrId) {
@@ -2311,19 +2615,41 @@ public final class Avrcp {
         }
     }
 
+    /* Arguments of one getElementAttrRspNative call */
+    private static class ElementAttrRsp {
+        private final int[] mAttrIds;
+        private final String[] mTextArray;
+        private int mCoverArtIndex = -1;
+
+        ElementAttrRsp(int numAttr) {
+            mAttrIds = new int[numAttr];
+            mTextArray = new String[numAttr];
+        }
+    }
+
     private void updateMetadata(MediaMetadata data) {
         if (DEBUG)
             Log.v(TAG, "updateMetadata");
 
-        MediaAttributes oldAttributes = mMediaAttributes;
-        mMediaAttributes = new MediaAttributes(data);
+        mMetadataUpdates++;
+        int changed = mMediaAttributes.diff(data);
         if (data == null) {
             mSongLengthMs = 0L;
         } else {
             mSongLengthMs = data.getLong(MediaMetadata.METADATA_KEY_DURATION);
         }
-        if (!oldAttributes.equals(mMediaAttributes)) {
-            Log.v(TAG, "MediaAttributes Changed to " + mMediaAttributes.toString());
+        if (changed != 0) {
+            mMediaAttributes = new MediaAttributes(data);
+            Log.v(TAG, "MediaAttributes Changed to " + mMediaAttributes.toString() +
+                    " changed 0x" + Integer.toHexString(changed));
+            if ((changed & MediaAttributes.NOW_PLAYING_MATCH_MASK) != 0) {
+                for (int i = 0; i < maxAvrcpConnections; i++) {
+                    if (deviceFeatures[i].mNowPlayingEntries.size() > 0) {
+                        prefetchCoverArt(deviceFeatures[i].mNowPlayingEntries);
+                        break;
+                    }
+                }
+            }
             for (int i = 0; i < maxAvrcpConnections; i++) {
                 if ((deviceFeatures[i].mCurrentDevice != null) &&
                     (deviceFeatures[i].mTrackChangedNT == NOTIFICATION_TYPE_INTERIM)) {
@@ -2333,6 +2659,7 @@ public final class Avrcp {
                 }
             }
         } else {
+          mMetadataUnchanged++;
           Log.v(TAG, "Metadata updated but no change!");
         }
         // Update the play state, which sends play state and play position
@@ -2372,9 +2699,11 @@ public final class Avrcp {
     private void setBrowsedPlayer(int playerId, byte[] address) {
         if (DEBUG)
             Log.v(TAG, "setBrowsedPlayer: PlayerID: " + playerId);
-        Message msg = mHandler.obtainMessage(MESSAGE_SET_BROWSED_PLAYER, playerId, 0,
-                Utils.getAddressStringFromByte(address));
-        mHandler.sendMessage(msg);
+        String deviceAddress = Utils.getAddressStringFromByte(address);
+        Handler handler = getBrowseHandler(deviceAddress);
+        Message msg = handler.obtainMessage(MESSAGE_SET_BROWSED_PLAYER, playerId, 0,
+                deviceAddress);
+        handler.sendMessage(msg);
     }
 
     private void processSetBrowsedPlayer(int playerId, String deviceAddress) {
@@ -2475,8 +2804,9 @@ public final class Avrcp {
             Log.v(TAG, "changePath: direction: " + direction + " uid:" + uid);
         ItemAttr itemAttr = new ItemAttr(null, uid, 0,
                 Utils.getAddressStringFromByte(address));
-        Message msg = mHandler.obtainMessage(MESSAGE_CHANGE_PATH, direction, 0, itemAttr);
-        mHandler.sendMessage(msg);
+        Handler handler = getBrowseHandler(itemAttr.mAddress);
+        Message msg = handler.obtainMessage(MESSAGE_CHANGE_PATH, direction, 0, itemAttr);
+        handler.sendMessage(msg);
     }
 
     private void processChangePath(int direction, long folderUid,
@@ -2495,6 +2825,14 @@ public final class Avrcp {
                     deviceFeatures[deviceIndex].mCurrentPath + " mCurrentPathUID: " +
                     deviceFeatures[deviceIndex].mCurrentPathUid);
 
+        AvrcpMediaLibrary.Snapshot library =
+                mMediaLibrary.getSnapshot(deviceFeatures[deviceIndex].mMediaUri);
+        if (library != null && direction == FOLDER_DOWN && isCurrentPathValid(deviceIndex) &&
+                !deviceFeatures[deviceIndex].mCurrentPath.equals(PATH_ROOT)) {
+            processChangePathDownFromLibrary(library, folderUid, deviceIndex);
+            return;
+        }
+
         if (deviceFeatures[deviceIndex].mCurrentPath.equals(PATH_ROOT)){
             switch (direction) {
                 case FOLDER_UP:
@@ -2769,83 +3107,40 @@ public final class Avrcp {
                 getByteAddress(device));
     }
 
-    private long getNumPlaylistItems() {
-        Cursor cursor = null;
-        String[] cols = new String[] {
-                MediaStore.Audio.Playlists._ID,
-                MediaStore.Audio.Playlists.NAME
-        };
-        try {
-            cursor = mContext.getContentResolver().query(
-                MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI,
-                cols, MediaStore.Audio.Playlists.NAME + " != ''", null,
-                MediaStore.Audio.Playlists.NAME);
-
-            if ((cursor == null) || (cursor.getCount() == 0)) {
-                return 0;
-            } else {
-                long count = cursor.getCount();
-                return count;
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Exception " + e);
-            return 0;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
+    private void processChangePathDownFromLibrary(AvrcpMediaLibrary.Snapshot library,
+            long folderUid, int deviceIndex) {
+        AvrcpBrowseCommands.ChangePathResult result = mBrowseCommands.changePathDown(library,
+                deviceFeatures[deviceIndex].mCurrentPath,
+                deviceFeatures[deviceIndex].mCurrentPathUid, folderUid);
+        if (result.mPathUid != null) {
+            deviceFeatures[deviceIndex].mCurrentPathUid = result.mPathUid;
         }
+        changePathRspNative(result.mStatus, result.mNumItems,
+                getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
+    }
+
+    private AvrcpMediaLibrary.Folder getLibraryFolderContents(AvrcpMediaLibrary.Snapshot library,
+            int deviceIndex) {
+        return mBrowseCommands.getLibraryFolderContents(library,
+                deviceFeatures[deviceIndex].mCurrentPath,
+                deviceFeatures[deviceIndex].mCurrentPathUid);
+    }
+
+    private long getNumPlaylistItems() {
+        return mBrowseCommands.getNumPlaylistItems();
     }
 
     private long getNumItems(String path, String element, int deviceIndex) {
-        if (path == null || element == null)
-            return 0;
-        Cursor cursor = null;
-        try {
-            cursor = mContext.getContentResolver().query(
-                deviceFeatures[deviceIndex].mMediaUri,
-                new String[] {element},
-                MediaStore.Audio.Media.IS_MUSIC + "=1", null,
-                element);
-            if ((cursor == null) || (cursor.getCount() == 0)) {
-                return 0;
-            } else if (path.equals(PATH_TITLES)) {
-                long count = cursor.getCount();
-                return count;
-            } else if (path.equals(PATH_ALBUMS) || path.equals(PATH_ARTISTS)){
-                long elemCount = 0;
-                cursor.moveToFirst();
-                long count = cursor.getCount();
-                long prevElem = 0;
-                long curElem = 0;
-                while (count > 0) {
-                    curElem = cursor.getLong(cursor.getColumnIndexOrThrow(element));
-                    Log.i(TAG, "curElem "+ curElem + "preElem " + prevElem);
-                    if (curElem != prevElem) {
-                        elemCount++;
-                    }
-                    prevElem = curElem;
-                    cursor.moveToNext();
-                    count--;
-                }
-                Log.i(TAG, "element Count is "+ elemCount);
-                return elemCount;
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Exception " + e);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
-        return 0;
+        return mBrowseCommands.getNumItems(path, element, deviceFeatures[deviceIndex].mMediaUri);
     }
 
     private void getTotalNumberOfItems(byte scope, byte[] address) {
         if (DEBUG) Log.v(TAG, "getTotalNumberOfItems: scope: " + scope);
-        Message msg = mHandler.obtainMessage(MESSAGE_GET_TOTAL_NUMBER_OF_ITEMS, scope, 0,
-                Utils.getAddressStringFromByte(address));
-        mHandler.sendMessage(msg);
+        String deviceAddress = Utils.getAddressStringFromByte(address);
+        Handler handler = getBrowseHandler(deviceAddress);
+        Message msg = handler.obtainMessage(MESSAGE_GET_TOTAL_NUMBER_OF_ITEMS, scope, 0,
+                deviceAddress);
+        handler.sendMessage(msg);
     }
 
     private void processGetTotalNumberOfItems(byte scope, String deviceAddress) {
@@ -2932,6 +3227,17 @@ public final class Avrcp {
             return;
         }
 
+        AvrcpMediaLibrary.Snapshot library =
+                mMediaLibrary.getSnapshot(deviceFeatures[deviceIndex].mMediaUri);
+        if (library != null && !deviceFeatures[deviceIndex].mCurrentPath.equals(PATH_ROOT)) {
+            virtualFileTotalItems = mBrowseCommands.getTotalNumberOfItems(library,
+                    deviceFeatures[deviceIndex].mCurrentPath,
+                    deviceFeatures[deviceIndex].mCurrentPathUid);
+            getTotalNumberOfItemsRspNative((byte)OPERATION_SUCCESSFUL, virtualFileTotalItems,
+                                           0x0000, getByteAddress(device));
+            return;
+        }
+
         if (deviceFeatures[deviceIndex].mCurrentPath.equals(PATH_ROOT)) {
             virtualFileTotalItems = NUM_ROOT_ELEMENTS;
         } else if (deviceFeatures[deviceIndex].mCurrentPath.equals(PATH_TITLES)) {
@@ -3140,8 +3446,9 @@ public final class Avrcp {
             Log.v(TAG, "playItem: scope: " + scope + " uid:" + uid);
         ItemAttr itemAttr = new ItemAttr(null, uid, 0,
                 Utils.getAddressStringFromByte(address));
-        Message msg = mHandler.obtainMessage(MESSAGE_PLAY_ITEM, scope, 0, itemAttr);
-        mHandler.sendMessage(msg);
+        Handler handler = getBrowseHandler(itemAttr.mAddress);
+        Message msg = handler.obtainMessage(MESSAGE_PLAY_ITEM, scope, 0, itemAttr);
+        handler.sendMessage(msg);
     }
 
     private void processPlayItem(int scope, long uid,
@@ -3178,7 +3485,25 @@ public final class Avrcp {
             }
         }
         if (scope == SCOPE_VIRTUAL_FILE_SYS) {
-            if (deviceFeatures[deviceIndex].mCurrentPath.equals(PATH_ROOT)) {
+            AvrcpMediaLibrary.Snapshot library =
+                    mMediaLibrary.getSnapshot(deviceFeatures[deviceIndex].mMediaUri);
+            AvrcpMediaLibrary.Folder folder = null;
+            if (library != null && isCurrentPathValid(deviceIndex) &&
+                    !deviceFeatures[deviceIndex].mCurrentPath.equals(PATH_ROOT)) {
+                folder = getLibraryFolderContents(library, deviceIndex);
+            }
+            if (folder != null) {
+                boolean found = (folder == library.titles) ?
+                        (library.getTrack(uid) != null) : folder.contains(uid);
+                if (!found) {
+                    Log.i(TAG, "No such track");
+                    playItemRspNative(DOES_NOT_EXIST ,
+                            getByteAddress(device));
+                } else {
+                    Log.i(TAG, "Play uid:" + uid);
+                    mMediaController.getTransportControls().setRemoteControlClientPlayItem(uid, scope);
+                }
+            } else if (deviceFeatures[deviceIndex].mCurrentPath.equals(PATH_ROOT)) {
                 playItemRspNative(UID_A_DIRECTORY ,
                         getByteAddress(device));
             } else if (deviceFeatures[deviceIndex].mCurrentPath.equals(PATH_TITLES)) {
@@ -3346,24 +3671,13 @@ public final class Avrcp {
         }
         ItemAttr itemAttr = new ItemAttr(attrList, uid, size,
                 Utils.getAddressStringFromByte(address));
-        Message msg = mHandler.obtainMessage(MESSAGE_GET_ITEM_ATTRS, (int)numAttr,
+        Handler handler = getBrowseHandler(itemAttr.mAddress);
+        Message msg = handler.obtainMessage(MESSAGE_GET_ITEM_ATTRS, (int)numAttr,
                                                                 (int)scope, itemAttr);
-        mHandler.sendMessage(msg);
+        handler.sendMessage(msg);
     }
 
-    private String[] mCursorCols = new String[] {
-                    "audio._id AS _id",
-                    MediaStore.Audio.Media.ARTIST,
-                    MediaStore.Audio.Media.ALBUM,
-                    MediaStore.Audio.Media.TITLE,
-                    MediaStore.Audio.Media.DURATION,
-                    MediaStore.Audio.Media.DATA,
-                    MediaStore.Audio.Media.MIME_TYPE,
-                    MediaStore.Audio.Media.ALBUM_ID,
-                    MediaStore.Audio.Media.ARTIST_ID,
-                    MediaStore.Audio.Media.IS_PODCAST,
-                    MediaStore.Audio.Media.BOOKMARK
-    };
+    private final String[] mCursorCols = AvrcpBrowseCommands.CURSOR_COLS;
 
     private void processGetItemAttr(byte scope, long uid, byte numAttr, int[] attrs,
                 int size, String deviceAddress) {
@@ -3379,49 +3693,19 @@ public final class Avrcp {
         }
         textArray = new String[numAttr];
         if ((scope == SCOPE_VIRTUAL_FILE_SYS) || (scope == SCOPE_NOW_PLAYING)) {
-            Cursor cursor = null;
-            try {
-                if ((deviceFeatures[deviceIndex].mMediaUri == Uri.EMPTY) ||
-                        (deviceFeatures[deviceIndex].mCurrentPath.equals(PATH_INVALID))) {
-                    if (DEBUG)
-                        Log.v(TAG, "Browsed player not set, getItemAttr can not be processed");
-                    getItemAttrRspNative((byte)0 ,attrs ,
-                            textArray, size, getByteAddress(device));
-                    return;
-                }
-                cursor = mContext.getContentResolver().query(
-                     deviceFeatures[deviceIndex].mMediaUri, mCursorCols,
-                     MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id=" + uid, null, null);
-                if ((cursor == null) || (cursor.getCount() == 0)) {
-                    Log.i(TAG, "Invalid track UID");
-                    Log.i(TAG, "cursor is " + cursor);
-                    if (cursor != null)
-                        Log.i(TAG, "cursor.getCount() " + cursor.getCount());
-                    getItemAttrRspNative((byte)0 ,attrs ,
-                            textArray, size, getByteAddress(device));
-                } else {
-                    int validAttrib = 0;
-                    cursor.moveToFirst();
-                    for (int i = 0; i < numAttr; ++i) {
-                        if ((attrs[i] <= MEDIA_ATTR_MAX) && (attrs[i] >= MEDIA_ATTR_MIN)) {
-                            textArray[i] = getAttributeStringFromCursor(
-                                    cursor, attrs[i], deviceIndex);
-                            Log.i(TAG, "textArray[" + i + "] = " + textArray[i]);
-                            validAttrib ++;
-                        }
-                    }
-                    getItemAttrRspNative(numAttr ,attrs ,
-                            textArray, size, getByteAddress(device));
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Exception " + e);
+            if ((deviceFeatures[deviceIndex].mMediaUri == Uri.EMPTY) ||
+                    (deviceFeatures[deviceIndex].mCurrentPath.equals(PATH_INVALID))) {
+                if (DEBUG)
+                    Log.v(TAG, "Browsed player not set, getItemAttr can not be processed");
                 getItemAttrRspNative((byte)0 ,attrs ,
                         textArray, size, getByteAddress(device));
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
+                return;
             }
+            byte rspNumAttr = mBrowseCommands.getItemAttr(scope, uid, numAttr, attrs,
+                    deviceFeatures[deviceIndex].mMediaUri,
+                    deviceFeatures[deviceIndex].mCurrentPath, textArray);
+            getItemAttrRspNative(rspNumAttr ,attrs ,
+                    textArray, size, getByteAddress(device));
         } else {
             Log.i(TAG, "Invalid scope");
             getItemAttrRspNative((byte)0 ,attrs ,
@@ -3523,8 +3807,9 @@ public final class Avrcp {
 
         FolderListEntries folderListEntries = new FolderListEntries (scope, start, end, size,
                 numAttr, attrs, Utils.getAddressStringFromByte(address));
-        Message msg = mHandler.obtainMessage(MESSAGE_GET_FOLDER_ITEMS, 0, 0, folderListEntries);
-        mHandler.sendMessage(msg);
+        Handler handler = getBrowseHandler(folderListEntries.mAddress);
+        Message msg = handler.obtainMessage(MESSAGE_GET_FOLDER_ITEMS, 0, 0, folderListEntries);
+        handler.sendMessage(msg);
     }
 
     private void processGetFolderItems(byte scope, long start, long end, int size,
@@ -3654,6 +3939,14 @@ public final class Avrcp {
                 return;
             }
 
+            AvrcpMediaLibrary.Snapshot library =
+                    mMediaLibrary.getSnapshot(deviceFeatures[deviceIndex].mMediaUri);
+            if (library != null && !deviceFeatures[deviceIndex].mCurrentPath.equals(PATH_ROOT)) {
+                processGetFolderItemsFromLibrary(library, start, reqItems, size, numAttr, attrs,
+                        deviceIndex);
+                return;
+            }
+
             if (deviceFeatures[deviceIndex].mCurrentPath.equals(PATH_ROOT)) {
                 long availableItems = NUM_ROOT_ELEMENTS;
                 if (start >= availableItems) {
@@ -4402,6 +4695,17 @@ public final class Avrcp {
         }
     }
 
+    private void processGetFolderItemsFromLibrary(AvrcpMediaLibrary.Snapshot library,
+            long start, long reqItems, int size, byte numAttr, int[] attrs, int deviceIndex) {
+        AvrcpBrowseCommands.FolderItems items = mBrowseCommands.getFolderItems(library,
+                deviceFeatures[deviceIndex].mCurrentPath,
+                deviceFeatures[deviceIndex].mCurrentPathUid, start, reqItems, numAttr, attrs);
+        getFolderItemsRspNative((byte)items.mStatus ,
+                items.mNumItems, items.mItemType, items.mUid, items.mType,
+                items.mPlayable, items.mDisplayName, items.mNumAtt, items.mAttValues,
+                items.mAttIds, size, getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
+    }
+
     private void registerNotification(int eventId, int param, byte[] address) {
         Message msg = mHandler.obtainMessage(MESSAGE_REGISTER_NOTIFICATION, eventId,
                 param, Utils.getAddressStringFromByte(address));
@@ -4622,24 +4926,11 @@ public final class Avrcp {
     }
 
     private void sendTrackChangedRsp(BluetoothDevice device) {
-        byte[] track = new byte[TRACK_ID_SIZE];
-        long TrackNumberRsp = -1L;
         int deviceIndex = getIndexForDevice(device);
         if(DEBUG) Log.v(TAG,"mCurrentPlayState" +
                 deviceFeatures[deviceIndex].mCurrentPlayState );
 
-        try {
-            TrackNumberRsp = Long.parseLong(mMediaAttributes.getString
-                                    (MediaAttributes.ATTR_MEDIA_NUMBER));
-        } catch (Exception e) {
-            Log.e(TAG, "sendTrackChangedRsp Exception e" + e);
-            TrackNumberRsp = -1;
-        }
-
-        /* track is stored in big endian format */
-        for (int i = 0; i < TRACK_ID_SIZE; ++i) {
-            track[i] = (byte) (TrackNumberRsp >> (56 - 8 * i));
-        }
+        byte[] track = mMediaAttributes.getTrackId();
         registerNotificationRspTrackChangeNative(deviceFeatures[deviceIndex].mTrackChangedNT ,
                 track ,getByteAddress(device));
 
@@ -4665,88 +4956,29 @@ public final class Avrcp {
                 Log.e(TAG,"Device index is not valid in getPlayPosition");
                 return -1L;
             }
-
-            if (deviceFeatures[deviceIndex].mCurrentPlayState == null)
-                return -1L;
-
-            if (deviceFeatures[deviceIndex].mCurrentPlayState.getPosition() ==
-                    PlaybackState.PLAYBACK_POSITION_UNKNOWN) {
-                return -1L;
-            }
-
-            if (isPlayingState(deviceFeatures[deviceIndex].mCurrentPlayState))
-                return SystemClock.elapsedRealtime() - mLastStateUpdate +
-                       deviceFeatures[deviceIndex].mCurrentPlayState.getPosition();
-
-            return deviceFeatures[deviceIndex].mCurrentPlayState.getPosition();
-
+            return getPlayPosition(deviceFeatures[deviceIndex].mCurrentPlayState,
+                    SystemClock.elapsedRealtime());
         } else {
-            if (mCurrentPlayerState == null)
-                return -1L;
+            return getPlayPosition(mCurrentPlayerState, SystemClock.elapsedRealtime());
+        }
+    }
 
-            if (mCurrentPlayerState.getPosition() == PlaybackState.PLAYBACK_POSITION_UNKNOWN)
-                return -1L;
+    private long getPlayPosition(PlaybackState state, long nowMs) {
+        if (state == null)
+            return -1L;
 
-            if (isPlayingState(mCurrentPlayerState))
-                return SystemClock.elapsedRealtime() - mLastStateUpdate +
-                       mCurrentPlayerState.getPosition();
+        if (state.getPosition() == PlaybackState.PLAYBACK_POSITION_UNKNOWN)
+            return -1L;
 
-            return mCurrentPlayerState.getPosition();
-        }
+        if (isPlayingState(state))
+            return nowMs - mLastStateUpdate + state.getPosition();
+
+        return state.getPosition();
     }
 
     private String getAttributeStringFromCursor(Cursor cursor, int attrId, int deviceIndex) {
-        String attrStr = "<unknown>";
-        switch (attrId) {
-            case MEDIA_ATTR_TITLE:
-                attrStr = cursor.getString(cursor.getColumnIndexOrThrow(
-                                        MediaStore.Audio.Media.TITLE));
-                break;
-            case MEDIA_ATTR_ARTIST:
-                attrStr = cursor.getString(cursor.getColumnIndexOrThrow(
-                                        MediaStore.Audio.Media.ARTIST));
-                break;
-            case MEDIA_ATTR_ALBUM:
-                attrStr = cursor.getString(cursor.getColumnIndexOrThrow(
-                                        MediaStore.Audio.Media.ALBUM));
-                break;
-            case MEDIA_ATTR_PLAYING_TIME:
-                attrStr = cursor.getString(cursor.getColumnIndexOrThrow(
-                                        MediaStore.Audio.Media.DURATION));
-                break;
-            case MEDIA_ATTR_TRACK_NUM:
-                if (deviceFeatures[deviceIndex].mCurrentPath.equals(PATH_PLAYLISTS)) {
-                    attrStr = cursor.getString(cursor.getColumnIndexOrThrow(
-                                    MediaStore.Audio.Playlists.Members._ID));
-                } else {
-                    attrStr = String.valueOf(cursor.getLong(
-                                cursor.getColumnIndexOrThrow("_id")));
-                }
-                break;
-            case MEDIA_ATTR_NUM_TRACKS:
-                attrStr = String.valueOf(cursor.getCount());
-                break;
-            case MEDIA_ATTR_GENRE:
-                attrStr = "<unknown>"; // GENRE is not supported
-                break;
-            case MEDIA_ATTR_COVER_ART:
-                //Fetch CoverArtHandle for this song from AvrcpBip.
-                attrStr = mAvrcpBipRsp.getImgHandle(
-                        cursor.getString(cursor.getColumnIndexOrThrow(
-                        MediaStore.Audio.Media.ALBUM)));
-                break;
-            default:
-                Log.v(TAG, "getAttributeStringFromCursor: wrong attribute: attrId = "
-                                                                            + attrId);
-                break;
-        }
-        if (attrStr == null) {
-            attrStr = new String();
-        }
-        if (DEBUG)
-            Log.v(TAG, "getAttributeStringFromCursor: attrId = "
-                    + attrId + " str = " + attrStr);
-        return attrStr;
+        return mBrowseCommands.getAttributeStringFromCursor(cursor, attrId,
+                deviceFeatures[deviceIndex].mCurrentPath);
     }
 
     private int convertPlayStateToPlayStatus(PlaybackState state) {
@@ -4797,11 +5029,41 @@ public final class Avrcp {
      * TG.
      */
     private void sendPlayPosNotificationRsp(boolean requested, int i) {
+        long nowMs = SystemClock.elapsedRealtime();
+        sendPlayPosNotificationRsp(requested, i,
+                getPlayPosition(deviceFeatures[i].mCurrentPlayState, nowMs), nowMs);
+        schedulePlayPosTimer(nowMs);
+    }
+
+    /**
+     * Serves every device registered for play position changes from one
+     * tick. The position is computed once per distinct playback state and
+     * the shared timer is then rearmed for the earliest deadline left.
+     */
+    private void updatePlayPosNotifications() {
+        long nowMs = SystemClock.elapsedRealtime();
+        PlaybackState lastState = null;
+        long playPositionMs = -1L;
+        for (int i = 0; i < maxAvrcpConnections; i++) {
+            if (deviceFeatures[i].mPlayPosChangedNT != NOTIFICATION_TYPE_INTERIM)
+                continue;
+            PlaybackState state = deviceFeatures[i].mCurrentPlayState;
+            if (state != lastState) {
+                playPositionMs = getPlayPosition(state, nowMs);
+                lastState = state;
+            }
+            sendPlayPosNotificationRsp(false, i, playPositionMs, nowMs);
+        }
+        schedulePlayPosTimer(nowMs);
+    }
+
+    private void sendPlayPosNotificationRsp(boolean requested, int i, long playPositionMs,
+            long nowMs) {
         if (!requested && deviceFeatures[i].mPlayPosChangedNT != NOTIFICATION_TYPE_INTERIM) {
             if (DEBUG) Log.d(TAG, "sendPlayPosNotificationRsp: Not registered or requesting.");
+            deviceFeatures[i].mPlayPosDueMs = -1;
             return;
         }
-        long playPositionMs = getPlayPosition(deviceFeatures[i].mCurrentDevice);
 
         // mNextPosMs is set to -1 when the previous position was invalid
         // so this will be true if the new position is valid & old was invalid.
@@ -4816,6 +5078,7 @@ public final class Avrcp {
             if (!requested) deviceFeatures[i].mPlayPosChangedNT = NOTIFICATION_TYPE_CHANGED;
             registerNotificationRspPlayPosNative(deviceFeatures[i].mPlayPosChangedNT,
                    (int)playPositionMs, getByteAddress(deviceFeatures[i].mCurrentDevice));
+            mPlayPosNotificationsSent++;
             deviceFeatures[i].mLastReportedPosition = playPositionMs;
             if (playPositionMs != PlaybackState.PLAYBACK_POSITION_UNKNOWN) {
                 deviceFeatures[i].mNextPosMs = playPositionMs + deviceFeatures[i].mPlaybackIntervalMs;
@@ -4826,20 +5089,42 @@ public final class Avrcp {
             }
         }
 
-        mHandler.removeMessages(MESSAGE_PLAY_INTERVAL_TIMEOUT);
         if (deviceFeatures[i].mPlayPosChangedNT == NOTIFICATION_TYPE_INTERIM &&
                  isPlayingState(deviceFeatures[i].mCurrentPlayState)) {
-            Message msg = mHandler.obtainMessage(MESSAGE_PLAY_INTERVAL_TIMEOUT, 0, 0,
-                                                 deviceFeatures[i].mCurrentDevice);
             long delay = deviceFeatures[i].mPlaybackIntervalMs;
             if (deviceFeatures[i].mNextPosMs != -1) {
                 delay = deviceFeatures[i].mNextPosMs - (playPositionMs > 0 ? playPositionMs : 0);
             }
-            if (DEBUG) Log.d(TAG, "PLAY_INTERVAL_TIMEOUT set for " + delay + "ms from now");
-            mHandler.sendMessageDelayed(msg, delay);
+            deviceFeatures[i].mPlayPosDueMs = nowMs + delay;
+        } else {
+            deviceFeatures[i].mPlayPosDueMs = -1;
         }
     }
 
+    /* Arms the one play position timer for the earliest device deadline,
+     * pushed back to cover the deadlines that follow within the slack. No
+     * device is served before its deadline */
+    private void schedulePlayPosTimer(long nowMs) {
+        long dueMs = -1L;
+        for (int i = 0; i < maxAvrcpConnections; i++) {
+            long deviceDueMs = deviceFeatures[i].mPlayPosDueMs;
+            if (deviceDueMs != -1 && (dueMs == -1 || deviceDueMs < dueMs))
+                dueMs = deviceDueMs;
+        }
+        mHandler.removeMessages(MESSAGE_PLAY_INTERVAL_TIMEOUT);
+        if (dueMs == -1)
+            return;
+        long earliestDueMs = dueMs;
+        for (int i = 0; i < maxAvrcpConnections; i++) {
+            long deviceDueMs = deviceFeatures[i].mPlayPosDueMs;
+            if (deviceDueMs > dueMs && deviceDueMs <= earliestDueMs + PLAY_POS_TIMER_SLACK_MS)
+                dueMs = deviceDueMs;
+        }
+        long delay = Math.max(0L, dueMs - nowMs);
+        if (DEBUG) Log.d(TAG, "PLAY_INTERVAL_TIMEOUT set for " + delay + "ms from now");
+        mHandler.sendEmptyMessageDelayed(MESSAGE_PLAY_INTERVAL_TIMEOUT, delay);
+    }
+
     /**
      * This is called from AudioService. It will return whether this device supports abs volume.
      * NOT USED AT THE MOMENT.
@@ -5244,16 +5529,13 @@ public final class Avrcp {
 
     public void setAvrcpConnectedDevice(BluetoothDevice device) {
         Log.i(TAG,"Device added is " + device);
-        for (int i = 0; i < maxAvrcpConnections; i++) {
-            if (deviceFeatures[i].mCurrentDevice != null &&
-                    deviceFeatures[i].mCurrentDevice.equals(device)) {
-                Log.v(TAG,"device is already added in connected list, ignore now");
-                return;
-            }
+        if (getIndexForDevice(device) != INVALID_DEVICE_INDEX) {
+            Log.v(TAG,"device is already added in connected list, ignore now");
+            return;
         }
         for (int i = 0; i < maxAvrcpConnections; i++ ) {
             if (deviceFeatures[i].mCurrentDevice == null) {
-                deviceFeatures[i].mCurrentDevice = device;
+                setCurrentDevice(i, device);
                 deviceFeatures[i].isActiveDevice = true;
                 /*Playstate is explicitly updated here to take care of cases
                         where play state update is missed because of that happening
@@ -5305,25 +5587,39 @@ public final class Avrcp {
     }
 
     private int getIndexForDevice(BluetoothDevice device) {
-        for (int i = 0; i < maxAvrcpConnections; i++) {
-            if (deviceFeatures[i].mCurrentDevice != null &&
-                    deviceFeatures[i].mCurrentDevice.equals(device)) {
-                Log.i(TAG,"device found at index " + i);
-                return i;
-            }
+        if (device == null)
+            return INVALID_DEVICE_INDEX;
+        return getIndexForAddress(device.getAddress());
+    }
+
+    private int getIndexForAddress(String address) {
+        Integer index = mDeviceIndexMap.get(address);
+        if (index == null) {
+            if (DEBUG) Log.v(TAG, "no device index for " + address);
+            return INVALID_DEVICE_INDEX;
         }
-        Log.e(TAG, "returning invalid index");
-        return INVALID_DEVICE_INDEX;
+        return index;
+    }
+
+    /* Set the device of a deviceFeatures slot, keeping mDeviceIndexMap in sync */
+    private void setCurrentDevice(int index, BluetoothDevice device) {
+        BluetoothDevice oldDevice = deviceFeatures[index].mCurrentDevice;
+        if (oldDevice != null)
+            mDeviceIndexMap.remove(oldDevice.getAddress(), index);
+        deviceFeatures[index].mCurrentDevice = device;
+        if (device != null)
+            mDeviceIndexMap.put(device.getAddress(), index);
     }
 
     public void cleanupDeviceFeaturesIndex (int index) {
         Log.i(TAG,"cleanupDeviceFeaturesIndex index:" + index);
-        deviceFeatures[index].mCurrentDevice = null;
+        setCurrentDevice(index, null);
         deviceFeatures[index].mCurrentPlayState = new PlaybackState.Builder().setState(PlaybackState.STATE_NONE, -1L, 0.0f).build();;
         deviceFeatures[index].mPlayStatusChangedNT = NOTIFICATION_TYPE_CHANGED;
         deviceFeatures[index].mPlayerStatusChangeNT = NOTIFICATION_TYPE_CHANGED;
         deviceFeatures[index].mTrackChangedNT = NOTIFICATION_TYPE_CHANGED;
         deviceFeatures[index].mPlaybackIntervalMs = 0L;
+        deviceFeatures[index].mPlayPosDueMs = -1;
         deviceFeatures[index].mPlayPosChangedNT = NOTIFICATION_TYPE_CHANGED;
         deviceFeatures[index].mFeatures = 0;
         deviceFeatures[index].mAbsoluteVolume = -1;
@@ -5340,6 +5636,8 @@ public final class Avrcp {
         deviceFeatures[index].mCurrentPath = PATH_INVALID;
         deviceFeatures[index].mCurrentPathUid = null;
         deviceFeatures[index].mMediaUri = Uri.EMPTY;
+        deviceFeatures[index].mNowPlayingEntries.clear();
+        deviceFeatures[index].mCommandLatency.clear();
         deviceFeatures[index].isMusicAppResponsePending = false;
         deviceFeatures[index].isBrowsingSupported = false;
         deviceFeatures[index].isActiveDevice = false;
@@ -5356,7 +5654,7 @@ public final class Avrcp {
 
                 Log.i(TAG,"Device removed is " + device);
                 Log.i(TAG,"removed at " + i);
-                deviceFeatures[i].mCurrentDevice = null;
+                setCurrentDevice(i, null);
                 cleanupDeviceFeaturesIndex(i);
                 /* device is disconnect and some response form music app was
                  * pending for this device clear it.*/
@@ -5424,6 +5722,7 @@ public final class Avrcp {
             ProfileService.println(sb, "mPlayPosChangedNT: " + deviceFeatures[i].mPlayPosChangedNT);
             ProfileService.println(sb, "mNextPosMs: " + deviceFeatures[i].mNextPosMs);
             ProfileService.println(sb, "mPrevPosMs: " + deviceFeatures[i].mPrevPosMs);
+            ProfileService.println(sb, "mPlayPosDueMs: " + deviceFeatures[i].mPlayPosDueMs);
             ProfileService.println(sb, "mSkipStartTime: " + mSkipStartTime);
             ProfileService.println(sb, "mFeatures: " + deviceFeatures[i].mFeatures);
             ProfileService.println(sb, "mAbsoluteVolume: " + deviceFeatures[i].mAbsoluteVolume);
@@ -5436,10 +5735,25 @@ public final class Avrcp {
             ProfileService.println(sb, "mAbsVolRetryTimes: " + deviceFeatures[i].mAbsVolRetryTimes);
             ProfileService.println(sb, "mSkipAmount: " + mSkipAmount);
             ProfileService.println(sb, "mVolumeMapping: " + deviceFeatures[i].mVolumeMapping.toString());
+            AvrcpNowPlayingEntries entries = deviceFeatures[i].mNowPlayingEntries;
+            ProfileService.println(sb, "mNowPlayingEntries: " + entries.size() + " entries, " +
+                    entries.mUpdates + " updates, " + entries.mQueries + " queries, " +
+                    entries.mResolved + " resolved, " + entries.mReused + " reused");
+            ProfileService.println(sb, "mCommandLatency:");
+            deviceFeatures[i].mCommandLatency.dump(sb);
             if (mMediaController != null)
                 ProfileService.println(sb, "mMediaSession pkg: " +
                         mMediaController.getPackageName());
         }
+        ProfileService.println(sb, "mItemCountCache " + mBrowseCommands.getItemCountCacheStats());
+        ProfileService.println(sb, "mItemAttrCache: " + mBrowseCommands.getItemAttrCacheStats());
+        ProfileService.println(sb, "Play position timer ticks: " + mPlayPosTimerTicks
+                + ", notifications sent: " + mPlayPosNotificationsSent);
+        ProfileService.println(sb, "Metadata updates: " + mMetadataUpdates + ", unchanged: "
+                + mMetadataUnchanged + ", element attr rsp cache hits: " + mElementAttrRspHits
+                + ", misses: " + mElementAttrRspMisses);
+        ProfileService.println(sb, "BIP image cache: " + mAvrcpBipRsp.getImgCacheStats());
+        mMediaLibrary.dump(sb);
     }
 
     // Do not modify without updating the HAL bt_rc.h files.
@@ -6029,6 +6343,8 @@ public final class Avrcp {
     /**
       * The media player instances
       */
-    private ArrayList<MediaPlayerInfo> mMediaPlayers = new ArrayList<MediaPlayerInfo>(1);
+    /* Copy on write, so browse lanes can iterate while the handler updates it */
+    private final CopyOnWriteArrayList<MediaPlayerInfo> mMediaPlayers =
+            new CopyOnWriteArrayList<MediaPlayerInfo>();
 
 }
@@ -32,6 +32,8 @@ package com.android.bluetooth.avrcp;
 import javax.obex.ServerSession;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
 import android.os.Message;
 
 import com.android.bluetooth.BluetoothObexTransport;
@@ -48,8 +50,10 @@ import android.bluetooth.BluetoothSocket;
 import android.bluetooth.BluetoothUuid;
 import android.content.Context;
 import android.content.Intent;
+import android.database.Cursor;
 import android.os.Handler;
 import android.os.RemoteException;
+import android.provider.MediaStore;
 import android.util.Log;
 
 public class AvrcpBipRsp implements IObexConnectionHandler {
@@ -94,6 +98,10 @@ public class AvrcpBipRsp implements IObexConnectionHandler {
 
     private static boolean mObexConnected;
 
+    private AvrcpBipRspImgCache mImgCache;
+
+    private AvrcpBipRspHandleIndex mHandleIndex;
+
     public AvrcpBipRsp (Context context) {
         mContext = context;
         mAdapter = BluetoothAdapter.getDefaultAdapter();
@@ -221,7 +229,8 @@ public class AvrcpBipRsp implements IObexConnectionHandler {
     private final synchronized void startObexServerSession() throws IOException {
         if (V) Log.v(TAG, "startObexServerSession");
 
-        mAvrcpBipRspServer = new AvrcpBipRspObexServer(mContext, mSessionStatusHandler);
+        mAvrcpBipRspServer = new AvrcpBipRspObexServer(mContext, mSessionStatusHandler,
+                mImgCache, mHandleIndex);
         if (V) Log.v(TAG, "startObexServerSession: mAvrcpBipRspServer = " + mAvrcpBipRspServer);
         BluetoothObexTransport transport = new BluetoothObexTransport(mConnSocket);
         mServerSession = new ServerSession(transport, mAvrcpBipRspServer, null);
@@ -236,6 +245,12 @@ public class AvrcpBipRsp implements IObexConnectionHandler {
         if (V) Log.v(TAG, "Verbose logging enabled");
         filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
         filter.addAction(BluetoothDevice.ACTION_ACL_DISCONNECTED);
+        if (mImgCache == null) {
+            mImgCache = new AvrcpBipRspImgCache(mContext);
+        }
+        if (mHandleIndex == null) {
+            mHandleIndex = new AvrcpBipRspHandleIndex(mContext);
+        }
         if (!mIsRegistered) {
             try {
                 mContext.registerReceiver(mAvrcpBipRspReceiver, filter);
@@ -269,11 +284,57 @@ public class AvrcpBipRsp implements IObexConnectionHandler {
         }
         closeConnectionSocket();
         closeServerSocket();
+        if (mImgCache != null) {
+            mImgCache.stop();
+        }
 
         if (D) Log.d(TAG, "returning from stop()");
         return true;
     }
 
+    /**
+     * Drops image handles of albums that were removed from MediaStore or
+     * whose art changed, so the persisted index does not grow without bound
+     * and a head unit never gets old art for a handle.
+     */
+    public void pruneImgHandles() {
+        AvrcpBipRspHandleIndex handleIndex = mHandleIndex;
+        if (handleIndex == null || handleIndex.size() == 0)
+            return;
+
+        String[] projection = { MediaStore.Audio.Albums.ALBUM, MediaStore.Audio.Albums.ALBUM_ART };
+        HashMap<String, String> artByAlbum = new HashMap<String, String>();
+        Cursor cursor = null;
+        try {
+            cursor = mContext.getContentResolver().query(
+                    MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI, projection, null, null,
+                    MediaStore.Audio.Albums.DEFAULT_SORT_ORDER);
+            if (cursor == null)
+                return;
+            while (cursor.moveToNext()) {
+                /* Same row resolveAlbumArt picks for an album name */
+                String album = cursor.getString(0);
+                if (album != null && !artByAlbum.containsKey(album))
+                    artByAlbum.put(album, cursor.getString(1));
+            }
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "pruneImgHandles: exception = " + e);
+            return;
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        handleIndex.prune(artByAlbum);
+    }
+
+    public String getImgCacheStats() {
+        AvrcpBipRspImgCache imgCache = mImgCache;
+        AvrcpBipRspHandleIndex handleIndex = mHandleIndex;
+        return (imgCache != null) ? imgCache.getStats() + ", " +
+                ((handleIndex != null) ? handleIndex.size() : 0) + " handles, " +
+                AvrcpBipRspParser.getPrefetchedBytes() + " bytes prefetched" : "not started";
+    }
+
     @Override
     public synchronized boolean onConnect(BluetoothDevice device, BluetoothSocket socket) {
         /* Signal to the service that we have received an incoming connection. */
@@ -330,5 +391,12 @@ public class AvrcpBipRsp implements IObexConnectionHandler {
 
         return mAvrcpBipRspServer.getImgHandle(albumName);
     }
-}
 
+    /* Prepare the thumbnails of upcoming tracks for the connected remote */
+    public synchronized void prefetchImgThumbs(List<String> albumNames) {
+        if (!mObexConnected || mAvrcpBipRspServer == null)
+            return;
+
+        mAvrcpBipRspServer.prefetchImgThumbs(albumNames);
+    }
+}
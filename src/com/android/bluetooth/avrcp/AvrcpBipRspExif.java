@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2015, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *           * Redistributions of source code must retain the above copyright
+ *             notice, this list of conditions and the following disclaimer.
+ *           * Redistributions in binary form must reproduce the above
+ *           * copyright notice, this list of conditions and the following
+ *             disclaimer in the documentation and/or other materials provided
+ *             with the distribution.
+ *           * Neither the name of The Linux Foundation nor the names of its
+ *             contributors may be used to endorse or promote products derived
+ *             from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import android.media.ExifInterface;
+import android.util.Log;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * In memory EXIF handling for the BIP linked thumbnail.
+ *
+ * The thumbnail must carry an EXIF header with its own pixel size. Instead
+ * of writing the JPEG to a file for ExifInterface, the APP1 segment is built
+ * here and spliced in place of the JFIF APP0 segment while the encoder
+ * output streams through {@link JfifToExifOutputStream}.
+ */
+final class AvrcpBipRspExif {
+    private static final String TAG = "AvrcpBipRspExif";
+
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    private static final int TAG_IMAGE_WIDTH = 0x0100;
+    private static final int TAG_IMAGE_LENGTH = 0x0101;
+    private static final int TAG_MAKE = 0x010f;
+    private static final int TAG_MODEL = 0x0110;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATETIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_FLASH = 0x9209;
+
+    private static final int MARKER_SOI = 0xd8;
+    private static final int MARKER_APP0 = 0xe0;
+    private static final int MARKER_APP1 = 0xe1;
+    private static final byte[] EXIF_ID = { 'E', 'x', 'i', 'f', 0, 0 };
+
+    private static final class Entry {
+        final int mTag;
+        final int mType;
+        final int mValue;
+        final byte[] mData;
+
+        Entry(int tag, int type, int value, byte[] data) {
+            mTag = tag;
+            mType = type;
+            mValue = value;
+            mData = data;
+        }
+
+        int count() {
+            return (mData != null) ? mData.length : 1;
+        }
+
+        /* Bytes stored outside the entry, padded to even offsets */
+        int extraLength() {
+            return (mData != null && mData.length > 4) ? (mData.length + 1) & ~1 : 0;
+        }
+    }
+
+    private AvrcpBipRspExif() {
+    }
+
+    private static void addAscii(ArrayList<Entry> ifd, int tag, String value) {
+        if (value != null) {
+            byte[] str = value.getBytes(StandardCharsets.US_ASCII);
+            byte[] data = new byte[str.length + 1];
+            System.arraycopy(str, 0, data, 0, str.length);
+            ifd.add(new Entry(tag, TYPE_ASCII, 0, data));
+        }
+    }
+
+    private static void addShort(ArrayList<Entry> ifd, int tag, String value) {
+        if (value != null) {
+            try {
+                ifd.add(new Entry(tag, TYPE_SHORT, Integer.parseInt(value), null));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "invalid value " + value + " for tag " + tag);
+            }
+        }
+    }
+
+    private static int ifdLength(ArrayList<Entry> ifd) {
+        int length = 2 + ifd.size() * 12 + 4;
+        for (Entry e : ifd) {
+            length += e.extraLength();
+        }
+        return length;
+    }
+
+    /* Writes ifd at the current position, which is offset bytes into the TIFF data */
+    private static void writeIfd(ByteBuffer buf, ArrayList<Entry> ifd, int offset) {
+        int dataOffset = offset + 2 + ifd.size() * 12 + 4;
+        buf.putShort((short) ifd.size());
+        for (Entry e : ifd) {
+            buf.putShort((short) e.mTag);
+            buf.putShort((short) e.mType);
+            buf.putInt(e.count());
+            if (e.extraLength() > 0) {
+                buf.putInt(dataOffset);
+                dataOffset += e.extraLength();
+            } else if (e.mData != null) {
+                buf.put(e.mData);
+                for (int i = e.mData.length; i < 4; i++) {
+                    buf.put((byte) 0);
+                }
+            } else if (e.mType == TYPE_SHORT) {
+                buf.putShort((short) e.mValue);
+                buf.putShort((short) 0);
+            } else {
+                buf.putInt(e.mValue);
+            }
+        }
+        /* No next IFD */
+        buf.putInt(0);
+        for (Entry e : ifd) {
+            if (e.extraLength() > 0) {
+                buf.put(e.mData);
+                if ((e.mData.length & 1) != 0) {
+                    buf.put((byte) 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the APP1 segment for a width*height image, copying date, flash,
+     * make, model and orientation from the EXIF of artPath when present.
+     */
+    static byte[] buildApp1(String artPath, int width, int height) {
+        String dateTime = null;
+        String flash = null;
+        String make = null;
+        String model = null;
+        String orientation = null;
+        if (artPath != null) {
+            try {
+                ExifInterface oldexif = new ExifInterface(artPath);
+                dateTime = oldexif.getAttribute(ExifInterface.TAG_DATETIME);
+                flash = oldexif.getAttribute(ExifInterface.TAG_FLASH);
+                make = oldexif.getAttribute(ExifInterface.TAG_MAKE);
+                model = oldexif.getAttribute(ExifInterface.TAG_MODEL);
+                orientation = oldexif.getAttribute(ExifInterface.TAG_ORIENTATION);
+            } catch (IOException e) {
+                Log.e(TAG, "buildApp1: exception " + e);
+            }
+        }
+
+        /* Entries must be sorted by tag */
+        ArrayList<Entry> ifd0 = new ArrayList<Entry>();
+        ArrayList<Entry> exifIfd = new ArrayList<Entry>();
+        ifd0.add(new Entry(TAG_IMAGE_WIDTH, TYPE_LONG, width, null));
+        ifd0.add(new Entry(TAG_IMAGE_LENGTH, TYPE_LONG, height, null));
+        addAscii(ifd0, TAG_MAKE, make);
+        addAscii(ifd0, TAG_MODEL, model);
+        addShort(ifd0, TAG_ORIENTATION, orientation);
+        addAscii(ifd0, TAG_DATETIME, dateTime);
+        addShort(exifIfd, TAG_FLASH, flash);
+
+        /* TIFF header is 8 bytes, IFD0 follows it and the Exif IFD follows IFD0 */
+        int exifIfdOffset = 0;
+        if (!exifIfd.isEmpty()) {
+            ifd0.add(new Entry(TAG_EXIF_IFD, TYPE_LONG, 0, null));
+            exifIfdOffset = 8 + ifdLength(ifd0);
+            ifd0.set(ifd0.size() - 1, new Entry(TAG_EXIF_IFD, TYPE_LONG, exifIfdOffset, null));
+        }
+        int tiffLength = 8 + ifdLength(ifd0) + (exifIfd.isEmpty() ? 0 : ifdLength(exifIfd));
+
+        ByteBuffer buf = ByteBuffer.allocate(4 + EXIF_ID.length + tiffLength);
+        buf.put((byte) 0xff);
+        buf.put((byte) MARKER_APP1);
+        buf.putShort((short) (2 + EXIF_ID.length + tiffLength));
+        buf.put(EXIF_ID);
+        /* Big endian TIFF header */
+        buf.put((byte) 'M');
+        buf.put((byte) 'M');
+        buf.putShort((short) 42);
+        buf.putInt(8);
+        writeIfd(buf, ifd0, 8);
+        if (!exifIfd.isEmpty()) {
+            writeIfd(buf, exifIfd, exifIfdOffset);
+        }
+        return buf.array();
+    }
+
+    /**
+     * Passes a JPEG stream through, writing the given APP1 segment right
+     * after SOI and dropping a leading JFIF APP0 segment.
+     */
+    static final class JfifToExifOutputStream extends FilterOutputStream {
+        private static final int STATE_SOI_FF = 0;
+        private static final int STATE_SOI = 1;
+        private static final int STATE_MARKER_FF = 2;
+        private static final int STATE_MARKER = 3;
+        private static final int STATE_LENGTH_HI = 4;
+        private static final int STATE_LENGTH_LO = 5;
+        private static final int STATE_SKIP = 6;
+        private static final int STATE_PASS = 7;
+
+        private final byte[] mApp1;
+        private int mState = STATE_SOI_FF;
+        private int mSkip;
+
+        JfifToExifOutputStream(OutputStream out, byte[] app1) {
+            super(out);
+            mApp1 = app1;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            b &= 0xff;
+            switch (mState) {
+                case STATE_SOI_FF:
+                    mState = (b == 0xff) ? STATE_SOI : STATE_PASS;
+                    if (mState == STATE_PASS) {
+                        out.write(b);
+                    }
+                    break;
+                case STATE_SOI:
+                    out.write(0xff);
+                    out.write(b);
+                    if (b == MARKER_SOI) {
+                        out.write(mApp1);
+                        mState = STATE_MARKER_FF;
+                    } else {
+                        mState = STATE_PASS;
+                    }
+                    break;
+                case STATE_MARKER_FF:
+                    if (b == 0xff) {
+                        mState = STATE_MARKER;
+                    } else {
+                        out.write(b);
+                        mState = STATE_PASS;
+                    }
+                    break;
+                case STATE_MARKER:
+                    if (b == MARKER_APP0) {
+                        mState = STATE_LENGTH_HI;
+                    } else {
+                        out.write(0xff);
+                        out.write(b);
+                        mState = STATE_PASS;
+                    }
+                    break;
+                case STATE_LENGTH_HI:
+                    mSkip = b << 8;
+                    mState = STATE_LENGTH_LO;
+                    break;
+                case STATE_LENGTH_LO:
+                    /* Segment length includes the two length bytes */
+                    mSkip = (mSkip | b) - 2;
+                    mState = (mSkip > 0) ? STATE_SKIP : STATE_PASS;
+                    break;
+                case STATE_SKIP:
+                    if (--mSkip == 0) {
+                        mState = STATE_PASS;
+                    }
+                    break;
+                default:
+                    out.write(b);
+                    break;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0 && mState != STATE_PASS) {
+                write(b[off++]);
+                len--;
+            }
+            if (len > 0) {
+                out.write(b, off, len);
+            }
+        }
+    }
+}
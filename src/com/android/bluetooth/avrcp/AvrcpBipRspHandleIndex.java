@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2015, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *           * Redistributions of source code must retain the above copyright
+ *             notice, this list of conditions and the following disclaimer.
+ *           * Redistributions in binary form must reproduce the above
+ *           * copyright notice, this list of conditions and the following
+ *             disclaimer in the documentation and/or other materials provided
+ *             with the distribution.
+ *           * Neither the name of The Linux Foundation nor the names of its
+ *             contributors may be used to endorse or promote products derived
+ *             from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Album name to BIP image handle index, with lookups in both directions.
+ *
+ * Handles are allocated sequentially and persisted together with the art
+ * file path and modification time they were issued for, so an album keeps
+ * its handle across connections and service restarts and a head unit can
+ * keep using the art it already downloaded. When the art of an album
+ * changes the album gets a new handle, so the head unit fetches it again.
+ * The MediaStore album id of an entry is only held in memory and resolved
+ * again after a restart. The next handle to issue is persisted as well, so
+ * the handle of a pruned album is not issued again to another album.
+ */
+final class AvrcpBipRspHandleIndex {
+    private static final String TAG = "AvrcpBipRspHandleIndex";
+    private static final boolean V = AvrcpBipRsp.V;
+
+    private static final String PREFS_NAME = "avrcp_bip_art_handles";
+    /* Keeps the next handle to issue, cannot clash with an album name from MediaStore */
+    private static final String NEXT_HANDLE_KEY = "\0next_handle";
+    /* Image handles are 7 digits */
+    static final int MAX_IMG_HANDLE = 10000000;
+
+    static final class Entry {
+        final String mAlbum;
+        final String mImgHandle;
+        /* -1 until the album is resolved against MediaStore in this run */
+        final long mAlbumId;
+        final String mArtPath;
+        final long mArtModified;
+
+        private Entry(String album, String imgHandle, long albumId, String artPath,
+                long artModified) {
+            mAlbum = album;
+            mImgHandle = imgHandle;
+            mAlbumId = albumId;
+            mArtPath = artPath;
+            mArtModified = artModified;
+        }
+
+        /** True if the album id and art of this entry are known. */
+        boolean isResolved() {
+            return mAlbumId >= 0;
+        }
+
+        /** True if the art file is gone or was rewritten since the handle was issued. */
+        boolean isArtChanged() {
+            return mArtModified != new File(mArtPath).lastModified();
+        }
+
+        private boolean isSameArt(String artPath, long artModified) {
+            return mArtPath.equals(artPath) && mArtModified == artModified;
+        }
+
+        /* Persisted as "handle|modified|path" */
+        private String toPref() {
+            return Integer.parseInt(mImgHandle) + "|" + mArtModified + "|" + mArtPath;
+        }
+
+        private static Entry fromPref(String album, Object value) {
+            if (!(value instanceof String)) {
+                return null;
+            }
+            String[] fields = ((String) value).split("\\|", 3);
+            if (fields.length != 3) {
+                return null;
+            }
+            try {
+                return new Entry(album, formatHandle(Integer.parseInt(fields[0])), -1,
+                        fields[2], Long.parseLong(fields[1]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+    private final HashMap<String, Entry> mByAlbum = new HashMap<String, Entry>();
+    private final HashMap<String, Entry> mByHandle = new HashMap<String, Entry>();
+    private int mNextHandle;
+
+    AvrcpBipRspHandleIndex(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        ArrayList<String> invalid = new ArrayList<String>();
+        int maxHandle = -1;
+        for (Map.Entry<String, ?> pref : mPrefs.getAll().entrySet()) {
+            if (NEXT_HANDLE_KEY.equals(pref.getKey())) {
+                continue;
+            }
+            Entry entry = Entry.fromPref(pref.getKey(), pref.getValue());
+            if (entry == null) {
+                invalid.add(pref.getKey());
+                continue;
+            }
+            mByAlbum.put(entry.mAlbum, entry);
+            mByHandle.put(entry.mImgHandle, entry);
+            maxHandle = Math.max(maxHandle, Integer.parseInt(entry.mImgHandle));
+        }
+        /* Index written before the next handle was persisted: continue after the highest */
+        mNextHandle = mPrefs.getInt(NEXT_HANDLE_KEY, (maxHandle + 1) % MAX_IMG_HANDLE);
+        if (!invalid.isEmpty()) {
+            SharedPreferences.Editor editor = mPrefs.edit();
+            for (String album : invalid) {
+                editor.remove(album);
+            }
+            editor.apply();
+        }
+        if (V) Log.v(TAG, "loaded " + mByAlbum.size() + " handles");
+    }
+
+    private static String formatHandle(int handle) {
+        return String.format("%07d", handle);
+    }
+
+    synchronized Entry getByAlbum(String album) {
+        return mByAlbum.get(album);
+    }
+
+    synchronized Entry getByHandle(String imgHandle) {
+        return mByHandle.get(imgHandle);
+    }
+
+    /**
+     * Records the resolved art of album. A handle is allocated and persisted
+     * the first time the album is seen, and again whenever its art path or
+     * modification time differs from what the current handle was issued for.
+     */
+    synchronized Entry put(String album, long albumId, String artPath) {
+        long artModified = new File(artPath).lastModified();
+        Entry old = mByAlbum.get(album);
+        boolean newHandle = (old == null || !old.isSameArt(artPath, artModified));
+        String imgHandle;
+        if (!newHandle) {
+            imgHandle = old.mImgHandle;
+        } else {
+            if (old != null) {
+                mByHandle.remove(old.mImgHandle);
+            }
+            imgHandle = formatHandle(allocateHandle());
+            if (V) Log.v(TAG, "new handle " + imgHandle + " for album " + album);
+        }
+        Entry entry = new Entry(album, imgHandle, albumId, artPath, artModified);
+        mByAlbum.put(album, entry);
+        mByHandle.put(imgHandle, entry);
+        if (newHandle) {
+            /* apply() so the Avrcp handler never waits for the disk write */
+            mPrefs.edit().putString(album, entry.toPref())
+                    .putInt(NEXT_HANDLE_KEY, mNextHandle).apply();
+        }
+        return entry;
+    }
+
+    /**
+     * Drops the entries of albums that are no longer in MediaStore or whose
+     * art changed, given the current album name -> art path mapping. Called
+     * after the media library was rebuilt.
+     */
+    synchronized void prune(Map<String, String> artByAlbum) {
+        SharedPreferences.Editor editor = null;
+        Iterator<Entry> it = mByAlbum.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            String artPath = artByAlbum.get(entry.mAlbum);
+            if (artPath != null && entry.mArtPath.equals(artPath) && !entry.isArtChanged()) {
+                continue;
+            }
+            it.remove();
+            mByHandle.remove(entry.mImgHandle);
+            if (editor == null) {
+                editor = mPrefs.edit();
+            }
+            editor.remove(entry.mAlbum);
+        }
+        if (editor != null) {
+            editor.apply();
+        }
+        if (V) Log.v(TAG, "prune: " + mByAlbum.size() + " handles left");
+    }
+
+    private int allocateHandle() {
+        for (int i = 0; i < MAX_IMG_HANDLE; i++) {
+            int handle = mNextHandle;
+            mNextHandle = (mNextHandle + 1) % MAX_IMG_HANDLE;
+            if (!mByHandle.containsKey(formatHandle(handle))) {
+                return handle;
+            }
+        }
+        /* All handles in use, start over */
+        Log.w(TAG, "handle space exhausted, clearing index");
+        mByAlbum.clear();
+        mByHandle.clear();
+        mPrefs.edit().clear().apply();
+        mNextHandle = 1;
+        return 0;
+    }
+
+    synchronized int size() {
+        return mByAlbum.size();
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2015, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *           * Redistributions of source code must retain the above copyright
+ *             notice, this list of conditions and the following disclaimer.
+ *           * Redistributions in binary form must reproduce the above
+ *           * copyright notice, this list of conditions and the following
+ *             disclaimer in the documentation and/or other materials provided
+ *             with the distribution.
+ *           * Neither the name of The Linux Foundation nor the names of its
+ *             contributors may be used to endorse or promote products derived
+ *             from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Disk backed LRU cache of encoded cover art for the BIP responder.
+ *
+ * Entries are the exact bytes sent over OBEX for a given album art, size
+ * and encoding, so repeated GetLinkedThumbnail/GetImage requests do not
+ * decode and re-encode the album art again. The cache lives in the app
+ * cache directory, survives restarts and is capped by total size.
+ */
+public class AvrcpBipRspImgCache {
+    private static final String TAG = "AvrcpBipRspImgCache";
+    private static final boolean V = AvrcpBipRsp.V;
+
+    private static final String CACHE_DIR = "bip_cover_art";
+    private static final String TMP_SUFFIX = ".tmp";
+    /* Total size of encoded images kept on disk */
+    static final long MAX_CACHE_BYTES = 4 * 1024 * 1024;
+
+    private final File mDir;
+    private final LinkedHashMap<String, Long> mEntries =
+            new LinkedHashMap<String, Long>(64, 0.75f, true);
+    private long mSize;
+    private Handler mWorker;
+
+    /* Statistics for dump */
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    public AvrcpBipRspImgCache(Context context) {
+        mDir = new File(context.getCacheDir(), CACHE_DIR);
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.e(TAG, "Unable to create " + mDir);
+        }
+        loadIndex();
+    }
+
+    /**
+     * Key of an encoded image. The art file modification time is part of the
+     * key so a replaced album art never hits a stale entry.
+     */
+    static String getKey(long albumId, String artPath, int width, int height,
+            String encoding) {
+        long modified = (artPath != null) ? new File(artPath).lastModified() : 0;
+        return albumId + "_" + modified + "_" + width + "x" + height + "." + encoding;
+    }
+
+    /* Rebuild the LRU order from the files left by a previous run, oldest first */
+    private synchronized void loadIndex() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+            }
+        });
+        for (File f : files) {
+            if (f.getName().endsWith(TMP_SUFFIX)) {
+                f.delete();
+                continue;
+            }
+            mEntries.put(f.getName(), f.length());
+            mSize += f.length();
+        }
+        trimToSize(MAX_CACHE_BYTES);
+        if (V) Log.v(TAG, "loaded " + mEntries.size() + " entries, " + mSize + " bytes");
+    }
+
+    public synchronized boolean contains(String key) {
+        return mEntries.containsKey(key);
+    }
+
+    /** Returns the size of the cached entry for key, or -1 if not cached. */
+    public synchronized long length(String key) {
+        Long length = mEntries.get(key);
+        return (length != null) ? length : -1;
+    }
+
+    /** Opens the cached entry for key, or returns null on a miss. */
+    public synchronized InputStream openInputStream(String key) {
+        if (mEntries.get(key) == null) {
+            mMisses++;
+            return null;
+        }
+        try {
+            InputStream in = new FileInputStream(new File(mDir, key));
+            mHits++;
+            return in;
+        } catch (FileNotFoundException e) {
+            Log.w(TAG, "openInputStream: dropping " + key + ": " + e);
+            remove(key);
+            mMisses++;
+            return null;
+        }
+    }
+
+    /** Starts a new entry for key, or returns null if it cannot be created. */
+    public Writer openWriter(String key) {
+        try {
+            return new Writer(key, File.createTempFile(key, TMP_SUFFIX, mDir));
+        } catch (IOException e) {
+            Log.w(TAG, "openWriter: unable to create " + key + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Stream writing one cache entry. Write errors never propagate, so the
+     * writer can be fed alongside the OBEX stream; a failed entry is dropped.
+     */
+    public final class Writer extends OutputStream {
+        private final String mKey;
+        private final File mTmp;
+        private final FileOutputStream mOut;
+        private long mLength;
+        private boolean mFailed;
+        private boolean mDone;
+
+        private Writer(String key, File tmp) throws IOException {
+            mKey = key;
+            mTmp = tmp;
+            mOut = new FileOutputStream(tmp);
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (mFailed || mDone) {
+                return;
+            }
+            if (mLength + len > MAX_CACHE_BYTES) {
+                mFailed = true;
+                return;
+            }
+            try {
+                mOut.write(b, off, len);
+                mLength += len;
+            } catch (IOException e) {
+                Log.w(TAG, "write: " + mKey + ": " + e);
+                mFailed = true;
+            }
+        }
+
+        /** Publishes the entry in the cache. */
+        public void commit() {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                Log.w(TAG, "commit: " + mKey + ": " + e);
+                mFailed = true;
+            }
+            if (mFailed) {
+                mTmp.delete();
+                return;
+            }
+            commitEntry(mKey, mTmp, mLength);
+        }
+
+        /** Drops the entry, no-op once committed. */
+        public void abort() {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                Log.w(TAG, "abort: exception in closing file");
+            }
+            mTmp.delete();
+        }
+
+        @Override
+        public void close() {
+            abort();
+        }
+    }
+
+    private synchronized void commitEntry(String key, File tmp, long length) {
+        remove(key);
+        if (!tmp.renameTo(new File(mDir, key))) {
+            Log.w(TAG, "commitEntry: unable to store " + key);
+            tmp.delete();
+            return;
+        }
+        mEntries.put(key, length);
+        mSize += length;
+        trimToSize(MAX_CACHE_BYTES);
+    }
+
+    private void remove(String key) {
+        Long length = mEntries.remove(key);
+        if (length != null) {
+            mSize -= length;
+            new File(mDir, key).delete();
+        }
+    }
+
+    private void trimToSize(long maxSize) {
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mSize > maxSize && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            mSize -= eldest.getValue();
+            new File(mDir, eldest.getKey()).delete();
+            mEvictions++;
+        }
+    }
+
+    public synchronized long size() {
+        return mSize;
+    }
+
+    /** Runs task on the low priority fill thread. */
+    public synchronized void post(Runnable task) {
+        if (mWorker == null) {
+            HandlerThread thread = new HandlerThread("BluetoothAvrcpBipImgCache",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mWorker = new Handler(thread.getLooper());
+        }
+        mWorker.post(task);
+    }
+
+    public synchronized void stop() {
+        if (mWorker != null) {
+            mWorker.removeCallbacksAndMessages(null);
+            mWorker.getLooper().quit();
+            mWorker = null;
+        }
+    }
+
+    public synchronized String getStats() {
+        return mEntries.size() + " entries, " + mSize + "/" + MAX_CACHE_BYTES + " bytes, " +
+                mHits + " hits, " + mMisses + " misses, " + mEvictions + " evictions";
+    }
+}
@@ -42,9 +42,11 @@ import android.os.RemoteException;
 import android.text.format.DateUtils;
 import android.util.Log;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.List;
 import java.io.OutputStream;
 
 import javax.obex.HeaderSet;
@@ -64,6 +66,8 @@ public class AvrcpBipRspObexServer extends ServerRequestHandler {
 
     private Handler mCallback = null;
     private Context mContext = null;
+    private AvrcpBipRspImgCache mImgCache = null;
+    private AvrcpBipRspHandleIndex mHandleIndex = null;
     private static AvrcpBipRspParser mAvrcpBipRspParser;
     private static boolean mAborted;
     private static boolean mConnected;
@@ -97,9 +101,12 @@ public class AvrcpBipRspObexServer extends ServerRequestHandler {
      */
     public static final int IMG_DESCRIPTOR = 0x71;
 
-    public AvrcpBipRspObexServer(Context context, Handler callback) {
+    public AvrcpBipRspObexServer(Context context, Handler callback,
+            AvrcpBipRspImgCache imgCache, AvrcpBipRspHandleIndex handleIndex) {
         mContext = context;
         mCallback = callback;
+        mImgCache = imgCache;
+        mHandleIndex = handleIndex;
         mAvrcpBipRspParser = null;
     }
 
@@ -150,7 +157,7 @@ public class AvrcpBipRspObexServer extends ServerRequestHandler {
             Log.e(TAG,"Exception during onConnect:", e);
             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
-        mAvrcpBipRspParser = new AvrcpBipRspParser(mContext);
+        mAvrcpBipRspParser = new AvrcpBipRspParser(mContext, mImgCache, mHandleIndex);
         if (D) Log.d(TAG, "onConnect(): returning OBEX_HTTP_OK");
         mConnected = true;
         mAborted = false;
@@ -254,6 +261,14 @@ public class AvrcpBipRspObexServer extends ServerRequestHandler {
         }
     }
 
+    public void prefetchImgThumbs(List<String> albumNames) {
+        if (mAvrcpBipRspParser == null) {
+            if (V) Log.v(TAG, "prefetchImgThumbs: mAvrcpBipRspParser = null");
+            return;
+        }
+        mAvrcpBipRspParser.prefetchImgThumbs(albumNames);
+    }
+
     public String getImgHandle(String albumName) {
 
         if (D) Log.v(TAG, "getImageHandle: albumName = " + albumName);
@@ -346,10 +361,16 @@ public class AvrcpBipRspObexServer extends ServerRequestHandler {
 
     }
 
+    /* The encoders emit many small writes; collect them so every write to
+     * the OBEX stream fills one packet */
+    private static OutputStream openImgOutputStream(Operation op) throws IOException {
+        return new BufferedOutputStream(op.openOutputStream(), op.getMaxPacketSize());
+    }
+
     private int getImgThumbRsp(Operation op, String imgHandle) {
         OutputStream outStream = null;
         try {
-            outStream = op.openOutputStream();
+            outStream = openImgOutputStream(op);
         } catch (IOException e) {
             Log.w(TAG,"getImgThumbRsp: IOException" +
                     " - sending OBEX_HTTP_BAD_REQUEST Exception:", e);
@@ -374,7 +395,7 @@ public class AvrcpBipRspObexServer extends ServerRequestHandler {
     private int getImgRsp(Operation op, String imgHandle, String imgDescXmlString) {
         OutputStream outStream = null;
         try {
-            outStream = op.openOutputStream();
+            outStream = openImgOutputStream(op);
         } catch (IOException e) {
             Log.w(TAG,"getImgRsp: IOException" +
                     " - sending OBEX_HTTP_BAD_REQUEST Exception:", e);
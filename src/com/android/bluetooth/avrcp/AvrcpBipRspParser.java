@@ -44,11 +44,8 @@ import java.io.FileNotFoundException;
 import java.io.UnsupportedEncodingException;
 import android.content.ContentUris;
 import android.content.ContentResolver;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.Random;
 import java.util.HashMap;
 import android.content.Context;
 import java.io.IOException;
@@ -65,14 +62,16 @@ import android.graphics.YuvImage;
 import android.graphics.ImageFormat;
 import android.graphics.Rect;
 import java.io.ByteArrayOutputStream;
-import android.os.Environment;
-import android.media.ExifInterface;
 import java.util.Objects;
-import android.graphics.Color;
 import android.graphics.ImageFormat;
 import android.graphics.Rect;
 import android.graphics.YuvImage;
 import java.lang.NumberFormatException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import android.os.SystemClock;
 
 public class AvrcpBipRspParser {
     private final String TAG = "AvrcpBipRspParser";
@@ -80,45 +79,34 @@ public class AvrcpBipRspParser {
     private static final boolean D = true;
     private static final boolean V = AvrcpBipRsp.V;
     private Context mContext;
-    private static HashMap<String, String> mArtHandleMap = new HashMap<String, String>();
-    private static HashMap<String, AvrcpBipRspCoverArtAttributes> mCoverArtAttributesMap =
-        new HashMap<String, AvrcpBipRspCoverArtAttributes>();
-    private static long mAlbumId = -1;
+    /* Filled from the Avrcp browse lanes and read by the OBEX server thread */
+    private static ConcurrentHashMap<String, AvrcpBipRspCoverArtAttributes>
+            mCoverArtAttributesMap =
+            new ConcurrentHashMap<String, AvrcpBipRspCoverArtAttributes>();
     private static final String mAlbumUri = "content://media/external/audio/albumart";
-    private static String mArtPath;
     private static int BIP_THUMB_WIDTH = 200;
     private static int BIP_THUMB_HEIGHT = 200;
     private static int MIN_SUPPORTED_WIDTH = 100;
     private static int MIN_SUPPORTED_HEIGHT = 100;
     private static int MAX_SUPPORTED_WIDTH = 1280;
     private static int MAX_SUPPORTED_HEIGHT = 1080;
-    private static int MAX_IMG_HANDLE = 10000000;
     private static int COMPRESSION_QUALITY_HIGH = 75;
-    /* Constants used for converting RGB -> YUV */
-    private static final int COEFF1 = 19595;
-    private static final int COEFF2 = 38470;
-    private static final int COEFF3 = 7471;
-    private static final int COEFF4 = -11059;
-    private static final int COEFF5 = -21709;
-    private static final int COEFF6 = 32768;
-    private static final int COEFF7 = 32768;
-    private static final int COEFF8 = -27439;
-    private static final int COEFF9 = -5329;
-    /* Tmp path for storing file before compressing and sending to obex.
-     * This file is deleted after the operation */
-    private String mTmpFilePath = Environment.getExternalStorageDirectory() +
-                "/tmpBtBip.jpg";
-
-    public AvrcpBipRspParser(Context context) {
+    /* Cache encoding of the linked thumbnail, which carries an EXIF header */
+    private static final String THUMB_ENCODING = "THUMB";
+    private AvrcpBipRspImgCache mImgCache;
+    private AvrcpBipRspHandleIndex mHandleIndex;
+    /* Limits of one cover art prefetch batch */
+    private static final long PREFETCH_CPU_BUDGET_MS = 500;
+    private static final long PREFETCH_CACHE_BUDGET = AvrcpBipRspImgCache.MAX_CACHE_BYTES / 4;
+    private final AtomicInteger mPrefetchSeq = new AtomicInteger();
+    private static final AtomicLong mPrefetchedBytes = new AtomicLong();
+
+    public AvrcpBipRspParser(Context context, AvrcpBipRspImgCache imgCache,
+            AvrcpBipRspHandleIndex handleIndex) {
         mContext = context;
-        mArtHandleMap.clear();
+        mImgCache = imgCache;
+        mHandleIndex = handleIndex;
         mCoverArtAttributesMap.clear();
-         /* Delete the tmp file if exist */
-        File f = new File(mTmpFilePath);
-        if (f != null && f.isFile() && f.exists()) {
-            // delete the file now, may be due to battery removal or some exception
-            f.delete();
-        }
     }
 
     private class AvrcpBipRspCoverArtAttributes {
@@ -177,35 +165,6 @@ public class AvrcpBipRspParser {
         }
     };
 
-    private void rgb2yuv(int rgb, byte[] convArray) {
-        int a = Color.red(rgb);
-        int b = Color.green(rgb);
-        int c = Color.blue(rgb);
-        convArray[0] = (byte) ((COEFF1 * a + COEFF2 * b + COEFF3 * c) >> 16);
-        convArray[1] = (byte) (((COEFF4 * a + COEFF5 * b + COEFF6 * c) >> 16) + 128);
-        convArray[2] = (byte) (((COEFF7 * a + COEFF8 * b + COEFF9 * c) >> 16) + 128);
-    }
-
-    private byte[] convertToYuv(int[] rgb, int w, int h) {
-        byte[] convArray = new byte[w * h * ImageFormat.getBitsPerPixel(ImageFormat.YUY2)];
-        byte[] col0 = new byte[3];
-        byte[] co11 = new byte[3];
-        for (int i = 0; i < h; ++i) {
-            for (int j = 0; j < w; j += 2) {
-                int id = i * w + j;
-                rgb2yuv(rgb[id], col0);
-                rgb2yuv(rgb[id + 1], co11);
-                int index = id / 2 * 4;
-                convArray[index] = col0[0];
-                convArray[index + 1] = col0[1];
-                convArray[index + 2] = co11[0];
-                convArray[index + 3] = col0[2];
-           }
-        }
-
-        return convArray;
-    }
-
     private Bitmap getScaledBitmap(long album_id, int w, int h) {
         ContentResolver res = mContext.getContentResolver();
 
@@ -263,138 +222,60 @@ public class AvrcpBipRspParser {
         return null;
     }
 
-    private String getArtHandleFromAlbum (String AlbumName) {
-        String artHandle = null;
-
+    /* Query the album id and art path of albumName and record them in the
+     * handle index. Returns null if the album has no art */
+    private AvrcpBipRspHandleIndex.Entry resolveAlbumArt(String albumName) {
         String where = MediaStore.Audio.Media.ALBUM + "=?";
 
-        String whereVal [] = { AlbumName };
+        String whereVal [] = { albumName };
 
         String orderBy = MediaStore.Audio.Albums.DEFAULT_SORT_ORDER;
 
+        String[] projection = { MediaStore.Audio.Albums._ID, MediaStore.Audio.Albums.ALBUM_ART };
+
         Cursor cursor = null;
+        AvrcpBipRspHandleIndex.Entry entry = null;
 
-        Log.d(TAG, "Enter getArtHandleFromAlbum");
+        Log.d(TAG, "Enter resolveAlbumArt");
         try {
             cursor = mContext.getContentResolver().query(
-            MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI, null,
+            MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI, projection,
             where, whereVal, orderBy);
 
-            if (D) Log.v(TAG, "getArtHandleFromAlbum");
             if (cursor != null && cursor.moveToFirst()) {
-                int mAlbumArtIndex;
-                int mAlbumIndex;
-                int mArtistIndex;
-                int mAlbumIdIndex;
-                int mNumOfSongsIndex;
-                mAlbumArtIndex = cursor.getColumnIndexOrThrow(MediaStore.Audio.Albums.ALBUM_ART);
-                mArtPath = cursor.getString(mAlbumArtIndex);
-                if (V) Log.v(TAG, "artPath = " + mArtPath);
-                if (mArtPath != null)
-                    artHandle = mArtPath.substring(mArtPath.lastIndexOf("/") + 1);
-                mAlbumIndex = cursor.getColumnIndexOrThrow(MediaStore.Audio.Albums.ALBUM);
-                String album = cursor.getString(mAlbumIndex);
-                if (V) Log.v(TAG, "album = " + album);
-                mArtistIndex = cursor.getColumnIndexOrThrow(MediaStore.Audio.Albums.ARTIST);
-                String atrist = cursor.getString(mArtistIndex);
-                if (V) Log.v(TAG, "artist = " + atrist);
-                mAlbumId = cursor.getLong(0);
-                if (V) Log.v(TAG, "albumId = " + mAlbumId);
-                mNumOfSongsIndex = cursor.getColumnIndexOrThrow(
-                        MediaStore.Audio.Albums.NUMBER_OF_SONGS);
-                String numOfSongs = cursor.getString(mNumOfSongsIndex);
-                if (V) Log.v(TAG, "numOfSongs = " + numOfSongs);
+                long albumId = cursor.getLong(0);
+                String artPath = cursor.getString(cursor.getColumnIndexOrThrow(
+                        MediaStore.Audio.Albums.ALBUM_ART));
+                if (V) Log.v(TAG, "albumId = " + albumId + " artPath = " + artPath);
+                if (artPath != null)
+                    entry = mHandleIndex.put(albumName, albumId, artPath);
             }
         } catch (IllegalArgumentException e) {
-            if (V) Log.v(TAG, "getArtHandleFromAlbum: exception = " + e);
+            if (V) Log.v(TAG, "resolveAlbumArt: exception = " + e);
         } finally {
             if (cursor != null)
                 cursor.close();
         }
-        if (V) Log.v(TAG, "artHandle = " + artHandle);
-        return artHandle;
-    }
-
-    private String getImgHandleFromArtHandle(String artHandle) {
-        if (V) Log.d(TAG,"getImgHandleFromArtHandle: artHandle = " + artHandle);
-        if (V) Log.v(TAG, "map = " + mArtHandleMap);
-        if (mArtHandleMap.containsKey(artHandle) == false) {
-            Random rnd = new Random();
-            int val = rnd.nextInt(MAX_IMG_HANDLE);
-            String imgHandle = String.format("%07d", val);
-            if (V) Log.v(TAG,"imgHandle = " + imgHandle);
-            AvrcpBipRspCoverArtAttributes coverArtAttributes = new AvrcpBipRspCoverArtAttributes();
-            coverArtAttributes.setAlbumId(mAlbumId);
-            coverArtAttributes.setArtPath(mArtPath);
-            if (V) Log.v(TAG,"getImgHandleFromArtHandle: storing artPath = " +
-                mArtPath + " and albumID = " + mAlbumId+ " for imgHandle = " +
-                imgHandle);
-            mCoverArtAttributesMap.put(imgHandle, coverArtAttributes);
-            mArtHandleMap.put(artHandle, imgHandle);
-            return imgHandle;
-        } else {
-            if (V) Log.v(TAG,"entry already present in map, imgHandle = " +
-                mArtHandleMap.get(artHandle));
-            return mArtHandleMap.get(artHandle);
-        }
+        return entry;
     }
 
-    private void updateExifHeader(String imgHandle, int width, int height) {
-
-        AvrcpBipRspCoverArtAttributes artAttributes;
-        artAttributes = mCoverArtAttributesMap.get(imgHandle);
-
-        if (artAttributes == null)
-            return;
-
-        Log.d(TAG, "Enter updateExifHeader");
-        String artPath = artAttributes.getArtPath();
-
-        if (artPath == null)
+    /* Make the attributes of a resolved entry available to the Get requests */
+    private void addCoverArtAttributes(AvrcpBipRspHandleIndex.Entry entry) {
+        AvrcpBipRspCoverArtAttributes artAttributes =
+                mCoverArtAttributesMap.get(entry.mImgHandle);
+        if (artAttributes != null && artAttributes.getAlbumId() == entry.mAlbumId &&
+                entry.mArtPath.equals(artAttributes.getArtPath()))
             return;
 
-        try {
-            ExifInterface oldexif = new ExifInterface(artPath);
-            ExifInterface newexif = new ExifInterface(mTmpFilePath);
-
-            if (oldexif == null || newexif == null) {
-                Log.e(TAG,"updateExifHeader: oldexif = " + oldexif +
-                    " newexif = " + newexif);
-                return;
-            }
-
-            //Need to update it, with your new height width
-            newexif.setAttribute("ImageWidth", "" + width);
-            newexif.setAttribute("ImageLength", "" + height);
-
-            // copy other fileds if present as it is
-            if (oldexif.getAttribute("DateTime") != null) {
-                newexif.setAttribute("DateTime",
-                        oldexif.getAttribute("DateTime"));
-            }
-            if (oldexif.getAttribute("Flash") != null) {
-                newexif.setAttribute("Flash",
-                        oldexif.getAttribute("Flash"));
-            }
-
-            if (oldexif.getAttribute("Make") != null) {
-                newexif.setAttribute("Make",
-                        oldexif.getAttribute("Make"));
-            }
-            if (oldexif.getAttribute("Model") != null) {
-                newexif.setAttribute("Model",
-                        oldexif.getAttribute("Model"));
-            }
-            if (oldexif.getAttribute("Orientation") != null) {
-                newexif.setAttribute("Orientation",
-                        oldexif.getAttribute("Orientation"));
-            }
-            newexif.saveAttributes();
-        } catch (IOException e) {
-            Log.e(TAG,"readImgProperties: exception" + e);
-        }
-        Log.d(TAG, "Exit updateExifHeader");
-     }
+        AvrcpBipRspCoverArtAttributes coverArtAttributes = new AvrcpBipRspCoverArtAttributes();
+        coverArtAttributes.setAlbumId(entry.mAlbumId);
+        coverArtAttributes.setArtPath(entry.mArtPath);
+        if (V) Log.v(TAG,"addCoverArtAttributes: storing artPath = " +
+            entry.mArtPath + " and albumID = " + entry.mAlbumId + " for imgHandle = " +
+            entry.mImgHandle);
+        mCoverArtAttributesMap.put(entry.mImgHandle, coverArtAttributes);
+        prefillImgCache(entry.mAlbumId, entry.mArtPath);
+    }
 
     private void readImgProperties(String imgHandle) {
         if (D) Log.d(TAG,"readImgProperties");
@@ -633,97 +514,260 @@ public class AvrcpBipRspParser {
         return imgDes;
     }
 
-    public boolean getImgThumb(OutputStream out, String imgHandle) {
-        OutputStream outStream = null;
-        boolean retVal = false;
-        FileOutputStream tmp = null;
-        FileInputStream tmp1 = null;
+    /* Encode the BIP thumbnail into out: 200*200 JPEG in YCC422 sampling with
+     * the JFIF header replaced by an EXIF header carrying the new pixel size */
+    private boolean encodeImgThumb(long albumId, String artPath, OutputStream out)
+            throws IOException {
+        if (D) Log.d(TAG,"encodeImgThumb: getScaledBitmap +");
+        Bitmap bm = getScaledBitmap(albumId, BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT);
+        if (D) Log.d(TAG,"encodeImgThumb: getScaledBitmap -");
+        if (bm == null)
+            return false;
 
-        if (mCoverArtAttributesMap.get(imgHandle) == null) {
-            Log.w(TAG, "getImgThumb: imageHandle =" +  imgHandle + " is not in hashmap");
+        try {
+            int[] pixelArray = new int[BIP_THUMB_WIDTH * BIP_THUMB_HEIGHT];
+            // Copy pixel data from the Bitmap into integer pixelArray
+            bm.getPixels(pixelArray, 0, BIP_THUMB_WIDTH, 0, 0, BIP_THUMB_WIDTH,
+                BIP_THUMB_HEIGHT);
+            byte[] yuvArray = AvrcpBipRspYuvConverter.convert(pixelArray, BIP_THUMB_WIDTH,
+                    BIP_THUMB_HEIGHT);
+            /* Convert Pixel Array to YuvImage */
+            YuvImage yuvImg = new YuvImage(yuvArray, ImageFormat.YUY2,
+                        BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT, null);
+            OutputStream exifOut = new AvrcpBipRspExif.JfifToExifOutputStream(out,
+                    AvrcpBipRspExif.buildApp1(artPath, BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT));
+            if (D) Log.d(TAG,"encodeImgThumb: compress +");
+            /* Compress YuvImage in YCC422 sampling using JPEG compression */
+            boolean retVal = yuvImg.compressToJpeg(
+                    new Rect(0, 0, BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT),
+                    COMPRESSION_QUALITY_HIGH, exifOut);
+            if (D) Log.d(TAG,"encodeImgThumb: compress -");
+            exifOut.flush();
+            return retVal;
+        } finally {
+            bm.recycle();
+        }
+    }
+
+    private boolean encodeImg(long albumId, int width, int height,
+            Bitmap.CompressFormat cmpFormat, OutputStream out) throws IOException {
+        if (D) Log.d(TAG,"encodeImg: getScaledBitmap +");
+        Bitmap bm = getScaledBitmap(albumId, width, height);
+        if (D) Log.d(TAG,"encodeImg: getScaledBitmap -");
+        if (bm == null)
             return false;
+
+        try {
+            if (D) Log.d(TAG,"encodeImg: compress +");
+            boolean retVal = bm.compress(cmpFormat, COMPRESSION_QUALITY_HIGH, out);
+            if (D) Log.d(TAG,"encodeImg: compress -");
+            out.flush();
+            return retVal;
+        } finally {
+            bm.recycle();
         }
+    }
 
-        if (D) Log.d(TAG,"getImgThumb: imgHandle = " + imgHandle);
-        long albumId = mCoverArtAttributesMap.get(imgHandle).getAlbumId();
-        if (D) Log.d(TAG,"getImgThumb: getScaledBitmap +");
-        Bitmap bm = getScaledBitmap(albumId, BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT);
-        if (D) Log.d(TAG,"getImgThumb: getScaledBitmap -");
-        if (bm != null) {
-            try {
+    /* Copy a cached image to out, returns false on a cache miss */
+    private boolean sendCachedImg(OutputStream out, String key) throws IOException {
+        InputStream in = (mImgCache != null) ? mImgCache.openInputStream(key) : null;
+        if (in == null)
+            return false;
 
-                int[] pixelArray = new int[BIP_THUMB_WIDTH * BIP_THUMB_HEIGHT];
-                // Copy pixel data from the Bitmap into integer pixelArray
-                bm.getPixels(pixelArray, 0, BIP_THUMB_WIDTH, 0, 0, BIP_THUMB_WIDTH,
-                    BIP_THUMB_HEIGHT);
-                byte[] yuvArray = convertToYuv(pixelArray, BIP_THUMB_WIDTH,
-                        BIP_THUMB_HEIGHT);
-                /* Convert Pixel Array to YuvImage */
-                YuvImage yuvImg = new YuvImage(yuvArray, ImageFormat.YUY2,
-                            BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT, null);
-                // Use temp file as ExifInterface requires absolute path of storage
-                // file to update headers
-                try {
-                    tmp = new FileOutputStream(mTmpFilePath);
-                } catch (FileNotFoundException e) {
-                    Log.w(TAG,"getImgThumb: unable to open tmp File for writing");
-                    return retVal;
-                }
-                if (D) Log.d(TAG,"getImgThumb: compress +");
-                /* Compress YuvImage in YCC422 sampling using JPEG compression */
-                yuvImg.compressToJpeg(new Rect(0, 0, BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT),
-                    COMPRESSION_QUALITY_HIGH, tmp);
-                if (D) Log.d(TAG,"getImgThumb: compress -");
-                tmp.flush();
-                /* replace JFIF header with EXIF header and update new pixel size */
-                updateExifHeader(imgHandle, BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT);
-                /* Copy the new updated header file to OutputStream */
+        try {
+            byte[] buffer = new byte[4096]; // To hold file contents
+            int bytes_read;
+            while ((bytes_read = in.read(buffer)) != -1)
+                out.write(buffer, 0, bytes_read);
+            /* Flush the data to output stream */
+            out.flush();
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    /* Writes every byte to the OBEX stream and to a cache entry */
+    private static class TeeOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        private final OutputStream mCopy;
+
+        TeeOutputStream(OutputStream out, OutputStream copy) {
+            mOut = out;
+            mCopy = copy;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mOut.write(b);
+            mCopy.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mOut.write(b, off, len);
+            mCopy.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+    }
+
+    private void closeImgStream(OutputStream out) {
+        try {
+            out.close();
+        } catch (IOException e) {
+            Log.w(TAG, "closeImgStream: Exception = " + e);
+        }
+    }
+
+    /* Encode the thumbnail of albumId into the cache unless it is there
+     * already. Returns the number of bytes added to the cache */
+    private long fillImgThumb(long albumId, String artPath) throws IOException {
+        String key = AvrcpBipRspImgCache.getKey(albumId, artPath,
+                BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT, THUMB_ENCODING);
+        if (mImgCache.contains(key))
+            return 0;
+
+        AvrcpBipRspImgCache.Writer cacheOut = mImgCache.openWriter(key);
+        if (cacheOut == null)
+            return 0;
+        try {
+            if (encodeImgThumb(albumId, artPath, cacheOut))
+                cacheOut.commit();
+        } finally {
+            cacheOut.abort();
+        }
+        return Math.max(0, mImgCache.length(key));
+    }
+
+    /* Encode the thumbnail and the native size JPEG of a new image handle on
+     * the cache fill thread, so the first request from the remote is served
+     * from the cache */
+    private void prefillImgCache(final long albumId, final String artPath) {
+        if (mImgCache == null || artPath == null)
+            return;
+
+        mImgCache.post(new Runnable() {
+            @Override
+            public void run() {
+                AvrcpBipRspImgCache.Writer cacheOut = null;
                 try {
-                    tmp1 = new FileInputStream(mTmpFilePath);
-                } catch (FileNotFoundException e) {
-                    Log.w(TAG,"getImgThumb: unable to open tmp File for reading");
-                    return retVal;
+                    fillImgThumb(albumId, artPath);
+
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inJustDecodeBounds = true;
+                    BitmapFactory.decodeFile(artPath, options);
+                    if (options.outWidth <= 0 || options.outHeight <= 0)
+                        return;
+                    String key = AvrcpBipRspImgCache.getKey(albumId, artPath, options.outWidth,
+                            options.outHeight, Bitmap.CompressFormat.JPEG.name());
+                    if (!mImgCache.contains(key) &&
+                            (cacheOut = mImgCache.openWriter(key)) != null &&
+                            encodeImg(albumId, options.outWidth, options.outHeight,
+                            Bitmap.CompressFormat.JPEG, cacheOut)) {
+                        cacheOut.commit();
+                    }
+                    if (V) Log.v(TAG, "prefillImgCache: albumId = " + albumId + " done");
+                } catch (IOException e) {
+                    Log.w(TAG, "prefillImgCache: Exception = " + e);
+                } finally {
+                    if (cacheOut != null)
+                        cacheOut.abort();
                 }
-                byte[] buffer = new byte[4096]; // To hold file contents
-                int bytes_read;
-                while ((bytes_read = tmp1.read(buffer)) != -1)
-                    out.write(buffer, 0, bytes_read);
-                /* Flush the data to output stream */
-                out.flush();
-                retVal = true;
-            } catch (Exception e) {
-                Log.w(TAG, "Exception = " + e);
-            } finally {
-                try {
-                    try {
-                        if (tmp != null) {
-                            tmp.close();
-                        }
-                    } catch (IOException e) {
-                        Log.w(TAG,"getImgThumb: exception in closing file");
+            }
+        });
+    }
+
+    /**
+     * Encode the thumbnails of upcoming albums on the cache fill thread, which
+     * runs at background priority. A batch stops early once it used
+     * PREFETCH_CPU_BUDGET_MS of thread CPU time or added PREFETCH_CACHE_BUDGET
+     * bytes, so prefetch never evicts most of the cache, and a newer batch
+     * supersedes one that is still queued.
+     */
+    public void prefetchImgThumbs(final List<String> albumNames) {
+        if (mImgCache == null || albumNames.isEmpty())
+            return;
+
+        final int seq = mPrefetchSeq.incrementAndGet();
+        mImgCache.post(new Runnable() {
+            @Override
+            public void run() {
+                long startCpuMs = SystemClock.currentThreadTimeMillis();
+                long added = 0;
+                int done = 0;
+                for (String albumName : albumNames) {
+                    if (seq != mPrefetchSeq.get()) {
+                        if (V) Log.v(TAG, "prefetchImgThumbs: superseded");
+                        break;
                     }
+                    if (SystemClock.currentThreadTimeMillis() - startCpuMs >
+                            PREFETCH_CPU_BUDGET_MS || added > PREFETCH_CACHE_BUDGET) {
+                        if (D) Log.d(TAG, "prefetchImgThumbs: budget used after " + done +
+                                " albums, " + added + " bytes");
+                        break;
+                    }
+                    AvrcpBipRspHandleIndex.Entry entry = mHandleIndex.getByAlbum(albumName);
+                    if (entry == null || !entry.isResolved())
+                        entry = resolveAlbumArt(albumName);
+                    if (entry == null)
+                        continue;
                     try {
-                        if (tmp1 != null) {
-                            tmp1.close();
-                        }
+                        added += fillImgThumb(entry.mAlbumId, entry.mArtPath);
+                        done++;
                     } catch (IOException e) {
-                        Log.w(TAG,"getImgThumb: exception in closing file");
-                    }
-                    if (out != null) {
-                        out.close();
-                    }
-                    /* Delete the tmp file now */
-                    File f = new File(mTmpFilePath);
-                    if (f != null && f.isFile() && f.exists()) {
-                        if (D) Log.d(TAG, "getImgThumb: File Size = " + f.length());
-                        f.delete();
+                        Log.w(TAG, "prefetchImgThumbs: Exception = " + e);
                     }
-                } catch (IOException e) {
-                    Log.w(TAG, "Exception = " + e);
                 }
+                mPrefetchedBytes.addAndGet(added);
+                if (V) Log.v(TAG, "prefetchImgThumbs: " + done + " albums, " + added + " bytes");
             }
+        });
+    }
+
+    static long getPrefetchedBytes() {
+        return mPrefetchedBytes.get();
+    }
+
+    /* Sends the thumbnail into out, which the caller sizes to the OBEX packet
+     * size. On a cache miss the encoder output goes straight to the remote
+     * while a copy is written to the cache */
+    public boolean getImgThumb(OutputStream out, String imgHandle) {
+        AvrcpBipRspCoverArtAttributes artAttributes = mCoverArtAttributesMap.get(imgHandle);
+        if (artAttributes == null) {
+            Log.w(TAG, "getImgThumb: imageHandle =" +  imgHandle + " is not in hashmap");
+            return false;
         }
-        if (D) Log.d(TAG,"getImg: returning " + retVal);
+
+        if (D) Log.d(TAG,"getImgThumb: imgHandle = " + imgHandle);
+        long albumId = artAttributes.getAlbumId();
+        String artPath = artAttributes.getArtPath();
+        String key = AvrcpBipRspImgCache.getKey(albumId, artPath,
+                BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT, THUMB_ENCODING);
+        boolean retVal = false;
+        AvrcpBipRspImgCache.Writer cacheOut = null;
+        try {
+            if (sendCachedImg(out, key)) {
+                retVal = true;
+            } else {
+                cacheOut = (mImgCache != null) ? mImgCache.openWriter(key) : null;
+                retVal = encodeImgThumb(albumId, artPath,
+                        (cacheOut != null) ? new TeeOutputStream(out, cacheOut) : out);
+                if (retVal && cacheOut != null)
+                    cacheOut.commit();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "getImgThumb: Exception = " + e);
+            retVal = false;
+        } finally {
+            if (cacheOut != null)
+                cacheOut.abort();
+            closeImgStream(out);
+        }
+        if (D) Log.d(TAG,"getImgThumb: returning " + retVal);
         return retVal;
     }
 
@@ -759,8 +803,6 @@ public class AvrcpBipRspParser {
         Bitmap.CompressFormat cmpFormat;
         int width;
         int height;
-        FileOutputStream tmp = null;
-        FileInputStream tmp1 = null;
 
         if (V) Log.v(TAG,"getImg: imgDesc.mPixel = " + imgDesc.mPixel);
         if (imgDesc.mPixel.equals("")) {
@@ -807,88 +849,58 @@ public class AvrcpBipRspParser {
         }
 
         long albumId = mCoverArtAttributesMap.get(imgHandle).getAlbumId();
-        if (D) Log.d(TAG,"getImg: getScaledBitmap +");
-        Bitmap bm = getScaledBitmap(albumId, width, height);
-        if (D) Log.d(TAG,"getImg: getScaledBitmap -");
-        if (bm != null) {
-            try {
-                // Use temp file as ExifInterface requires absolute path of storage
-                // file to update headers
-                try {
-                    tmp = new FileOutputStream(mTmpFilePath);
-                } catch (FileNotFoundException e) {
-                    Log.w(TAG,"getImg: unable to open tmp File for writing");
-                    return retVal;
-                }
-                if (D) Log.d(TAG,"getImg: compress +");
-                bm.compress(cmpFormat, COMPRESSION_QUALITY_HIGH, tmp);
-                if (D) Log.d(TAG,"getImg: compress -");
-                try {
-                    if (tmp != null) {
-                        tmp.flush();
-                        tmp.close();
-                    }
-                } catch (IOException e) {
-                     Log.e(TAG,"getImg: exception in closing file");
-                     return retVal;
-                }
-                File f = new File(mTmpFilePath);
-                if (f != null && f.isFile() && f.exists()) {
-                    if (D) Log.d(TAG, "File Size = " + f.length());
-                    /* check if the size of compressed file is within range of maxsize */
-                    if (imgDesc.mMaxSize != null &&
-                        f.length() > Long.valueOf(imgDesc.mMaxSize)) {
-                        Log.w(TAG, "Image size using compression is " +
-                            f.length() + " more than maxsize = " +
-                            imgDesc.mMaxSize + " deleting the file");
-                        f.delete();
-                        return retVal;
-                    }
-                }
-                /* Copy the new updated header file to OutputStream */
-                try {
-                    tmp1 = new FileInputStream(mTmpFilePath);
-                } catch (FileNotFoundException e) {
-                    Log.w(TAG,"getImg: unable to open tmp File for reading");
-                    return retVal;
-                }
-                byte[] buffer = new byte[4096]; // To hold file contents
-                int bytes_read;
-                while ((bytes_read = tmp1.read(buffer)) != -1)
-                    out.write(buffer, 0, bytes_read);
-                /* Flush the data to output stream */
-                out.flush();
+        String artPath = mCoverArtAttributesMap.get(imgHandle).getArtPath();
+        String key = AvrcpBipRspImgCache.getKey(albumId, artPath, width, height,
+                cmpFormat.name());
+        AvrcpBipRspImgCache.Writer cacheOut = null;
+        try {
+            long maxSize = -1;
+            if (imgDesc.mMaxSize != null)
+                maxSize = Long.valueOf(imgDesc.mMaxSize);
+
+            /* check if the size of compressed image is within range of maxsize */
+            long length = (mImgCache != null) ? mImgCache.length(key) : -1;
+            if (maxSize >= 0 && length > maxSize) {
+                Log.w(TAG, "Image size using compression is " + length +
+                    " more than maxsize = " + maxSize);
+            } else if (sendCachedImg(out, key)) {
                 retVal = true;
-            } catch (Exception e) {
-                Log.e(TAG, "Exception = " + e);
-            } finally {
-                try {
-                    try {
-                        if (tmp != null) {
-                            tmp.close();
-                        }
-                    } catch (IOException e) {
-                         Log.e(TAG,"getImg: exception in closing file");
+            } else if (maxSize >= 0) {
+                /* The size must be known before sending, encode in memory */
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                if (encodeImg(albumId, width, height, cmpFormat, bytes)) {
+                    if (D) Log.d(TAG, "File Size = " + bytes.size());
+                    cacheOut = (mImgCache != null) ? mImgCache.openWriter(key) : null;
+                    if (cacheOut != null) {
+                        bytes.writeTo(cacheOut);
+                        cacheOut.commit();
                     }
-                    try {
-                        if (tmp1 != null) {
-                            tmp1.close();
-                        }
-                    } catch (IOException e) {
-                         Log.e(TAG,"getImg: exception in closing file");
+                    if (bytes.size() > maxSize) {
+                        Log.w(TAG, "Image size using compression is " + bytes.size() +
+                            " more than maxsize = " + maxSize);
+                    } else {
+                        bytes.writeTo(out);
+                        out.flush();
+                        retVal = true;
                     }
-                    if (out != null) {
-                        out.close();
-                    }
-                    /* Delete the tmp file now */
-                    File f = new File(mTmpFilePath);
-                    if (f != null && f.isFile() && f.exists()) {
-                        f.delete();
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "Exception = " + e);
                 }
+            } else {
+                cacheOut = (mImgCache != null) ? mImgCache.openWriter(key) : null;
+                retVal = encodeImg(albumId, width, height, cmpFormat,
+                        (cacheOut != null) ? new TeeOutputStream(out, cacheOut) : out);
+                if (retVal && cacheOut != null)
+                    cacheOut.commit();
             }
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "exception while parsing maxsize: " + imgDesc.mMaxSize);
+            retVal = false;
+        } catch (IOException e) {
+            Log.e(TAG, "getImg: Exception = " + e);
+            retVal = false;
+        } finally {
+            if (cacheOut != null)
+                cacheOut.abort();
+            closeImgStream(out);
         }
         if (D) Log.d(TAG,"getImg: returning " + retVal);
         return retVal;
@@ -897,7 +909,14 @@ public class AvrcpBipRspParser {
     public boolean isImgHandleValid(String imgHandle) {
         if (D) Log.d(TAG,"isImgHandleValid: imgHandle = " + imgHandle);
 
-        if (mArtHandleMap.containsValue(imgHandle)) {
+        AvrcpBipRspHandleIndex.Entry entry = mHandleIndex.getByHandle(imgHandle);
+        /* Handles persisted by an earlier run are resolved on first use. The
+         * art file is only checked here, when the remote asks for the image;
+         * changed art gets a new handle and the old one stops being valid */
+        if (entry != null && (!entry.isResolved() || entry.isArtChanged()))
+            entry = resolveAlbumArt(entry.mAlbum);
+        if (entry != null && entry.mImgHandle.equals(imgHandle)) {
+            addCoverArtAttributes(entry);
             if (V) Log.v(TAG,"isImgHandleValid: returning true");
             return true;
         }
@@ -908,17 +927,15 @@ public class AvrcpBipRspParser {
 
     public String getImgHandle(String albumName) {
         if (D) Log.d(TAG,"getImgHandle");
-        try {
-            if (albumName != null) {
-                String artHandle = getArtHandleFromAlbum(albumName);
-                if (artHandle != null) {
-                    String imgHandle = getImgHandleFromArtHandle(artHandle);
-                    if (D) Log.d(TAG,"getImgHandle: imgHandle = " + imgHandle);
-                    return imgHandle;
-                }
+        if (albumName != null) {
+            AvrcpBipRspHandleIndex.Entry entry = mHandleIndex.getByAlbum(albumName);
+            if (entry == null || !entry.isResolved())
+                entry = resolveAlbumArt(albumName);
+            if (entry != null) {
+                addCoverArtAttributes(entry);
+                if (D) Log.d(TAG,"getImgHandle: imgHandle = " + entry.mImgHandle);
+                return entry.mImgHandle;
             }
-        } catch (IllegalArgumentException e) {
-            Log.w(TAG,"getImageHandle: IllegalArgumentException = ", e);
         }
 
         if (D) Log.d(TAG, "getImageHandle: returning null");
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2015, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *           * Redistributions of source code must retain the above copyright
+ *             notice, this list of conditions and the following disclaimer.
+ *           * Redistributions in binary form must reproduce the above
+ *           * copyright notice, this list of conditions and the following
+ *             disclaimer in the documentation and/or other materials provided
+ *             with the distribution.
+ *           * Neither the name of The Linux Foundation nor the names of its
+ *             contributors may be used to endorse or promote products derived
+ *             from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.avrcp;
+
+/**
+ * RGB (ARGB_8888) to YUY2 conversion used for the BIP linked thumbnail.
+ *
+ * The fixed point products of every coefficient with every 8 bit channel
+ * value are precomputed, so each pixel costs table loads and adds only, and
+ * output bytes are written straight into the destination buffer.
+ */
+final class AvrcpBipRspYuvConverter {
+    /* Bytes per pixel of packed YUY2 (Y0 U Y1 V for each pixel pair) */
+    static final int BYTES_PER_PIXEL = 2;
+
+    /* Fixed point (16.16) coefficients of the BT.601 full range transform */
+    private static final int[] Y_R = new int[256];
+    private static final int[] Y_G = new int[256];
+    private static final int[] Y_B = new int[256];
+    private static final int[] U_R = new int[256];
+    private static final int[] U_G = new int[256];
+    private static final int[] U_B = new int[256];
+    private static final int[] V_R = new int[256];
+    private static final int[] V_G = new int[256];
+    private static final int[] V_B = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            Y_R[i] = 19595 * i;
+            Y_G[i] = 38470 * i;
+            Y_B[i] = 7471 * i;
+            U_R[i] = -11059 * i;
+            U_G[i] = -21709 * i;
+            U_B[i] = 32768 * i;
+            V_R[i] = 32768 * i;
+            V_G[i] = -27439 * i;
+            V_B[i] = -5329 * i;
+        }
+    }
+
+    private AvrcpBipRspYuvConverter() {
+    }
+
+    /**
+     * Converts w*h ARGB pixels to YUY2. Chroma of each pixel pair is taken
+     * from the first pixel; for an odd width the last pixel is paired with
+     * itself.
+     */
+    static byte[] convert(int[] rgb, int w, int h) {
+        byte[] yuv = new byte[w * h * BYTES_PER_PIXEL + (w & 1) * h * BYTES_PER_PIXEL];
+        final int stride = (w + (w & 1)) * BYTES_PER_PIXEL;
+        for (int row = 0; row < h; row++) {
+            int src = row * w;
+            int end = src + w;
+            int dst = row * stride;
+            while (src < end) {
+                int p0 = rgb[src];
+                int p1 = (src + 1 < end) ? rgb[src + 1] : p0;
+                src += 2;
+                int r = (p0 >> 16) & 0xff;
+                int g = (p0 >> 8) & 0xff;
+                int b = p0 & 0xff;
+                yuv[dst] = (byte) ((Y_R[r] + Y_G[g] + Y_B[b]) >> 16);
+                yuv[dst + 1] = (byte) (((U_R[r] + U_G[g] + U_B[b]) >> 16) + 128);
+                yuv[dst + 3] = (byte) (((V_R[r] + V_G[g] + V_B[b]) >> 16) + 128);
+                r = (p1 >> 16) & 0xff;
+                g = (p1 >> 8) & 0xff;
+                b = p1 & 0xff;
+                yuv[dst + 2] = (byte) ((Y_R[r] + Y_G[g] + Y_B[b]) >> 16);
+                dst += 4;
+            }
+        }
+        return yuv;
+    }
+}
@@ -0,0 +1,637 @@
+/*
+ * Copyright (c) 2015, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *           * Redistributions of source code must retain the above copyright
+ *             notice, this list of conditions and the following disclaimer.
+ *           * Redistributions in binary form must reproduce the above
+ *           * copyright notice, this list of conditions and the following
+ *             disclaimer in the documentation and/or other materials provided
+ *             with the distribution.
+ *           * Neither the name of The Linux Foundation nor the names of its
+ *             contributors may be used to endorse or promote products derived
+ *             from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The part of the AVRCP browse commands that does not touch JNI: folder
+ * lookups in the media library, item counts, the items of a GetFolderItems
+ * response and the attributes of a GetItemAttributes response, with their
+ * caches. Avrcp passes in the browse state of the device, applies the path
+ * changes returned and sends the results to the remote. Shared by the
+ * browse lanes, the caches are synchronized.
+ */
+final class AvrcpBrowseCommands {
+    private static final boolean DEBUG = false;
+    private static final String TAG = "AvrcpBrowseCommands";
+
+    static final String[] CURSOR_COLS = new String[] {
+                    "audio._id AS _id",
+                    MediaStore.Audio.Media.ARTIST,
+                    MediaStore.Audio.Media.ALBUM,
+                    MediaStore.Audio.Media.TITLE,
+                    MediaStore.Audio.Media.DURATION,
+                    MediaStore.Audio.Media.DATA,
+                    MediaStore.Audio.Media.MIME_TYPE,
+                    MediaStore.Audio.Media.ALBUM_ID,
+                    MediaStore.Audio.Media.ARTIST_ID,
+                    MediaStore.Audio.Media.IS_PODCAST,
+                    MediaStore.Audio.Media.BOOKMARK
+    };
+
+    private final ContentResolver mResolver;
+    private final AvrcpMediaLibrary mMediaLibrary;
+    /* Null when no cover art handles are handed out */
+    private final AvrcpBipRsp mAvrcpBipRsp;
+    private final ItemCountCache mItemCountCache = new ItemCountCache();
+    private final ItemAttrCache mItemAttrCache = new ItemAttrCache();
+
+    AvrcpBrowseCommands(ContentResolver resolver, AvrcpMediaLibrary mediaLibrary,
+            AvrcpBipRsp avrcpBipRsp) {
+        mResolver = resolver;
+        mMediaLibrary = mediaLibrary;
+        mAvrcpBipRsp = avrcpBipRsp;
+    }
+
+    /** ChangePath response, mPathUid is set when a folder was entered. */
+    static final class ChangePathResult {
+        int mStatus = Avrcp.OPERATION_SUCCESSFUL;
+        long mNumItems;
+        String mPathUid;
+    }
+
+    /** GetFolderItems response, in the form getFolderItemsRspNative takes. */
+    static final class FolderItems {
+        int mStatus = Avrcp.OPERATION_SUCCESSFUL;
+        int mNumItems;
+        final int[] mItemType = new int[Avrcp.MAX_BROWSE_ITEM_TO_SEND];
+        final long[] mUid = new long[Avrcp.MAX_BROWSE_ITEM_TO_SEND];
+        final int[] mType = new int[Avrcp.MAX_BROWSE_ITEM_TO_SEND];
+        final byte[] mPlayable = new byte[Avrcp.MAX_BROWSE_ITEM_TO_SEND];
+        final String[] mDisplayName = new String[Avrcp.MAX_BROWSE_ITEM_TO_SEND];
+        final byte[] mNumAtt = new byte[Avrcp.MAX_BROWSE_ITEM_TO_SEND];
+        // Item specific attribute's entry starts from index*8
+        final String[] mAttValues = new String[Avrcp.MAX_BROWSE_ITEM_TO_SEND * 8];
+        final int[] mAttIds = new int[Avrcp.MAX_BROWSE_ITEM_TO_SEND * 8];
+
+        FolderItems() {
+            Arrays.fill(mAttValues, "");
+        }
+    }
+
+    /**
+     * ChangePath down from path into folderUid, for a path below the root
+     * served from the library.
+     */
+    ChangePathResult changePathDown(AvrcpMediaLibrary.Snapshot library, String path,
+            String pathUid, long folderUid) {
+        ChangePathResult result = new ChangePathResult();
+        if (path.equals(Avrcp.PATH_TITLES) || pathUid != null) {
+            // Titles and the content of an album, artist or playlist hold no folders
+            if (path.equals(Avrcp.PATH_PLAYLISTS) || library.getTrack(folderUid) == null)
+                result.mStatus = Avrcp.DOES_NOT_EXIST;
+            else
+                result.mStatus = Avrcp.NOT_A_DIRECTORY;
+        } else {
+            AvrcpMediaLibrary.Folder folder = getLibraryFolder(library, path, folderUid);
+            if (folder == null) {
+                result.mStatus = Avrcp.DOES_NOT_EXIST;
+            } else {
+                result.mNumItems = folder.size();
+                result.mPathUid = String.valueOf(folderUid);
+            }
+        }
+        Log.i(TAG, "Number of items " + result.mNumItems + ", status: " + result.mStatus);
+        return result;
+    }
+
+    /** GetTotalNumberOfItems at a path below the root, served from the library. */
+    long getTotalNumberOfItems(AvrcpMediaLibrary.Snapshot library, String path,
+            String pathUid) {
+        ArrayList<AvrcpMediaLibrary.Folder> folders =
+                getLibraryFolderList(library, path, pathUid);
+        AvrcpMediaLibrary.Folder folder = getLibraryFolderContents(library, path, pathUid);
+        long totalItems = 0;
+        if (folders != null) {
+            totalItems = folders.size();
+        } else if (folder != null) {
+            totalItems = folder.size();
+        }
+        if (DEBUG)
+            Log.v(TAG, "Total No of VFS items from library = " + totalItems);
+        return totalItems;
+    }
+
+    /**
+     * GetFolderItems of reqItems items from start at a path below the root,
+     * served from the library. start must not be negative.
+     */
+    FolderItems getFolderItems(AvrcpMediaLibrary.Snapshot library, String path,
+            String pathUid, long start, long reqItems, byte numAttr, int[] attrs) {
+        FolderItems items = new FolderItems();
+        ArrayList<AvrcpMediaLibrary.Folder> folders =
+                getLibraryFolderList(library, path, pathUid);
+        AvrcpMediaLibrary.Folder folder = getLibraryFolderContents(library, path, pathUid);
+        int folderType = Avrcp.FOLDER_TYPE_MIXED;
+        long availableItems = 0;
+        if (folders != null) {
+            availableItems = folders.size();
+            if (path.equals(Avrcp.PATH_ALBUMS))
+                folderType = Avrcp.FOLDER_TYPE_ALBUMS;
+            else if (path.equals(Avrcp.PATH_ARTISTS))
+                folderType = Avrcp.FOLDER_TYPE_ARTISTS;
+            else if (path.equals(Avrcp.PATH_PLAYLISTS))
+                folderType = Avrcp.FOLDER_TYPE_PLAYLISTS;
+        } else if (folder != null) {
+            availableItems = folder.size();
+        }
+
+        if (start >= availableItems) {
+            Log.i(TAG, "startIteam exceeds the available item index");
+            items.mStatus = Avrcp.RANGE_OUT_OF_BOUNDS;
+            return items;
+        }
+        availableItems = availableItems - start;
+        if (availableItems > Avrcp.MAX_BROWSE_ITEM_TO_SEND)
+            availableItems = Avrcp.MAX_BROWSE_ITEM_TO_SEND;
+        if (reqItems > availableItems)
+            reqItems = availableItems;
+        if (DEBUG)
+            Log.v(TAG, "library reqItems: " + reqItems + " path: " + path);
+
+        int index;
+        for (index = 0; index < reqItems; index++) {
+            int position = (int)(start + index);
+            if (folders != null) {
+                AvrcpMediaLibrary.Folder item = folders.get(position);
+                items.mItemType[index] = Avrcp.TYPE_FOLDER_ITEM;
+                items.mUid[index] = item.id;
+                items.mType[index] = folderType;
+                items.mPlayable[index] = 0;
+                items.mDisplayName[index] = item.name;
+                items.mNumAtt[index] = 0;
+            } else {
+                AvrcpMediaLibrary.Track track = folder.tracks.get(position);
+                items.mItemType[index] = Avrcp.TYPE_MEDIA_ELEMENT_ITEM;
+                items.mUid[index] = track.id;
+                items.mType[index] = Avrcp.MEDIA_TYPE_AUDIO;
+                items.mPlayable[index] = 0;
+                items.mDisplayName[index] = track.title;
+                int validAttrib = 0;
+                for (int attIndex = 0; attIndex < numAttr; attIndex++) {
+                    if ((attrs[attIndex] <= Avrcp.MEDIA_ATTR_MAX) &&
+                                (attrs[attIndex] >= Avrcp.MEDIA_ATTR_MIN)) {
+                        items.mAttValues[(8 * index) + attIndex] =
+                                getAttributeStringFromLibrary(folder, position, attrs[attIndex]);
+                        items.mAttIds[(8 * index) + attIndex] = attrs[attIndex];
+                        validAttrib ++;
+                    }
+                }
+                items.mNumAtt[index] = (byte)validAttrib;
+            }
+        }
+        items.mNumItems = index;
+        return items;
+    }
+
+    /**
+     * GetItemAttributes of uid in the file system or now playing scope,
+     * filling textArray. Answered from the attribute cache when possible.
+     * @return the number of attributes to respond with, 0 on failure
+     */
+    byte getItemAttr(byte scope, long uid, byte numAttr, int[] attrs, Uri mediaUri,
+            String path, String[] textArray) {
+        Cursor cursor = null;
+        try {
+            String cacheKey = scope + "/" + uid + "/" + mediaUri + "/" + path + "/" +
+                    Arrays.toString(attrs);
+            long generation = mMediaLibrary.getGeneration();
+            ItemAttrEntry entry = mItemAttrCache.get(cacheKey, generation);
+            if (entry != null) {
+                for (int i = 0; i < numAttr; ++i) {
+                    if (attrs[i] == Avrcp.MEDIA_ATTR_COVER_ART) {
+                        // Handle depends on the BIP connection, never cached
+                        textArray[i] = getImgHandle(entry.mAlbum);
+                        if (textArray[i] == null)
+                            textArray[i] = new String();
+                    } else {
+                        textArray[i] = entry.mValues[i];
+                    }
+                }
+                return numAttr;
+            }
+            cursor = mResolver.query(mediaUri, CURSOR_COLS,
+                    MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id=" + uid, null, null);
+            if ((cursor == null) || (cursor.getCount() == 0)) {
+                Log.i(TAG, "Invalid track UID");
+                Log.i(TAG, "cursor is " + cursor);
+                if (cursor != null)
+                    Log.i(TAG, "cursor.getCount() " + cursor.getCount());
+                return 0;
+            }
+            cursor.moveToFirst();
+            for (int i = 0; i < numAttr; ++i) {
+                if ((attrs[i] <= Avrcp.MEDIA_ATTR_MAX) && (attrs[i] >= Avrcp.MEDIA_ATTR_MIN)) {
+                    textArray[i] = getAttributeStringFromCursor(cursor, attrs[i], path);
+                    Log.i(TAG, "textArray[" + i + "] = " + textArray[i]);
+                }
+            }
+            mItemAttrCache.put(cacheKey, generation, new ItemAttrEntry(textArray.clone(),
+                    cursor.getString(cursor.getColumnIndexOrThrow(
+                    MediaStore.Audio.Media.ALBUM))));
+            return numAttr;
+        } catch (Exception e) {
+            Log.e(TAG, "Exception " + e);
+            return 0;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private AvrcpMediaLibrary.Folder getLibraryFolder(AvrcpMediaLibrary.Snapshot library,
+            String path, long folderUid) {
+        if (path.equals(Avrcp.PATH_ALBUMS)) {
+            return library.getAlbum(folderUid);
+        } else if (path.equals(Avrcp.PATH_ARTISTS)) {
+            return library.getArtist(folderUid);
+        } else if (path.equals(Avrcp.PATH_PLAYLISTS)) {
+            return library.getPlaylist(folderUid);
+        }
+        return null;
+    }
+
+    /* Folder whose tracks are listed at the path, null when the path lists
+     * folders or the folder is not in the index */
+    AvrcpMediaLibrary.Folder getLibraryFolderContents(AvrcpMediaLibrary.Snapshot library,
+            String path, String pathUid) {
+        if (path.equals(Avrcp.PATH_TITLES)) {
+            return library.titles;
+        }
+        if (pathUid == null) {
+            return null;
+        }
+        return getLibraryFolder(library, path, Long.valueOf(pathUid));
+    }
+
+    /* Folders listed at the path, null when the path lists tracks */
+    ArrayList<AvrcpMediaLibrary.Folder> getLibraryFolderList(
+            AvrcpMediaLibrary.Snapshot library, String path, String pathUid) {
+        if (pathUid != null) {
+            return null;
+        }
+        if (path.equals(Avrcp.PATH_ALBUMS)) {
+            return library.albums;
+        } else if (path.equals(Avrcp.PATH_ARTISTS)) {
+            return library.artists;
+        } else if (path.equals(Avrcp.PATH_PLAYLISTS)) {
+            return library.playlists;
+        }
+        return null;
+    }
+
+    long getNumPlaylistItems() {
+        String key = Avrcp.SCOPE_VIRTUAL_FILE_SYS + "/" + Avrcp.PATH_PLAYLISTS;
+        long generation = mMediaLibrary.getGeneration();
+        Long cached = mItemCountCache.get(key, generation);
+        if (cached != null) {
+            return cached;
+        }
+        long count = queryNumPlaylistItems();
+        if (count < 0) {
+            return 0;
+        }
+        mItemCountCache.put(key, generation, count);
+        return count;
+    }
+
+    private long queryNumPlaylistItems() {
+        Cursor cursor = null;
+        String[] cols = new String[] {
+                MediaStore.Audio.Playlists._ID,
+                MediaStore.Audio.Playlists.NAME
+        };
+        try {
+            cursor = mResolver.query(
+                MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI,
+                cols, MediaStore.Audio.Playlists.NAME + " != ''", null,
+                MediaStore.Audio.Playlists.NAME);
+
+            if ((cursor == null) || (cursor.getCount() == 0)) {
+                return 0;
+            } else {
+                long count = cursor.getCount();
+                return count;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Exception " + e);
+            return -1;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    long getNumItems(String path, String element, Uri mediaUri) {
+        if (path == null || element == null)
+            return 0;
+        String key = Avrcp.SCOPE_VIRTUAL_FILE_SYS + "/" + path + "/" + element + "/" +
+                mediaUri;
+        long generation = mMediaLibrary.getGeneration();
+        Long cached = mItemCountCache.get(key, generation);
+        if (cached != null) {
+            return cached;
+        }
+        long count = queryNumItems(path, element, mediaUri);
+        if (count < 0) {
+            return 0;
+        }
+        mItemCountCache.put(key, generation, count);
+        return count;
+    }
+
+    private long queryNumItems(String path, String element, Uri mediaUri) {
+        Cursor cursor = null;
+        try {
+            cursor = mResolver.query(mediaUri,
+                new String[] {element},
+                MediaStore.Audio.Media.IS_MUSIC + "=1", null,
+                element);
+            if ((cursor == null) || (cursor.getCount() == 0)) {
+                return 0;
+            } else if (path.equals(Avrcp.PATH_TITLES)) {
+                long count = cursor.getCount();
+                return count;
+            } else if (path.equals(Avrcp.PATH_ALBUMS) || path.equals(Avrcp.PATH_ARTISTS)){
+                long elemCount = 0;
+                cursor.moveToFirst();
+                long count = cursor.getCount();
+                long prevElem = 0;
+                long curElem = 0;
+                int elemColumn = cursor.getColumnIndexOrThrow(element);
+                while (count > 0) {
+                    curElem = cursor.getLong(elemColumn);
+                    if (DEBUG)
+                        Log.v(TAG, "curElem "+ curElem + "preElem " + prevElem);
+                    if (curElem != prevElem) {
+                        elemCount++;
+                    }
+                    prevElem = curElem;
+                    cursor.moveToNext();
+                    count--;
+                }
+                Log.i(TAG, "element Count is "+ elemCount);
+                return elemCount;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Exception " + e);
+            return -1;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return 0;
+    }
+
+    String getAttributeStringFromCursor(Cursor cursor, int attrId, String path) {
+        String attrStr = "<unknown>";
+        switch (attrId) {
+            case Avrcp.MEDIA_ATTR_TITLE:
+                attrStr = cursor.getString(cursor.getColumnIndexOrThrow(
+                                        MediaStore.Audio.Media.TITLE));
+                break;
+            case Avrcp.MEDIA_ATTR_ARTIST:
+                attrStr = cursor.getString(cursor.getColumnIndexOrThrow(
+                                        MediaStore.Audio.Media.ARTIST));
+                break;
+            case Avrcp.MEDIA_ATTR_ALBUM:
+                attrStr = cursor.getString(cursor.getColumnIndexOrThrow(
+                                        MediaStore.Audio.Media.ALBUM));
+                break;
+            case Avrcp.MEDIA_ATTR_PLAYING_TIME:
+                attrStr = cursor.getString(cursor.getColumnIndexOrThrow(
+                                        MediaStore.Audio.Media.DURATION));
+                break;
+            case Avrcp.MEDIA_ATTR_TRACK_NUM:
+                if (path.equals(Avrcp.PATH_PLAYLISTS)) {
+                    attrStr = cursor.getString(cursor.getColumnIndexOrThrow(
+                                    MediaStore.Audio.Playlists.Members._ID));
+                } else {
+                    attrStr = String.valueOf(cursor.getLong(
+                                cursor.getColumnIndexOrThrow("_id")));
+                }
+                break;
+            case Avrcp.MEDIA_ATTR_NUM_TRACKS:
+                attrStr = String.valueOf(cursor.getCount());
+                break;
+            case Avrcp.MEDIA_ATTR_GENRE:
+                attrStr = "<unknown>"; // GENRE is not supported
+                break;
+            case Avrcp.MEDIA_ATTR_COVER_ART:
+                //Fetch CoverArtHandle for this song from AvrcpBip.
+                attrStr = getImgHandle(
+                        cursor.getString(cursor.getColumnIndexOrThrow(
+                        MediaStore.Audio.Media.ALBUM)));
+                break;
+            default:
+                Log.v(TAG, "getAttributeStringFromCursor: wrong attribute: attrId = "
+                                                                            + attrId);
+                break;
+        }
+        if (attrStr == null) {
+            attrStr = new String();
+        }
+        if (DEBUG)
+            Log.v(TAG, "getAttributeStringFromCursor: attrId = "
+                    + attrId + " str = " + attrStr);
+        return attrStr;
+    }
+
+    private String getAttributeStringFromLibrary(AvrcpMediaLibrary.Folder folder, int position,
+            int attrId) {
+        return getAttributeStringFromTrack(folder.tracks.get(position),
+                folder.getTrackNumber(position), folder.size(), attrId);
+    }
+
+    String getAttributeStringFromTrack(AvrcpMediaLibrary.Track track, long trackNumber,
+            int numTracks, int attrId) {
+        String attrStr = "<unknown>";
+        switch (attrId) {
+            case Avrcp.MEDIA_ATTR_TITLE:
+                attrStr = track.title;
+                break;
+            case Avrcp.MEDIA_ATTR_ARTIST:
+                attrStr = track.artist;
+                break;
+            case Avrcp.MEDIA_ATTR_ALBUM:
+                attrStr = track.album;
+                break;
+            case Avrcp.MEDIA_ATTR_PLAYING_TIME:
+                attrStr = track.duration;
+                break;
+            case Avrcp.MEDIA_ATTR_TRACK_NUM:
+                attrStr = String.valueOf(trackNumber);
+                break;
+            case Avrcp.MEDIA_ATTR_NUM_TRACKS:
+                attrStr = String.valueOf(numTracks);
+                break;
+            case Avrcp.MEDIA_ATTR_GENRE:
+                attrStr = "<unknown>"; // GENRE is not supported
+                break;
+            case Avrcp.MEDIA_ATTR_COVER_ART:
+                attrStr = getImgHandle(track.album);
+                break;
+            default:
+                Log.v(TAG, "getAttributeStringFromTrack: wrong attribute: attrId = "
+                                                                            + attrId);
+                break;
+        }
+        if (attrStr == null) {
+            attrStr = new String();
+        }
+        return attrStr;
+    }
+
+    private String getImgHandle(String albumName) {
+        return (mAvrcpBipRsp != null) ? mAvrcpBipRsp.getImgHandle(albumName) : null;
+    }
+
+    /** Drops the cached item attributes, once a uid may refer to another item. */
+    void invalidateItemAttrs() {
+        mItemAttrCache.invalidate();
+    }
+
+    String getItemCountCacheStats() {
+        return mItemCountCache.getStats();
+    }
+
+    String getItemAttrCacheStats() {
+        return mItemAttrCache.getStats();
+    }
+
+    /* Folder item counts keyed by scope and path. Entries are only valid for
+     * the MediaStore generation they were computed at, any change notified by
+     * MediaStore drops the whole cache. Shared by the browse lanes. */
+    static final class ItemCountCache {
+        private final HashMap<String, Long> mCounts = new HashMap<String, Long>();
+        private long mGeneration = -1;
+        long mHits;
+        long mMisses;
+
+        synchronized Long get(String key, long generation) {
+            if (generation != mGeneration) {
+                mCounts.clear();
+                mGeneration = generation;
+            }
+            Long count = mCounts.get(key);
+            if (count != null) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+            return count;
+        }
+
+        synchronized void put(String key, long generation, long count) {
+            if (generation == mGeneration) {
+                mCounts.put(key, count);
+            }
+        }
+
+        synchronized String getStats() {
+            return "hits: " + mHits + ", misses: " + mMisses;
+        }
+    }
+
+    static final class ItemAttrEntry {
+        final String[] mValues;
+        final String mAlbum;
+
+        ItemAttrEntry(String[] values, String album) {
+            mValues = values;
+            mAlbum = album;
+        }
+    }
+
+    /* Bounded LRU of GetItemAttributes responses keyed by scope, uid, media
+     * Uri, path and requested attribute list. Anything that can change what
+     * a uid refers to (MediaStore changes, now playing content or browsed
+     * player changes) invalidates the whole cache. */
+    static final class ItemAttrCache {
+        private static final int MAX_ENTRIES = 256;
+        private final LinkedHashMap<String, ItemAttrEntry> mEntries =
+                new LinkedHashMap<String, ItemAttrEntry>(MAX_ENTRIES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ItemAttrEntry> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+        private long mGeneration = -1;
+        long mHits;
+        long mMisses;
+        long mInvalidations;
+
+        synchronized ItemAttrEntry get(String key, long generation) {
+            if (generation != mGeneration) {
+                mEntries.clear();
+                mGeneration = generation;
+            }
+            ItemAttrEntry entry = mEntries.get(key);
+            if (entry != null) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+            return entry;
+        }
+
+        synchronized void put(String key, long generation, ItemAttrEntry entry) {
+            if (generation == mGeneration) {
+                mEntries.put(key, entry);
+            }
+        }
+
+        synchronized void invalidate() {
+            mEntries.clear();
+            mInvalidations++;
+        }
+
+        synchronized String getStats() {
+            long total = mHits + mMisses;
+            return mEntries.size() + "/" + MAX_ENTRIES + " entries, " + mHits + " hits, " +
+                    mMisses + " misses (" + ((total == 0) ? 0 : (mHits * 100 / total)) +
+                    "% hit rate), " + mInvalidations + " invalidations";
+        }
+    }
+}
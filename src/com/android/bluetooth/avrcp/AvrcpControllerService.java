@@ -33,6 +33,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
+import android.util.LruCache;
 import android.media.AudioManager;
 import com.android.bluetooth.a2dpsink.A2dpSinkService;
 import com.android.bluetooth.btservice.ProfileService;
@@ -58,10 +59,25 @@ public class AvrcpControllerService extends ProfileService {
  *  Messages handled by mHandler
  */
 
+    /* Now playing tracks whose MediaMetadata is kept built */
+    private static final int METADATA_CACHE_SIZE = 64;
+
     RemoteDevice mAvrcpRemoteDevice;
     RemoteMediaPlayers mRemoteMediaPlayers;
     NowPlaying mRemoteNowPlayingList;
 
+    /* MediaMetadata of now playing tracks by track id, so repeated queue and
+     * metadata views are served without rebuilding or asking the target.
+     * An entry is dropped whenever the track it was built from changes. */
+    private final LruCache<Integer, MediaMetadata> mMetaDataCache =
+            new LruCache<Integer, MediaMetadata>(METADATA_CACHE_SIZE);
+
+    /* Latest absolute volume received per device address while its
+     * MESSAGE_PROCESS_SET_ABS_VOL_CMD is still queued, guarded by itself */
+    private final HashMap<String, PendingAbsVolume> mPendingAbsVolumes =
+            new HashMap<String, PendingAbsVolume>();
+    private long mAbsVolCoalesced;
+
     private AvrcpMessageHandler mHandler;
     private static AvrcpControllerService sAvrcpControllerService;
     private static AudioManager mAudioManager;
@@ -118,6 +134,10 @@ public class AvrcpControllerService extends ProfileService {
             mRemoteNowPlayingList.cleanup();
             mRemoteNowPlayingList = null;
         }
+        mMetaDataCache.evictAll();
+        synchronized (mPendingAbsVolumes) {
+            mPendingAbsVolumes.clear();
+        }
     }
     protected boolean stop() {
         if (DBG) Log.d(TAG, "Stop");
@@ -512,15 +532,29 @@ public class AvrcpControllerService extends ProfileService {
                 mRemoteMediaPlayers.getAddressedPlayer().mPlayStatus,
                 mRemoteMediaPlayers.getAddressedPlayer().mPlayTime);
     }
+    /* Adds or replaces a now playing track, dropping metadata built from the
+     * track it replaces */
+    private void addNowPlayingTrack(TrackInfo mTrack) {
+        mRemoteNowPlayingList.addTrack(mTrack);
+        mMetaDataCache.remove((int) mTrack.mItemUid);
+    }
+
     private MediaMetadata getCurrentMetaData(int scope, int trackId) {
         if(DBG) Log.d(TAG,"Enter getCurrentMetaData");
         /* if scope is now playing */
         if(scope == AvrcpControllerConstants.AVRCP_SCOPE_NOW_PLAYING) {
-            if((mRemoteNowPlayingList == null) || (mRemoteNowPlayingList.
-                                                           getTrackFromId(trackId) == null))
+            if(mRemoteNowPlayingList == null)
                 return null;
+            /* A track NowPlaying dropped must not be served from the cache */
             TrackInfo mNowPlayingTrack = mRemoteNowPlayingList.getTrackFromId(trackId);
-            return AvrcpUtils.getMediaMetaData(mNowPlayingTrack);
+            if (mNowPlayingTrack == null)
+                return null;
+            MediaMetadata mMetaData = mMetaDataCache.get(trackId);
+            if (mMetaData == null) {
+                mMetaData = AvrcpUtils.getMediaMetaData(mNowPlayingTrack);
+                mMetaDataCache.put(trackId, mMetaData);
+            }
+            return mMetaData;
         }
         /* if scope is now playing */
         else if(scope == AvrcpControllerConstants.AVRCP_SCOPE_VFS) {
@@ -638,8 +672,10 @@ public class AvrcpControllerService extends ProfileService {
                 else if ((newState == BluetoothProfile.STATE_DISCONNECTED) &&
                         (oldState == BluetoothProfile.STATE_CONNECTED)) /* connection down */
                 {
-                    resetRemoteData();
+                    /* Drop queued messages before resetRemoteData clears the pending
+                     * absolute volumes, so no pending entry outlives its message */
                     mHandler.removeCallbacksAndMessages(null);
+                    resetRemoteData();
                 }
                 /*
                  * Send intent now
@@ -665,14 +701,20 @@ public class AvrcpControllerService extends ProfileService {
                      * for >= 1.4, others songs will have non-zero UID
                      */
                     mTrack.mItemUid = 0;
-                    mRemoteNowPlayingList.addTrack(mTrack);
+                    addNowPlayingTrack(mTrack);
                     mRemoteNowPlayingList.setCurrTrack(mTrack);
                 }
                 break;
             case AvrcpControllerConstants.MESSAGE_PROCESS_SET_ABS_VOL_CMD:
+                PendingAbsVolume pendingAbsVol;
+                synchronized (mPendingAbsVolumes) {
+                    pendingAbsVol = mPendingAbsVolumes.remove((String) msg.obj);
+                }
+                if ((pendingAbsVol == null) || (mAvrcpRemoteDevice == null))
+                    break;
                 mAvrcpRemoteDevice.mAbsVolNotificationState =
                                          AvrcpControllerConstants.DEFER_VOLUME_CHANGE_RSP;
-                setAbsVolume(msg.arg1, msg.arg2);
+                setAbsVolume(pendingAbsVol.mAbsVol, pendingAbsVol.mLabels);
                 break;
             case AvrcpControllerConstants.MESSAGE_PROCESS_REGISTER_ABS_VOL_NOTIFICATION:
                 /* start BroadcastReceiver now */
@@ -692,6 +734,7 @@ public class AvrcpControllerService extends ProfileService {
             case AvrcpControllerConstants.MESSAGE_PROCESS_TRACK_CHANGED:
                 if(mRemoteNowPlayingList != null) {
                     mRemoteNowPlayingList.updateCurrentTrack((TrackInfo)msg.obj);
+                    mMetaDataCache.remove(0);
 
                     if (!mBroadcastMetadata) {
                         Log.d(TAG, "Metadata is not broadcasted, ignoring.");
@@ -720,8 +763,11 @@ public class AvrcpControllerService extends ProfileService {
                                     mRemoteMediaPlayers.getAddressedPlayer().mPlayTime));
                 }
                 if(mRemoteNowPlayingList != null) {
-                   mRemoteNowPlayingList.getCurrentTrack().mTrackLen =
-                                                     data.getInt("songlen");
+                   long songLen = data.getInt("songlen");
+                   if (mRemoteNowPlayingList.getCurrentTrack().mTrackLen != songLen) {
+                       mRemoteNowPlayingList.getCurrentTrack().mTrackLen = songLen;
+                       mMetaDataCache.remove(0);
+                   }
                 }
                 break;
             case AvrcpControllerConstants.MESSAGE_PROCESS_PLAY_STATUS_CHANGED:
@@ -761,12 +807,27 @@ public class AvrcpControllerService extends ProfileService {
         }
     }
 
-    private void setAbsVolume(int absVol, int label)
+    /*
+     * Applies the latest absolute volume of a burst once, and answers every
+     * command of the burst with the volume that was set. The first command of
+     * a connection is answered with the current volume and not applied.
+     */
+    private void setAbsVolume(int absVol, List<Integer> labels)
     {
         int maxVolume = mAudioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC);
         int currIndex = mAudioManager.getStreamVolume(AudioManager.STREAM_MUSIC);
         if(DBG) Log.d(TAG,"Enter setAbsVolume");
-        if (mAvrcpRemoteDevice.mFirstAbsVolCmdRecvd) {
+        int firstLabel = 0;
+        if (!mAvrcpRemoteDevice.mFirstAbsVolCmdRecvd) {
+            mAvrcpRemoteDevice.mFirstAbsVolCmdRecvd = true;
+            int currVol = (currIndex*AvrcpControllerConstants.ABS_VOL_BASE)/maxVolume;
+            Log.d(TAG," SetAbsVol recvd for first time, respond with " + currVol);
+            sendAbsVolRspNative(getByteAddress(mAvrcpRemoteDevice.mBTDevice), currVol,
+                    labels.get(0));
+            firstLabel = 1;
+        }
+        /* absVol is from the last command, which is not the first one here */
+        if (firstLabel < labels.size()) {
             int newIndex = (maxVolume*absVol)/AvrcpControllerConstants.ABS_VOL_BASE;
             Log.d(TAG," setAbsVolume ="+absVol + " maxVol = " + maxVolume + " cur = " + currIndex +
                                               " new = "+newIndex);
@@ -779,13 +840,11 @@ public class AvrcpControllerService extends ProfileService {
                 mAudioManager.setStreamVolume(AudioManager.STREAM_MUSIC, newIndex,
                                                      AudioManager.FLAG_SHOW_UI);
             }
+            for (int i = firstLabel; i < labels.size(); i++) {
+                sendAbsVolRspNative(getByteAddress(mAvrcpRemoteDevice.mBTDevice), absVol,
+                        labels.get(i));
+            }
         }
-        else {
-            mAvrcpRemoteDevice.mFirstAbsVolCmdRecvd = true;
-            absVol = (currIndex*AvrcpControllerConstants.ABS_VOL_BASE)/maxVolume;
-            Log.d(TAG," SetAbsVol recvd for first time, respond with " + absVol);
-        }
-        sendAbsVolRspNative(getByteAddress(mAvrcpRemoteDevice.mBTDevice), absVol, label);
         if(DBG) Log.d(TAG,"Exit setAbsVolume");
     }
 
@@ -898,8 +957,20 @@ public class AvrcpControllerService extends ProfileService {
                 (Utils.getAddressStringFromByte(address));
         if (!mConnectedDevices.contains(device))
             return;
+        synchronized (mPendingAbsVolumes) {
+            PendingAbsVolume pendingAbsVol = mPendingAbsVolumes.get(device.getAddress());
+            if (pendingAbsVol != null) {
+                /* a command is still queued, let it carry this volume instead */
+                pendingAbsVol.mAbsVol = absVol;
+                pendingAbsVol.mLabels.add((int) label);
+                mAbsVolCoalesced++;
+                if(DBG) Log.d(TAG,"Exit handleSetAbsVolume, coalesced");
+                return;
+            }
+            mPendingAbsVolumes.put(device.getAddress(), new PendingAbsVolume(absVol, label));
+        }
         Message msg = mHandler.obtainMessage(
-                AvrcpControllerConstants.MESSAGE_PROCESS_SET_ABS_VOL_CMD, absVol, label);
+                AvrcpControllerConstants.MESSAGE_PROCESS_SET_ABS_VOL_CMD, device.getAddress());
         mHandler.sendMessage(msg);
         if(DBG) Log.d(TAG,"Exit handleSetAbsVolume");
     }
@@ -986,6 +1057,25 @@ public class AvrcpControllerService extends ProfileService {
     @Override
     public void dump(StringBuilder sb) {
         super.dump(sb);
+        if (mRemoteMediaPlayers != null)
+            println(sb, "players: " + mRemoteMediaPlayers.getPlayerCount());
+        if (mRemoteNowPlayingList != null)
+            println(sb, "now playing tracks: " + mRemoteNowPlayingList.getTrackCount());
+        println(sb, "metadata cache: " + mMetaDataCache.toString());
+        synchronized (mPendingAbsVolumes) {
+            println(sb, "absolute volume commands coalesced: " + mAbsVolCoalesced);
+        }
+    }
+
+    /* Absolute volume to apply and the labels of the commands waiting on it */
+    private static class PendingAbsVolume {
+        int mAbsVol;
+        final ArrayList<Integer> mLabels = new ArrayList<Integer>();
+
+        PendingAbsVolume(int absVol, int label) {
+            mAbsVol = absVol;
+            mLabels.add(label);
+        }
     }
 
     private native static void classInitNative();
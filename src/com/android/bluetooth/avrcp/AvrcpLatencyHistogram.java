@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2015, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *           * Redistributions of source code must retain the above copyright
+ *             notice, this list of conditions and the following disclaimer.
+ *           * Redistributions in binary form must reproduce the above
+ *           * copyright notice, this list of conditions and the following
+ *             disclaimer in the documentation and/or other materials provided
+ *             with the distribution.
+ *           * Neither the name of The Linux Foundation nor the names of its
+ *             contributors may be used to endorse or promote products derived
+ *             from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.android.bluetooth.avrcp;
+
+import java.util.Arrays;
+
+/**
+ * Latency histogram with power of two buckets: bucket 0 counts samples
+ * under 1 unit, bucket i samples under 2^i units, and the last bucket
+ * everything slower. Samples are in ms unless another unit is given, the
+ * unit only labels the dump. Not thread safe, callers synchronize.
+ */
+final class AvrcpLatencyHistogram {
+    static final int NUM_BUCKETS = 12;
+
+    private final long[] mBuckets;
+    private final String mUnit;
+    private long mCount;
+    private long mTotal;
+    private long mMax;
+
+    AvrcpLatencyHistogram() {
+        this(NUM_BUCKETS, "ms");
+    }
+
+    AvrcpLatencyHistogram(int numBuckets, String unit) {
+        mBuckets = new long[numBuckets];
+        mUnit = unit;
+    }
+
+    void record(long latency) {
+        if (latency < 0) {
+            latency = 0;
+        }
+        int bucket = 0;
+        while (bucket < mBuckets.length - 1 && latency >= (1L << bucket)) {
+            bucket++;
+        }
+        mBuckets[bucket]++;
+        mCount++;
+        mTotal += latency;
+        mMax = Math.max(mMax, latency);
+    }
+
+    long getCount() {
+        return mCount;
+    }
+
+    long getMax() {
+        return mMax;
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile,
+     * or the max seen for the last bucket.
+     */
+    long getPercentile(int percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (mCount * percentile + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < mBuckets.length - 1; i++) {
+            seen += mBuckets[i];
+            if (seen >= rank) {
+                return 1L << i;
+            }
+        }
+        return mMax;
+    }
+
+    void clear() {
+        Arrays.fill(mBuckets, 0);
+        mCount = 0;
+        mTotal = 0;
+        mMax = 0;
+    }
+
+    @Override
+    public String toString() {
+        if (mCount == 0) {
+            return "no samples";
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("n=").append(mCount)
+                .append(" avg=").append(mTotal / mCount).append(mUnit)
+                .append(" p50<").append(getPercentile(50)).append(mUnit)
+                .append(" p90<").append(getPercentile(90)).append(mUnit)
+                .append(" p99<").append(getPercentile(99)).append(mUnit)
+                .append(" max=").append(mMax).append(mUnit).append(" [");
+        boolean first = true;
+        for (int i = 0; i < mBuckets.length; i++) {
+            if (mBuckets[i] == 0) {
+                continue;
+            }
+            if (!first) {
+                sb.append(' ');
+            }
+            first = false;
+            if (i == mBuckets.length - 1) {
+                sb.append(">=").append(1L << (i - 1));
+            } else {
+                sb.append('<').append(1L << i);
+            }
+            sb.append(':').append(mBuckets[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
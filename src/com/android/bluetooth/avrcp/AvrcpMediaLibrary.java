@@ -0,0 +1,505 @@
+/*
+ * Copyright (c) 2015, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *           * Redistributions of source code must retain the above copyright
+ *             notice, this list of conditions and the following disclaimer.
+ *           * Redistributions in binary form must reproduce the above
+ *           * copyright notice, this list of conditions and the following
+ *             disclaimer in the documentation and/or other materials provided
+ *             with the distribution.
+ *           * Neither the name of The Linux Foundation nor the names of its
+ *             contributors may be used to endorse or promote products derived
+ *             from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * In-memory index of the MediaStore audio library used to serve AVRCP
+ * browsing requests (GetFolderItems, ChangePath, GetTotalNumberOfItems,
+ * PlayItem) without querying the content provider for every command.
+ *
+ * The index is built on a background thread and rebuilt whenever MediaStore
+ * reports a change. Readers always see a complete, immutable snapshot; while
+ * no snapshot is available for the requested Uri the caller is expected to
+ * fall back to querying MediaStore directly.
+ */
+public class AvrcpMediaLibrary {
+    private static final boolean DEBUG = false;
+    private static final String TAG = "AvrcpMediaLibrary";
+
+    private static final int MSG_BUILD = 1;
+    private static final int MSG_CONTENT_CHANGED = 2;
+
+    /* MediaStore tends to send a burst of notifications during a scan,
+     * so rebuild only once things have been quiet for a while */
+    private static final int CONTENT_CHANGE_DELAY_MS = 2000;
+
+    private static final String[] TRACK_COLS = new String[] {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.DURATION,
+            MediaStore.Audio.Media.ALBUM_ID,
+            MediaStore.Audio.Media.ARTIST_ID,
+            MediaStore.Audio.Media.ALBUM_KEY,
+            MediaStore.Audio.Media.ARTIST_KEY
+    };
+
+    private static final String[] PLAYLIST_COLS = new String[] {
+            MediaStore.Audio.Playlists._ID,
+            MediaStore.Audio.Playlists.NAME
+    };
+
+    private static final String[] PLAYLIST_MEMBER_COLS = new String[] {
+            MediaStore.Audio.Playlists.Members._ID,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.DURATION,
+            MediaStore.Audio.Playlists.Members.AUDIO_ID
+    };
+
+    private final Context mContext;
+    private final Listener mListener;
+    private LibraryHandler mHandler;
+    private MediaContentObserver mObserver;
+
+    /* Uri the index is (or is about to be) built for */
+    private volatile Uri mMediaUri;
+    private volatile Snapshot mSnapshot;
+    /* Bumped on every MediaStore change notification */
+    private volatile long mGeneration;
+    private long mBuildCount;
+    private long mLastBuildTimeMs;
+
+    /** A single audio track with the attributes AVRCP hands out. */
+    public static final class Track {
+        public final long id;
+        public final String title;
+        public final String artist;
+        public final String album;
+        public final String duration;
+        public final long albumId;
+        public final long artistId;
+        final String albumKey;
+        final String artistKey;
+
+        Track(long id, String title, String artist, String album, String duration,
+                long albumId, long artistId, String albumKey, String artistKey) {
+            this.id = id;
+            this.title = title;
+            this.artist = artist;
+            this.album = album;
+            this.duration = duration;
+            this.albumId = albumId;
+            this.artistId = artistId;
+            this.albumKey = albumKey;
+            this.artistKey = artistKey;
+        }
+    }
+
+    /**
+     * A browsable folder: an album, artist, playlist or the list of
+     * all titles. For playlists memberIds holds the playlist member _ID of
+     * each entry, which is reported as the track number.
+     */
+    public static final class Folder {
+        public final long id;
+        public final String name;
+        public final ArrayList<Track> tracks = new ArrayList<Track>();
+        long[] memberIds;
+
+        Folder(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public int size() {
+            return tracks.size();
+        }
+
+        public long getTrackNumber(int index) {
+            if (memberIds != null) {
+                return memberIds[index];
+            }
+            return tracks.get(index).id;
+        }
+
+        public boolean contains(long trackId) {
+            for (int i = 0; i < tracks.size(); i++) {
+                if (tracks.get(i).id == trackId) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /** Immutable view of the library at a given generation. */
+    public static final class Snapshot {
+        public final Uri uri;
+        public final long generation;
+        public final Folder titles = new Folder(0, null);
+        public final ArrayList<Folder> albums = new ArrayList<Folder>();
+        public final ArrayList<Folder> artists = new ArrayList<Folder>();
+        public final ArrayList<Folder> playlists = new ArrayList<Folder>();
+        private final HashMap<Long, Track> mTrackById = new HashMap<Long, Track>();
+        private final HashMap<Long, Folder> mAlbumById = new HashMap<Long, Folder>();
+        private final HashMap<Long, Folder> mArtistById = new HashMap<Long, Folder>();
+        private final HashMap<Long, Folder> mPlaylistById = new HashMap<Long, Folder>();
+
+        Snapshot(Uri uri, long generation) {
+            this.uri = uri;
+            this.generation = generation;
+        }
+
+        public Track getTrack(long id) {
+            return mTrackById.get(id);
+        }
+
+        public Folder getAlbum(long id) {
+            return mAlbumById.get(id);
+        }
+
+        public Folder getArtist(long id) {
+            return mArtistById.get(id);
+        }
+
+        public Folder getPlaylist(long id) {
+            return mPlaylistById.get(id);
+        }
+    }
+
+    /** Called on the library thread after the index was rebuilt. */
+    public interface Listener {
+        void onLibraryRebuilt(Snapshot snapshot);
+    }
+
+    public AvrcpMediaLibrary(Context context, Listener listener) {
+        mContext = context;
+        mListener = listener;
+    }
+
+    public void start() {
+        HandlerThread thread = new HandlerThread("BluetoothAvrcpMediaLibrary",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new LibraryHandler(thread.getLooper());
+        mObserver = new MediaContentObserver(mHandler);
+        ContentResolver resolver = mContext.getContentResolver();
+        try {
+            resolver.registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                    true, mObserver);
+            resolver.registerContentObserver(MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI,
+                    true, mObserver);
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to register MediaStore observer", e);
+        }
+        setMediaUri(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI);
+    }
+
+    public void stop() {
+        if (mObserver != null) {
+            try {
+                mContext.getContentResolver().unregisterContentObserver(mObserver);
+            } catch (Exception e) {
+                Log.e(TAG, "Unable to unregister MediaStore observer", e);
+            }
+            mObserver = null;
+        }
+        if (mHandler != null) {
+            mHandler.removeCallbacksAndMessages(null);
+            Looper looper = mHandler.getLooper();
+            if (looper != null) {
+                looper.quit();
+            }
+            mHandler = null;
+        }
+        mSnapshot = null;
+    }
+
+    /**
+     * Returns the current index for the given media Uri, or null if it is
+     * not available yet. Asking for a Uri other than the indexed one
+     * schedules a rebuild for it.
+     */
+    public Snapshot getSnapshot(Uri uri) {
+        if (uri == null || Uri.EMPTY.equals(uri)
+                || !MediaStore.AUTHORITY.equals(uri.getAuthority())) {
+            return null;
+        }
+        Snapshot snapshot = mSnapshot;
+        if (snapshot != null && uri.equals(snapshot.uri)
+                && snapshot.generation == mGeneration) {
+            return snapshot;
+        }
+        if (!uri.equals(mMediaUri)) {
+            setMediaUri(uri);
+        }
+        return null;
+    }
+
+    /** Changes every time MediaStore reports a change to the audio tables. */
+    public long getGeneration() {
+        return mGeneration;
+    }
+
+    private void setMediaUri(Uri uri) {
+        mMediaUri = uri;
+        LibraryHandler handler = mHandler;
+        if (handler != null) {
+            handler.removeMessages(MSG_BUILD);
+            handler.sendEmptyMessage(MSG_BUILD);
+        }
+    }
+
+    private class MediaContentObserver extends ContentObserver {
+        MediaContentObserver(Handler handler) {
+            super(handler);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            if (DEBUG) Log.v(TAG, "MediaStore content changed");
+            mGeneration++;
+            LibraryHandler handler = mHandler;
+            if (handler != null) {
+                handler.removeMessages(MSG_CONTENT_CHANGED);
+                handler.sendEmptyMessageDelayed(MSG_CONTENT_CHANGED, CONTENT_CHANGE_DELAY_MS);
+            }
+        }
+    }
+
+    private final class LibraryHandler extends Handler {
+        LibraryHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_BUILD:
+                case MSG_CONTENT_CHANGED:
+                    removeMessages(MSG_BUILD);
+                    build();
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void build() {
+        Uri uri = mMediaUri;
+        long generation = mGeneration;
+        long startTime = SystemClock.elapsedRealtime();
+        Snapshot snapshot = new Snapshot(uri, generation);
+        try {
+            loadTracks(snapshot);
+            loadPlaylists(snapshot);
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to build media library index", e);
+            mSnapshot = null;
+            return;
+        }
+        mLastBuildTimeMs = SystemClock.elapsedRealtime() - startTime;
+        mBuildCount++;
+        /* A change that raced with the build leaves the snapshot stale, the
+         * pending MSG_CONTENT_CHANGED will rebuild it */
+        mSnapshot = snapshot;
+        Log.i(TAG, "Indexed " + snapshot.titles.size() + " tracks, " +
+                snapshot.albums.size() + " albums, " + snapshot.artists.size() +
+                " artists, " + snapshot.playlists.size() + " playlists in " +
+                mLastBuildTimeMs + "ms");
+        if (mListener != null) {
+            mListener.onLibraryRebuilt(snapshot);
+        }
+    }
+
+    private void loadTracks(Snapshot snapshot) {
+        Cursor cursor = null;
+        try {
+            cursor = mContext.getContentResolver().query(snapshot.uri, TRACK_COLS,
+                    MediaStore.Audio.Media.IS_MUSIC + "=1", null,
+                    MediaStore.Audio.Media.DEFAULT_SORT_ORDER);
+            if (cursor == null) {
+                throw new IllegalStateException("null cursor for " + snapshot.uri);
+            }
+            int idCol = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media._ID);
+            int titleCol = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.TITLE);
+            int artistCol = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST);
+            int albumCol = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM);
+            int durationCol = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DURATION);
+            int albumIdCol = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM_ID);
+            int artistIdCol = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST_ID);
+            int albumKeyCol = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM_KEY);
+            int artistKeyCol = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST_KEY);
+            snapshot.titles.tracks.ensureCapacity(cursor.getCount());
+            while (cursor.moveToNext()) {
+                Track track = new Track(cursor.getLong(idCol), cursor.getString(titleCol),
+                        cursor.getString(artistCol), cursor.getString(albumCol),
+                        cursor.getString(durationCol), cursor.getLong(albumIdCol),
+                        cursor.getLong(artistIdCol), cursor.getString(albumKeyCol),
+                        cursor.getString(artistKeyCol));
+                snapshot.titles.tracks.add(track);
+                snapshot.mTrackById.put(track.id, track);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        /* Albums and artists are listed in key order, tracks inside them keep
+         * the title order since the sort is stable */
+        ArrayList<Track> sorted = new ArrayList<Track>(snapshot.titles.tracks);
+        Collections.sort(sorted, new Comparator<Track>() {
+            @Override
+            public int compare(Track a, Track b) {
+                return compareKeys(a.albumKey, b.albumKey);
+            }
+        });
+        groupTracks(sorted, true, snapshot.albums, snapshot.mAlbumById);
+
+        Collections.sort(sorted, new Comparator<Track>() {
+            @Override
+            public int compare(Track a, Track b) {
+                return compareKeys(a.artistKey, b.artistKey);
+            }
+        });
+        groupTracks(sorted, false, snapshot.artists, snapshot.mArtistById);
+    }
+
+    private static int compareKeys(String a, String b) {
+        if (a == null) {
+            return (b == null) ? 0 : -1;
+        }
+        if (b == null) {
+            return 1;
+        }
+        return a.compareTo(b);
+    }
+
+    private static void groupTracks(List<Track> tracks, boolean byAlbum,
+            ArrayList<Folder> folders, HashMap<Long, Folder> foldersById) {
+        LinkedHashMap<Long, Folder> grouped = new LinkedHashMap<Long, Folder>();
+        for (Track track : tracks) {
+            long id = byAlbum ? track.albumId : track.artistId;
+            Folder folder = grouped.get(id);
+            if (folder == null) {
+                folder = new Folder(id, byAlbum ? track.album : track.artist);
+                grouped.put(id, folder);
+            }
+            folder.tracks.add(track);
+        }
+        folders.addAll(grouped.values());
+        foldersById.putAll(grouped);
+    }
+
+    private void loadPlaylists(Snapshot snapshot) {
+        ContentResolver resolver = mContext.getContentResolver();
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI,
+                    PLAYLIST_COLS, MediaStore.Audio.Playlists.NAME + " != ''", null,
+                    MediaStore.Audio.Playlists.DEFAULT_SORT_ORDER);
+            if (cursor == null) {
+                return;
+            }
+            while (cursor.moveToNext()) {
+                Folder playlist = new Folder(cursor.getLong(0), cursor.getString(1));
+                snapshot.playlists.add(playlist);
+                snapshot.mPlaylistById.put(playlist.id, playlist);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        for (Folder playlist : snapshot.playlists) {
+            Cursor members = null;
+            try {
+                members = resolver.query(
+                        MediaStore.Audio.Playlists.Members.getContentUri("external", playlist.id),
+                        PLAYLIST_MEMBER_COLS, MediaStore.Audio.Media.TITLE + " != ''", null,
+                        MediaStore.Audio.Playlists.Members.DEFAULT_SORT_ORDER);
+                if (members == null) {
+                    continue;
+                }
+                playlist.memberIds = new long[members.getCount()];
+                int i = 0;
+                while (members.moveToNext()) {
+                    long audioId = members.getLong(5);
+                    Track track = snapshot.mTrackById.get(audioId);
+                    if (track == null) {
+                        /* Playlists may reference entries that are not music */
+                        track = new Track(audioId, members.getString(1), members.getString(3),
+                                members.getString(2), members.getString(4), 0, 0, null, null);
+                    }
+                    playlist.memberIds[i++] = members.getLong(0);
+                    playlist.tracks.add(track);
+                }
+            } finally {
+                if (members != null) {
+                    members.close();
+                }
+            }
+        }
+    }
+
+    public void dump(StringBuilder sb) {
+        Snapshot snapshot = mSnapshot;
+        ProfileService.println(sb, "mMediaLibrary uri: " + mMediaUri);
+        ProfileService.println(sb, "mMediaLibrary generation: " + mGeneration +
+                ", builds: " + mBuildCount + ", last build: " + mLastBuildTimeMs + "ms");
+        if (snapshot == null) {
+            ProfileService.println(sb, "mMediaLibrary index: not ready");
+        } else {
+            ProfileService.println(sb, "mMediaLibrary index: generation " +
+                    snapshot.generation + ", " + snapshot.titles.size() + " tracks, " +
+                    snapshot.albums.size() + " albums, " + snapshot.artists.size() +
+                    " artists, " + snapshot.playlists.size() + " playlists");
+        }
+    }
+}
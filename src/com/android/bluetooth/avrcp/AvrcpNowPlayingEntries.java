@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2015, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *           * Redistributions of source code must retain the above copyright
+ *             notice, this list of conditions and the following disclaimer.
+ *           * Redistributions in binary form must reproduce the above
+ *           * copyright notice, this list of conditions and the following
+ *             disclaimer in the documentation and/or other materials provided
+ *             with the distribution.
+ *           * Neither the name of The Linux Foundation nor the names of its
+ *             contributors may be used to endorse or promote products derived
+ *             from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Now playing queue of the addressed player with the attributes of every
+ * entry resolved, kept per remote device.
+ *
+ * When the player reports a new queue only the entries that were not known
+ * before are resolved, first from the media library index and then with
+ * batched MediaStore queries.
+ */
+class AvrcpNowPlayingEntries {
+    private static final boolean DEBUG = false;
+    private static final String TAG = "AvrcpNowPlayingEntries";
+
+    /* Keep IN lists well below the SQLite host parameter limit */
+    private static final int MAX_IN_CLAUSE_ITEMS = 500;
+
+    private static final String[] TRACK_COLS = new String[] {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.DURATION,
+            MediaStore.Audio.Media.ALBUM_ID,
+            MediaStore.Audio.Media.ARTIST_ID
+    };
+
+    private long[] mPlayList = new long[0];
+    private final HashMap<Long, AvrcpMediaLibrary.Track> mTracks =
+            new HashMap<Long, AvrcpMediaLibrary.Track>();
+    private Uri mMediaUri;
+    private long mGeneration = -1;
+
+    /* Statistics for dump */
+    long mUpdates;
+    long mQueries;
+    long mResolved;
+    long mReused;
+
+    /**
+     * Replace the queue with playList and resolve the entries not seen
+     * before. Everything is dropped if the media Uri or the MediaStore
+     * generation changed since the last update.
+     */
+    void update(ContentResolver resolver, Uri uri, long generation,
+            AvrcpMediaLibrary.Snapshot library, long[] playList) {
+        mUpdates++;
+        if (uri == null || !uri.equals(mMediaUri) || generation != mGeneration) {
+            mTracks.clear();
+            mMediaUri = uri;
+            mGeneration = generation;
+        }
+
+        HashSet<Long> queued = new HashSet<Long>(playList.length * 2);
+        for (long uid : playList) {
+            queued.add(uid);
+        }
+        mTracks.keySet().retainAll(queued);
+
+        ArrayList<Long> missing = new ArrayList<Long>();
+        for (Long uid : queued) {
+            if (mTracks.containsKey(uid)) {
+                mReused++;
+                continue;
+            }
+            AvrcpMediaLibrary.Track track = (library != null) ? library.getTrack(uid) : null;
+            if (track != null) {
+                mTracks.put(uid, track);
+                mResolved++;
+            } else {
+                missing.add(uid);
+            }
+        }
+        mPlayList = playList;
+
+        if (uri == null || Uri.EMPTY.equals(uri) || missing.isEmpty()) {
+            return;
+        }
+        for (int from = 0; from < missing.size(); from += MAX_IN_CLAUSE_ITEMS) {
+            int to = Math.min(from + MAX_IN_CLAUSE_ITEMS, missing.size());
+            query(resolver, uri, missing, from, to);
+        }
+        if (DEBUG) Log.v(TAG, "queue of " + playList.length + ", queried " + missing.size());
+    }
+
+    private void query(ContentResolver resolver, Uri uri, ArrayList<Long> uids, int from,
+            int to) {
+        StringBuilder where = new StringBuilder();
+        where.append(MediaStore.Audio.Media.IS_MUSIC + "=1 AND " +
+                MediaStore.Audio.Media._ID + " IN (");
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                where.append(',');
+            }
+            where.append(uids.get(i).longValue());
+        }
+        where.append(')');
+
+        Cursor cursor = null;
+        try {
+            mQueries++;
+            cursor = resolver.query(uri, TRACK_COLS, where.toString(), null, null);
+            if (cursor == null) {
+                return;
+            }
+            while (cursor.moveToNext()) {
+                AvrcpMediaLibrary.Track track = new AvrcpMediaLibrary.Track(cursor.getLong(0),
+                        cursor.getString(1), cursor.getString(2), cursor.getString(3),
+                        cursor.getString(4), cursor.getLong(5), cursor.getLong(6), null, null);
+                mTracks.put(track.id, track);
+                mResolved++;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Exception " + e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    int size() {
+        return mPlayList.length;
+    }
+
+    long getUid(int position) {
+        return mPlayList[position];
+    }
+
+    /** Returns the resolved entry at position, null if MediaStore does not know it. */
+    AvrcpMediaLibrary.Track getTrack(int position) {
+        return mTracks.get(mPlayList[position]);
+    }
+
+    void clear() {
+        mPlayList = new long[0];
+        mTracks.clear();
+        mMediaUri = null;
+        mGeneration = -1;
+    }
+}
@@ -22,10 +22,11 @@ import com.android.bluetooth.Utils;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Provides Bluetooth AVRCP Controller profile, as a service in the Bluetooth application.
@@ -36,14 +37,23 @@ public class NowPlaying {
     private static final boolean DBG = true;
     private static final String TAG = "NowPlaying";
 
+    /* Tracks kept for the remote queue, least recently looked up dropped first */
+    private static final int MAX_TRACKS = 2048;
+
     RemoteDevice mDevice;
     private TrackInfo mCurrTrack;
 
-    private ArrayList<TrackInfo> mNowPlayingList;
+    /* Tracks by item uid, in access order */
+    private LinkedHashMap<Long, TrackInfo> mNowPlayingList;
 
     public NowPlaying(RemoteDevice mRemoteDevice) {
         mDevice = mRemoteDevice;
-        mNowPlayingList = new ArrayList<TrackInfo>();
+        mNowPlayingList = new LinkedHashMap<Long, TrackInfo>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, TrackInfo> eldest) {
+                return size() > MAX_TRACKS;
+            }
+        };
         mCurrTrack = null;
     }
 
@@ -61,7 +71,7 @@ public class NowPlaying {
 
     public void addTrack (TrackInfo mTrack) {
         if(mNowPlayingList != null) {
-            mNowPlayingList.add(mTrack);
+            mNowPlayingList.put((long) mTrack.mItemUid, mTrack);
         }
     }
 
@@ -86,12 +96,11 @@ public class NowPlaying {
     public TrackInfo getTrackFromId(int mTrackId) {
         if(mTrackId == 0)
             return getCurrentTrack();
-        else {
-            for(TrackInfo mTrackInfo: mNowPlayingList) {
-                if(mTrackInfo.mItemUid == mTrackId)
-                    return mTrackInfo;
-            }
-            return null;
-        }
+        else
+            return mNowPlayingList.get((long) mTrackId);
+    }
+
+    public int getTrackCount() {
+        return mNowPlayingList.size();
     }
 }
@@ -22,10 +22,12 @@ import com.android.bluetooth.Utils;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Provides Bluetooth AVRCP Controller profile, as a service in the Bluetooth application.
@@ -36,16 +38,36 @@ public class RemoteMediaPlayers {
     private static final boolean DBG = true;
     private static final String TAG = "RemoteMediaPlayers";
 
+    /* Players kept for the remote, the addressed and browsed ones are never dropped */
+    private static final int MAX_PLAYERS = 64;
+
     RemoteDevice mDevice;
     private PlayerInfo mAddressedPlayer;
     private PlayerInfo mBrowsedPlayer;
-    ArrayList<PlayerInfo> mMediaPlayerList;
+    /* Players by player id, in the order they were added */
+    private LinkedHashMap<Integer, PlayerInfo> mMediaPlayerList;
 
     public RemoteMediaPlayers (RemoteDevice mRemoteDevice) {
         mDevice = mRemoteDevice;
         mAddressedPlayer = null;
         mBrowsedPlayer = null;
-        mMediaPlayerList = new ArrayList<PlayerInfo>();
+        mMediaPlayerList = new LinkedHashMap<Integer, PlayerInfo>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, PlayerInfo> eldest) {
+                if (size() <= MAX_PLAYERS)
+                    return false;
+                /* Drop the eldest player that is neither addressed nor browsed */
+                Iterator<PlayerInfo> it = values().iterator();
+                while (it.hasNext()) {
+                    PlayerInfo player = it.next();
+                    if (player != mAddressedPlayer && player != mBrowsedPlayer) {
+                        it.remove();
+                        break;
+                    }
+                }
+                return false;
+            }
+        };
     }
 
     public void cleanup() {
@@ -60,7 +82,11 @@ public class RemoteMediaPlayers {
      */
     public void addPlayer (PlayerInfo mPlayer) {
         if(mMediaPlayerList != null)
-            mMediaPlayerList.add(mPlayer);
+            mMediaPlayerList.put((int) mPlayer.mPlayerId, mPlayer);
+    }
+
+    public int getPlayerCount() {
+        return mMediaPlayerList.size();
     }
     /*
      * add players and Set AddressedPlayer and BrowsePlayer
@@ -18,6 +18,7 @@ import android.annotation.TargetApi;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.net.Uri.Builder;
 import android.os.ParcelFileDescriptor;
@@ -44,6 +45,7 @@ import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
 import com.android.bluetooth.map.BluetoothMapbMessageMime.MimePart;
 import com.android.bluetooth.mapapi.BluetoothMapContract;
 import com.android.bluetooth.mapapi.BluetoothMapContract.ConversationColumns;
+import com.android.internal.annotations.VisibleForTesting;
 import com.google.android.mms.pdu.CharacterSets;
 import com.google.android.mms.pdu.PduHeaders;
 
@@ -57,9 +59,11 @@ import java.io.UnsupportedEncodingException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.concurrent.atomic.AtomicLong;
 
 @TargetApi(19)
@@ -162,6 +166,24 @@ public class BluetoothMapContent {
     private int mRemoteFeatureMask = BluetoothMapUtils.MAP_FEATURE_DEFAULT_BITMASK;
     private int mMsgListingVersion = BluetoothMapUtils.MAP_MESSAGE_LISTING_FORMAT_V10;
 
+    /* Last message listing of this session, see msgListing() */
+    private ListingCacheEntry mListingCache = null;
+    private int mListingCacheHits = 0;
+    /* A listing cache entry holds the handles up to this many pages past the
+     * requested offset */
+    private static final int LISTING_CACHE_PAGES = 4;
+
+    /* MMS addresses of the message listing being built, see getListingAddressMms() */
+    private HashMap<String, String> mMmsAddresses = null;
+
+    /* Text parts of the MMS messages of the listing page being built, by message id */
+    private HashMap<Long, String> mMmsTextParts = null;
+    private static final int MMS_PART_QUERY_CHUNK = 100;
+
+    /* Used for size and unread queries, where only the number of rows is needed */
+    private static final String[] COUNT_PROJECTION = new String[] { "COUNT(*)" };
+    private static final String[] ID_PROJECTION = new String[] { BaseColumns._ID };
+
     static final String[] SMS_PROJECTION = new String[] {
         BaseColumns._ID,
         Sms.THREAD_ID,
@@ -542,6 +564,12 @@ public class BluetoothMapContent {
 
     private void setRead(BluetoothMapMessageListingElement e, Cursor c,
             FilterInfo fi, BluetoothMapAppParams ap) {
+        boolean read = getRead(c, fi);
+        if (V) Log.d(TAG, "setRead: " + read);
+        e.setRead(read, ((ap.getParameterMask() & MASK_READ) != 0));
+    }
+
+    private boolean getRead(Cursor c, FilterInfo fi) {
         int read = 0;
         if (fi.mMsgType == FilterInfo.TYPE_SMS) {
             read = c.getInt(fi.mSmsColRead);
@@ -551,10 +579,7 @@ public class BluetoothMapContent {
                    fi.mMsgType == FilterInfo.TYPE_IM) {
             read = c.getInt(fi.mMessageColRead);
         }
-        String setread = null;
-
-        if (V) Log.d(TAG, "setRead: " + setread);
-        e.setRead((read==1?true:false), ((ap.getParameterMask() & MASK_READ) != 0));
+        return read == 1;
     }
     private void setConvoRead(BluetoothMapConvoListingElement e, Cursor c,
             FilterInfo fi, BluetoothMapAppParams ap) {
@@ -658,7 +683,7 @@ public class BluetoothMapContent {
                     hasText = "yes";
                 } else {
                     long id = c.getLong(fi.mMmsColId);
-                    String text = getTextPartsMms(mResolver, id);
+                    String text = getMmsText(id);
                     if (text != null && text.length() > 0) {
                         hasText = "yes";
                     } else {
@@ -962,7 +987,7 @@ public class BluetoothMapContent {
                 }
             } else if (fi.mMsgType == FilterInfo.TYPE_MMS) {
                 long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                address = getAddressMms(mResolver, id, MMS_TO);
+                address = getListingAddressMms(id, MMS_TO);
             } else if (fi.mMsgType == FilterInfo.TYPE_EMAIL) {
                 /* Might be another way to handle addresses */
                 address = getRecipientAddressingEmail(e, c, fi);
@@ -991,7 +1016,7 @@ public class BluetoothMapContent {
                 long id = c.getLong(fi.mMmsColId);
                 String phone;
                 if(e.getRecipientAddressing() != null){
-                    phone = getAddressMms(mResolver, id, MMS_TO);
+                    phone = getListingAddressMms(id, MMS_TO);
                 } else {
                     phone = e.getRecipientAddressing();
                 }
@@ -1039,7 +1064,7 @@ public class BluetoothMapContent {
                 }
             } else if (fi.mMsgType == FilterInfo.TYPE_MMS) {
                 long id = c.getLong(fi.mMmsColId);
-                tempAddress = getAddressMms(mResolver, id, MMS_FROM);
+                tempAddress = getListingAddressMms(id, MMS_FROM);
                 address = PhoneNumberUtils.extractNetworkPortion(tempAddress);
                 if(address == null || address.length() < 1){
                     address = tempAddress; // if the number is a service acsii text just use it
@@ -1109,7 +1134,7 @@ public class BluetoothMapContent {
                 long id = c.getLong(fi.mMmsColId);
                 String phone;
                 if(e.getSenderAddressing() != null){
-                    phone = getAddressMms(mResolver, id, MMS_FROM);
+                    phone = getListingAddressMms(id, MMS_FROM);
                 } else {
                     phone = e.getSenderAddressing();
                 }
@@ -1166,26 +1191,30 @@ public class BluetoothMapContent {
     private void setDateTime(BluetoothMapMessageListingElement e, Cursor c,
             FilterInfo fi, BluetoothMapAppParams ap) {
         if ((ap.getParameterMask() & MASK_DATETIME) != 0) {
-            long date = 0;
-            if (fi.mMsgType == FilterInfo.TYPE_SMS) {
-                date = c.getLong(fi.mSmsColDate);
-            } else if (fi.mMsgType == FilterInfo.TYPE_MMS) {
-                /* Use Mms.DATE for all messages. Although contract class states */
-                /* Mms.DATE_SENT are for outgoing messages. But that is not working. */
-                date = c.getLong(fi.mMmsColDate) * 1000L;
-
-                /* int msgBox = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX)); */
-                /* if (msgBox == Mms.MESSAGE_BOX_INBOX) { */
-                /*     date = c.getLong(c.getColumnIndex(Mms.DATE)) * 1000L; */
-                /* } else { */
-                /*     date = c.getLong(c.getColumnIndex(Mms.DATE_SENT)) * 1000L; */
-                /* } */
-            } else if (fi.mMsgType == FilterInfo.TYPE_EMAIL ||
-                       fi.mMsgType == FilterInfo.TYPE_IM) {
-                date = c.getLong(fi.mMessageColDate);
-            }
-            e.setDateTime(date);
+            e.setDateTime(getDateTime(c, fi));
+        }
+    }
+
+    private long getDateTime(Cursor c, FilterInfo fi) {
+        long date = 0;
+        if (fi.mMsgType == FilterInfo.TYPE_SMS) {
+            date = c.getLong(fi.mSmsColDate);
+        } else if (fi.mMsgType == FilterInfo.TYPE_MMS) {
+            /* Use Mms.DATE for all messages. Although contract class states */
+            /* Mms.DATE_SENT are for outgoing messages. But that is not working. */
+            date = c.getLong(fi.mMmsColDate) * 1000L;
+
+            /* int msgBox = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX)); */
+            /* if (msgBox == Mms.MESSAGE_BOX_INBOX) { */
+            /*     date = c.getLong(c.getColumnIndex(Mms.DATE)) * 1000L; */
+            /* } else { */
+            /*     date = c.getLong(c.getColumnIndex(Mms.DATE_SENT)) * 1000L; */
+            /* } */
+        } else if (fi.mMsgType == FilterInfo.TYPE_EMAIL ||
+                   fi.mMsgType == FilterInfo.TYPE_IM) {
+            date = c.getLong(fi.mMessageColDate);
         }
+        return date;
     }
 
 
@@ -1247,7 +1276,7 @@ public class BluetoothMapContent {
                 if (subject == null || subject.length() == 0) {
                     /* Get subject from mms text body parts - if any exists */
                     long id = c.getLong(fi.mMmsColId);
-                    subject = getTextPartsMms(mResolver, id);
+                    subject = getMmsText(id);
                 }
             } else if (fi.mMsgType == FilterInfo.TYPE_EMAIL  ||
                        fi.mMsgType == FilterInfo.TYPE_IM) {
@@ -1265,6 +1294,12 @@ public class BluetoothMapContent {
 
     private void setHandle(BluetoothMapMessageListingElement e, Cursor c,
             FilterInfo fi, BluetoothMapAppParams ap) {
+        long handle = getCpHandle(c, fi);
+        if (V) Log.d(TAG, "setHandle: " + handle );
+        e.setHandle(handle);
+    }
+
+    private long getCpHandle(Cursor c, FilterInfo fi) {
         long handle = -1;
         if (fi.mMsgType == FilterInfo.TYPE_SMS) {
             handle = c.getLong(fi.mSmsColId);
@@ -1274,8 +1309,7 @@ public class BluetoothMapContent {
                    fi.mMsgType == FilterInfo.TYPE_IM) {
             handle = c.getLong(fi.mMessageColId);
         }
-        if (V) Log.d(TAG, "setHandle: " + handle );
-        e.setHandle(handle);
+        return handle;
     }
 
     private BluetoothMapMessageListingElement element(Cursor c, FilterInfo fi,
@@ -1302,41 +1336,22 @@ public class BluetoothMapContent {
         return e;
     }
 
-    /* TODO: Change to use SmsMmsContacts.getContactNameFromPhone() with proper use of
-     *       caching. */
+    /* Resolved through the process-wide contact cache in SmsMmsContacts, work
+     * profile contacts included */
     public static String getContactNameFromPhone(String phone, ContentResolver resolver) {
-        String name = null;
-        //Handle possible exception for empty phone address
-        if (TextUtils.isEmpty(phone)) {
-            return name;
-        }
-
-        Uri uri = Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI,
-                Uri.encode(phone));
-
-        String[] projection = {Contacts._ID, Contacts.DISPLAY_NAME};
-        String selection = Contacts.IN_VISIBLE_GROUP + "=1";
-        String orderBy = Contacts.DISPLAY_NAME + " ASC";
-        Cursor c = null;
-        try {
-            c = resolver.query(uri, projection, selection, null, orderBy);
-            if(c != null) {
-                int colIndex = c.getColumnIndex(Contacts.DISPLAY_NAME);
-                if (c.getCount() >= 1) {
-                    c.moveToFirst();
-                    name = c.getString(colIndex);
-                }
-            }
-        } finally {
-            if(c != null) c.close();
-        }
-        return name;
+        MapContact contact = SmsMmsContacts.lookupContact(phone, resolver, true);
+        return contact != null ? contact.getName() : null;
     }
     /**
      * Get SMS RecipientAddresses for DRAFT folder based on threadId
      *
     */
     static public String getCanonicalAddressSms(ContentResolver r,  int threadId) {
+        String cachedAddress = SmsMmsContacts.getThreadAddress(r, threadId);
+        if (cachedAddress != null) {
+            if (V) Log.v(TAG, "Cached recipientAddress : " + cachedAddress);
+            return cachedAddress;
+        }
        String [] RECIPIENT_ID_PROJECTION = { Threads.RECIPIENT_IDS };
         /*
          1. Get Recipient Ids from Threads.CONTENT_URI
@@ -1398,6 +1413,22 @@ public class BluetoothMapContent {
         return recipientAddress;
      }
 
+    /* MMS addresses looked up while building a message listing, by message id and address
+     * type - the same address is used by the filters and by the address and name fields */
+    private String getListingAddressMms(long id, int type) {
+        HashMap<String, String> addresses = mMmsAddresses;
+        if (addresses == null) {
+            return getAddressMms(mResolver, id, type);
+        }
+        String key = id + ":" + type;
+        if (addresses.containsKey(key)) {
+            return addresses.get(key);
+        }
+        String address = getAddressMms(mResolver, id, type);
+        addresses.put(key, address);
+        return address;
+    }
+
     static public String getAddressMms(ContentResolver r, long id, int type) {
         String selection = new String("msg_id=" + id + " AND type=" + type);
         String uriStr = new String(Mms.CONTENT_URI + "/" + id + "/addr");
@@ -1429,7 +1460,7 @@ public class BluetoothMapContent {
     private boolean matchRecipientMms(Cursor c, FilterInfo fi, String recip) {
         boolean res;
         long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-        String phone = getAddressMms(mResolver, id, MMS_TO);
+        String phone = getListingAddressMms(id, MMS_TO);
         if (phone != null && phone.length() > 0) {
             if (phone.matches(recip)) {
                 if (V) Log.v(TAG, "matchRecipientMms: match recipient phone = " + phone);
@@ -1509,7 +1540,7 @@ public class BluetoothMapContent {
     private boolean matchOriginatorMms(Cursor c, FilterInfo fi, String orig) {
         boolean res;
         long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-        String phone = getAddressMms(mResolver, id, MMS_FROM);
+        String phone = getListingAddressMms(id, MMS_FROM);
         if (phone != null && phone.length() > 0) {
             if (phone.matches(orig)) {
                 if (V) Log.v(TAG, "matchOriginatorMms: match originator phone = " + phone);
@@ -2077,6 +2108,38 @@ public class BluetoothMapContent {
         /* Cache some info used throughout filtering */
         FilterInfo fi = new FilterInfo();
         setFilterInfo(fi);
+
+        mMmsAddresses = new HashMap<String, String>();
+
+        /* While the folder version counter is kept up to date, the ordered handles of
+         * the listing up to a few pages ahead are cached and the following pages are
+         * built from them. Pending content changes may not be counted yet, the cache
+         * is not used then. */
+        ListingCacheEntry cacheEntry = null;
+        if (mMasInstance != null && mMasInstance.isFolderVersionCounterTracked()) {
+            String cacheKey = getListingCacheKey(folderElement, ap);
+            long folderVersion = mMasInstance.getFolderVersionCounter();
+            ListingCacheEntry cached = mListingCache;
+            if (cached != null && cached.mFolderVersion == folderVersion
+                    && cached.mKey.equals(cacheKey)
+                    && cached.covers(ap.getStartOffset(), ap.getMaxListCount())) {
+                if (D) Log.d(TAG, "msgListing: page served from " + cached.mSize
+                        + " cached handles");
+                mListingCacheHits++;
+                buildListingPage(bmList, cached, folderElement, fi, ap);
+                bmList.setHasUnread(cached.mHasUnread);
+                return bmList;
+            }
+            /* The entry holds the matching messages up to a few pages past the offset,
+             * also with address filters as the merge only counts rows matching them */
+            int maxSize = Integer.MAX_VALUE;
+            if (ap.getMaxListCount() > 0) {
+                maxSize = (int) Math.min(Integer.MAX_VALUE, ap.getStartOffset()
+                        + (long) ap.getMaxListCount() * LISTING_CACHE_PAGES);
+            }
+            cacheEntry = new ListingCacheEntry(cacheKey, folderVersion, maxSize);
+        }
+
         Cursor smsCursor = null;
         Cursor mmsCursor = null;
         Cursor emailCursor = null;
@@ -2084,9 +2147,16 @@ public class BluetoothMapContent {
         String limit = "";
         int countNum = ap.getMaxListCount();
         int offsetNum = ap.getStartOffset();
-        if(ap.getMaxListCount()>0){
+        if (cacheEntry != null) {
+            /* The address filters are applied to the queried rows, so any of them
+             * may be skipped - these queries are not limited */
+            if (cacheEntry.mMaxSize != Integer.MAX_VALUE && !hasAddressFilter(ap)) {
+                limit = " LIMIT " + cacheEntry.mMaxSize;
+            }
+        } else if(ap.getMaxListCount()>0){
             limit=" LIMIT "+ (ap.getMaxListCount()+ap.getStartOffset());
         }
+        List<ListingSource> sources = new ArrayList<ListingSource>(4);
         try{
             if (smsSelected(fi, ap) && folderElement.hasSmsMmsContent()) {
                 if(ap.getFilterMessageType() == (BluetoothMapAppParams.FILTER_NO_EMAIL|
@@ -2099,9 +2169,12 @@ public class BluetoothMapContent {
                                                  BluetoothMapAppParams.FILTER_NO_IM)){
                     //set real limit and offset if only this type is used
                     // (only if offset/limit is used)
-                    limit = " LIMIT " + ap.getMaxListCount()+" OFFSET "+ ap.getStartOffset();
-                    if(D) Log.d(TAG, "SMS Limit => "+limit);
-                    offsetNum = 0;
+                    if (cacheEntry == null) {
+                        limit = " LIMIT " + ap.getMaxListCount()
+                                + " OFFSET " + ap.getStartOffset();
+                        if(D) Log.d(TAG, "SMS Limit => "+limit);
+                        offsetNum = 0;
+                    }
                 }
                 fi.mMsgType = FilterInfo.TYPE_SMS;
                 if(ap.getFilterPriority() != 1){ /*SMS cannot have high priority*/
@@ -2110,17 +2183,11 @@ public class BluetoothMapContent {
                     smsCursor = mResolver.query(Sms.CONTENT_URI,
                             SMS_PROJECTION, where, null, Sms.DATE + " DESC" + limit);
                     if (smsCursor != null) {
-                        BluetoothMapMessageListingElement e = null;
                         // store column index so we dont have to look them up anymore (optimization)
                         if(D) Log.d(TAG, "Found " + smsCursor.getCount() + " sms messages.");
                         fi.setSmsColumns(smsCursor);
-                        while (smsCursor.moveToNext()) {
-                            if (matchAddresses(smsCursor, fi, ap)) {
-                                if(V) BluetoothMapUtils.printCursor(smsCursor);
-                                e = element(smsCursor, fi, ap);
-                                bmList.add(e);
-                            }
-                        }
+                        sources.add(new ListingSource(smsCursor, FilterInfo.TYPE_SMS, true,
+                                sources.size()));
                     }
                 }
             }
@@ -2132,9 +2199,12 @@ public class BluetoothMapContent {
                                                  BluetoothMapAppParams.FILTER_NO_IM)){
                     //set real limit and offset if only this type is used
                     //(only if offset/limit is used)
-                    limit = " LIMIT " + ap.getMaxListCount()+" OFFSET "+ ap.getStartOffset();
-                    if(D) Log.d(TAG, "MMS Limit => "+limit);
-                    offsetNum = 0;
+                    if (cacheEntry == null) {
+                        limit = " LIMIT " + ap.getMaxListCount()
+                                + " OFFSET " + ap.getStartOffset();
+                        if(D) Log.d(TAG, "MMS Limit => "+limit);
+                        offsetNum = 0;
+                    }
                 }
                 fi.mMsgType = FilterInfo.TYPE_MMS;
                 String where = setWhereFilter(folderElement, fi, ap);
@@ -2144,17 +2214,11 @@ public class BluetoothMapContent {
                     mmsCursor = mResolver.query(Mms.CONTENT_URI,
                             MMS_PROJECTION, where, null, Mms.DATE + " DESC" + limit);
                     if (mmsCursor != null) {
-                        BluetoothMapMessageListingElement e = null;
                         // store column index so we dont have to look them up anymore (optimization)
                         fi.setMmsColumns(mmsCursor);
                         if(D) Log.d(TAG, "Found " + mmsCursor.getCount() + " mms messages.");
-                        while (mmsCursor.moveToNext()) {
-                            if (matchAddresses(mmsCursor, fi, ap)) {
-                                if(V) BluetoothMapUtils.printCursor(mmsCursor);
-                                e = element(mmsCursor, fi, ap);
-                                bmList.add(e);
-                            }
-                        }
+                        sources.add(new ListingSource(mmsCursor, FilterInfo.TYPE_MMS, true,
+                                sources.size()));
                     }
                 }
             }
@@ -2166,9 +2230,12 @@ public class BluetoothMapContent {
                                                  BluetoothMapAppParams.FILTER_NO_IM)){
                     //set real limit and offset if only this type is used
                     //(only if offset/limit is used)
-                    limit = " LIMIT " + ap.getMaxListCount()+" OFFSET "+ ap.getStartOffset();
-                    if(D) Log.d(TAG, "Email Limit => "+limit);
-                    offsetNum = 0;
+                    if (cacheEntry == null) {
+                        limit = " LIMIT " + ap.getMaxListCount()
+                                + " OFFSET " + ap.getStartOffset();
+                        if(D) Log.d(TAG, "Email Limit => "+limit);
+                        offsetNum = 0;
+                    }
                 }
                 fi.mMsgType = FilterInfo.TYPE_EMAIL;
                 String where = setWhereFilter(folderElement, fi, ap);
@@ -2180,17 +2247,11 @@ public class BluetoothMapContent {
                             BluetoothMapContract.BT_MESSAGE_PROJECTION, where, null,
                             BluetoothMapContract.MessageColumns.DATE + " DESC" + limit);
                     if (emailCursor != null) {
-                        BluetoothMapMessageListingElement e = null;
                         // store column index so we dont have to look them up anymore (optimization)
                         fi.setEmailMessageColumns(emailCursor);
-                        int cnt = 0;
                         if(D) Log.d(TAG, "Found " + emailCursor.getCount() + " email messages.");
-                        while (emailCursor.moveToNext()) {
-                            if(V) BluetoothMapUtils.printCursor(emailCursor);
-                            e = element(emailCursor, fi, ap);
-                            bmList.add(e);
-                        }
-                    //   emailCursor.close();
+                        sources.add(new ListingSource(emailCursor, FilterInfo.TYPE_EMAIL, false,
+                                sources.size()));
                     }
                 }
             }
@@ -2202,9 +2263,12 @@ public class BluetoothMapContent {
                                                  BluetoothMapAppParams.FILTER_NO_EMAIL)){
                     //set real limit and offset if only this type is used
                     //(only if offset/limit is used)
-                    limit = " LIMIT " + ap.getMaxListCount() + " OFFSET "+ ap.getStartOffset();
-                    if(D) Log.d(TAG, "IM Limit => "+limit);
-                    offsetNum = 0;
+                    if (cacheEntry == null) {
+                        limit = " LIMIT " + ap.getMaxListCount()
+                                + " OFFSET " + ap.getStartOffset();
+                        if(D) Log.d(TAG, "IM Limit => "+limit);
+                        offsetNum = 0;
+                    }
                 }
                 fi.mMsgType = FilterInfo.TYPE_IM;
                 String where = setWhereFilter(folderElement, fi, ap);
@@ -2215,68 +2279,26 @@ public class BluetoothMapContent {
                         BluetoothMapContract.BT_INSTANT_MESSAGE_PROJECTION,
                         where, null, BluetoothMapContract.MessageColumns.DATE + " DESC" + limit);
                 if (imCursor != null) {
-                    BluetoothMapMessageListingElement e = null;
                     // store column index so we dont have to look them up anymore (optimization)
                     fi.setImMessageColumns(imCursor);
                     if (D) Log.d(TAG, "Found " + imCursor.getCount() + " im messages.");
-                    while (imCursor.moveToNext()) {
-                        if (V) BluetoothMapUtils.printCursor(imCursor);
-                        e = element(imCursor, fi, ap);
-                        bmList.add(e);
-                    }
+                    sources.add(new ListingSource(imCursor, FilterInfo.TYPE_IM, false,
+                            sources.size()));
                 }
             }
 
-            /* Enable this if post sorting and segmenting needed */
-            bmList.sort();
-            bmList.segment(ap.getMaxListCount(), offsetNum);
-            List<BluetoothMapMessageListingElement> list = bmList.getList();
-            int listSize = list.size();
-            Cursor tmpCursor = null;
-            for(int x=0;x<listSize;x++){
-                BluetoothMapMessageListingElement ele = list.get(x);
-                /* If OBEX "GET" request header includes "ParameterMask" with 'Type' NOT set,
-                 * then ele.getType() returns "null" even for a valid cursor.
-                 * Avoid NullPointerException in equals() check when 'mType' value is "null" */
-                TYPE tmpType = ele.getType();
-                if (smsCursor!= null &&
-                        ((TYPE.SMS_GSM).equals(tmpType) || (TYPE.SMS_CDMA).equals(tmpType))) {
-                    tmpCursor = smsCursor;
-                    fi.mMsgType = FilterInfo.TYPE_SMS;
-                } else if(mmsCursor != null && (TYPE.MMS).equals(tmpType)) {
-                    tmpCursor = mmsCursor;
-                    fi.mMsgType = FilterInfo.TYPE_MMS;
-                } else if(emailCursor != null && ((TYPE.EMAIL).equals(tmpType))) {
-                    tmpCursor = emailCursor;
-                    fi.mMsgType = FilterInfo.TYPE_EMAIL;
-                } else if(imCursor != null && ((TYPE.IM).equals(tmpType))) {
-                    tmpCursor = imCursor;
-                    fi.mMsgType = FilterInfo.TYPE_IM;
-                }
-                if(tmpCursor != null){
-                    tmpCursor.moveToPosition(ele.getCursorIndex());
-                    setSenderAddressing(ele, tmpCursor, fi, ap);
-                    setSenderName(ele, tmpCursor, fi, ap);
-                    setRecipientAddressing(ele, tmpCursor, fi, ap);
-                    setRecipientName(ele, tmpCursor, fi, ap);
-                    setSubject(ele, tmpCursor, fi, ap);
-                    setSize(ele, tmpCursor, fi, ap);
-                    setText(ele, tmpCursor, fi, ap);
-                    setPriority(ele, tmpCursor, fi, ap);
-                    setSent(ele, tmpCursor, fi, ap);
-                    setProtected(ele, tmpCursor, fi, ap);
-                    setReceptionStatus(ele, tmpCursor, fi, ap);
-                    setAttachment(ele, tmpCursor, fi, ap);
-
-                    if(mMsgListingVersion > BluetoothMapUtils.MAP_MESSAGE_LISTING_FORMAT_V10 ){
-                        setDeliveryStatus(ele, tmpCursor, fi, ap);
-                        setThreadId(ele, tmpCursor, fi, ap);
-                        setThreadName(ele, tmpCursor, fi, ap);
-                        setFolderType(ele, tmpCursor, fi, ap);
-                    }
-                }
+            mergeListing(bmList, sources, fi, ap, offsetNum, cacheEntry);
+            /* Whether the folder holds unread messages, not only the page. Set
+             * after the elements, as BluetoothMapMessageListing.add() flags read
+             * ones. */
+            boolean hasUnread = msgListingHasUnread(folderElement, ap);
+            bmList.setHasUnread(hasUnread);
+            if (cacheEntry != null) {
+                cacheEntry.mHasUnread = hasUnread;
+                mListingCache = cacheEntry;
             }
         } finally {
+            mMmsAddresses = null;
             if(emailCursor != null)emailCursor.close();
             if(smsCursor != null)smsCursor.close();
             if(mmsCursor != null)mmsCursor.close();
@@ -2288,6 +2310,384 @@ public class BluetoothMapContent {
         return bmList;
     }
 
+    /**
+     * @return the number of message listings of this session built from the listing cache
+     */
+    @VisibleForTesting
+    public int getListingCacheHits() {
+        return mListingCacheHits;
+    }
+
+    /* A date ordered cursor taking part in the merge of a message listing */
+    private static final class ListingSource {
+        final Cursor mCursor;
+        final int mMsgType;
+        final boolean mMatchAddresses;
+        /* Breaks date ties in the order the sources were added */
+        final int mOrder;
+        long mDate;
+
+        ListingSource(Cursor cursor, int msgType, boolean matchAddresses, int order) {
+            mCursor = cursor;
+            mMsgType = msgType;
+            mMatchAddresses = matchAddresses;
+            mOrder = order;
+        }
+    }
+
+    private static final Comparator<ListingSource> LISTING_SOURCE_ORDER =
+            new Comparator<ListingSource>() {
+        @Override
+        public int compare(ListingSource a, ListingSource b) {
+            if (a.mDate != b.mDate) {
+                return a.mDate > b.mDate ? -1 : 1;
+            }
+            return a.mOrder - b.mOrder;
+        }
+    };
+
+    /* Point fi at the columns of the source. Email and IM share the message columns. */
+    private void selectSource(ListingSource source, FilterInfo fi) {
+        if (fi.mMsgType == source.mMsgType) {
+            return;
+        }
+        fi.mMsgType = source.mMsgType;
+        if (source.mMsgType == FilterInfo.TYPE_EMAIL) {
+            fi.setEmailMessageColumns(source.mCursor);
+        } else if (source.mMsgType == FilterInfo.TYPE_IM) {
+            fi.setImMessageColumns(source.mCursor);
+        }
+    }
+
+    /* Move the source to its next row matching the address filters */
+    private boolean advanceSource(ListingSource source, FilterInfo fi,
+            BluetoothMapAppParams ap) {
+        selectSource(source, fi);
+        Cursor c = source.mCursor;
+        while (c.moveToNext()) {
+            if (!source.mMatchAddresses || matchAddresses(c, fi, ap)) {
+                source.mDate = getDateTime(c, fi);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Merge the date ordered sources into the listing. Only the rows within
+     * [offset, offset + count) are turned into elements - the merge stops once the
+     * page is full, or when recording handles in cacheEntry, once that is full.
+     */
+    private void mergeListing(BluetoothMapMessageListing bmList, List<ListingSource> sources,
+            FilterInfo fi, BluetoothMapAppParams ap, int offset, ListingCacheEntry cacheEntry) {
+        int count = ap.getMaxListCount();
+        PriorityQueue<ListingSource> heads = new PriorityQueue<ListingSource>(
+                Math.max(1, sources.size()), LISTING_SOURCE_ORDER);
+        for (ListingSource source : sources) {
+            if (advanceSource(source, fi, ap)) {
+                heads.add(source);
+            }
+        }
+
+        /* The rows of the page are only located during the merge, the elements are built
+         * afterwards so the MMS parts of the page can be loaded in one go. */
+        ArrayList<ListingSource> pageSources = new ArrayList<ListingSource>();
+        ArrayList<Integer> pagePositions = new ArrayList<Integer>();
+        ArrayList<Long> pageMmsIds = new ArrayList<Long>();
+        int position = 0;
+        while (!heads.isEmpty()) {
+            boolean pageFull = count > 0 && pageSources.size() >= count;
+            if (pageFull && (cacheEntry == null || cacheEntry.mSize >= cacheEntry.mMaxSize)) {
+                break;
+            }
+            ListingSource source = heads.poll();
+            selectSource(source, fi);
+            Cursor c = source.mCursor;
+            if (cacheEntry != null && cacheEntry.mSize < cacheEntry.mMaxSize) {
+                cacheEntry.add(source.mMsgType, getCpHandle(c, fi));
+            }
+            if (position >= offset && !pageFull) {
+                pageSources.add(source);
+                pagePositions.add(c.getPosition());
+                if (source.mMsgType == FilterInfo.TYPE_MMS && needsMmsTextParts(c, fi)) {
+                    pageMmsIds.add(c.getLong(fi.mMmsColId));
+                }
+            }
+            position++;
+            if (advanceSource(source, fi, ap)) {
+                heads.add(source);
+            }
+        }
+        if (cacheEntry != null) {
+            /* Every source is complete within its LIMIT, if it has one, so running
+             * out of rows before the entry is full means the listing ended */
+            cacheEntry.mComplete = heads.isEmpty() && cacheEntry.mSize < cacheEntry.mMaxSize;
+        }
+        if (D) Log.d(TAG, "mergeListing: " + pageSources.size() + " of " + position
+                + " merged rows listed");
+
+        loadMmsTextParts(pageMmsIds);
+        try {
+            for (int i = 0; i < pageSources.size(); i++) {
+                ListingSource source = pageSources.get(i);
+                selectSource(source, fi);
+                Cursor c = source.mCursor;
+                c.moveToPosition(pagePositions.get(i));
+                if (V) BluetoothMapUtils.printCursor(c);
+                BluetoothMapMessageListingElement ele = element(c, fi, ap);
+                setListingAttributes(ele, c, fi, ap);
+                bmList.add(ele);
+            }
+        } finally {
+            mMmsTextParts = null;
+        }
+    }
+
+    /* The text parts are used for the subject and text fields of an MMS without subject
+     * or with attachments */
+    private static boolean needsMmsTextParts(Cursor c, FilterInfo fi) {
+        return c.getInt(fi.mMmsColTextOnly) == 0
+                || TextUtils.isEmpty(c.getString(fi.mMmsColSubject));
+    }
+
+    /**
+     * Load the text/plain parts of the given MMS messages with chunked IN queries on the
+     * part table. Until mMmsTextParts is cleared, getMmsText() is served from them.
+     */
+    private void loadMmsTextParts(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        HashMap<Long, String> textParts = new HashMap<Long, String>(ids.size());
+        Uri partUri = Uri.parse(Mms.CONTENT_URI + "/part");
+        String[] projection = { Mms.Part.MSG_ID, Mms.Part.TEXT };
+        for (int start = 0; start < ids.size(); start += MMS_PART_QUERY_CHUNK) {
+            List<Long> chunk = ids.subList(start,
+                    Math.min(ids.size(), start + MMS_PART_QUERY_CHUNK));
+            String where = Mms.Part.MSG_ID + " IN (" + TextUtils.join(",", chunk) + ") AND "
+                    + Mms.Part.CONTENT_TYPE + "='text/plain'";
+            Cursor c = mResolver.query(partUri, projection, where, null, Mms.Part._ID);
+            if (c == null) {
+                // Not cached - getMmsText() falls back to a query per message
+                continue;
+            }
+            try {
+                for (Long id : chunk) {
+                    textParts.put(id, "");
+                }
+                while (c.moveToNext()) {
+                    Long id = c.getLong(0);
+                    String part = c.getString(1);
+                    String text = textParts.get(id);
+                    if (part != null && text != null) {
+                        textParts.put(id, text + part);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+        if (D) Log.d(TAG, "loadMmsTextParts: " + textParts.size() + " of " + ids.size()
+                + " messages loaded");
+        mMmsTextParts = textParts;
+    }
+
+    private String getMmsText(long id) {
+        if (mMmsTextParts != null) {
+            String text = mMmsTextParts.get(id);
+            if (text != null) {
+                return text;
+            }
+        }
+        return getTextPartsMms(mResolver, id);
+    }
+
+    /* The ordered handles of the first mSize messages of a listing */
+    private static final class ListingCacheEntry {
+        final String mKey;
+        final long mFolderVersion;
+        final int mMaxSize;
+        int[] mTypes = new int[64];
+        long[] mIds = new long[64];
+        int mSize = 0;
+        /* No messages follow the cached ones */
+        boolean mComplete = false;
+        boolean mHasUnread = false;
+
+        ListingCacheEntry(String key, long folderVersion, int maxSize) {
+            mKey = key;
+            mFolderVersion = folderVersion;
+            mMaxSize = maxSize;
+        }
+
+        boolean covers(int offset, int count) {
+            return mComplete || (count > 0 && (long) offset + count <= mSize);
+        }
+
+        void add(int msgType, long id) {
+            if (mSize == mIds.length) {
+                mTypes = Arrays.copyOf(mTypes, mSize * 2);
+                mIds = Arrays.copyOf(mIds, mSize * 2);
+            }
+            mTypes[mSize] = msgType;
+            mIds[mSize] = id;
+            mSize++;
+        }
+    }
+
+    /* Everything but the offset, count and the parameter mask, which only select
+     * the page and its content. */
+    private static String getListingCacheKey(BluetoothMapFolderElement folderElement,
+            BluetoothMapAppParams ap) {
+        StringBuilder key = new StringBuilder(folderElement.getFullPath());
+        key.append('|').append(ap.getFilterMessageType())
+                .append('|').append(ap.getFilterPeriodBegin())
+                .append('|').append(ap.getFilterPeriodEnd())
+                .append('|').append(ap.getFilterReadStatus())
+                .append('|').append(ap.getFilterPriority())
+                .append('|').append(ap.getFilterOriginator())
+                .append('|').append(ap.getFilterRecipient())
+                .append('|').append(ap.getFilterMsgHandle())
+                .append('|').append(ap.getFilterConvoIdString());
+        return key.toString();
+    }
+
+    /**
+     * Build the requested page of a cached listing. Only the messages of the page are
+     * queried, by handle and the folder and read filters of the listing, so messages
+     * that left it since are skipped.
+     */
+    private void buildListingPage(BluetoothMapMessageListing bmList, ListingCacheEntry entry,
+            BluetoothMapFolderElement folderElement, FilterInfo fi, BluetoothMapAppParams ap) {
+        int offset = ap.getStartOffset();
+        int end = entry.mSize;
+        if (ap.getMaxListCount() > 0) {
+            end = (int) Math.min((long) end, (long) offset + ap.getMaxListCount());
+        }
+        if (offset >= end) {
+            return;
+        }
+
+        final int[] msgTypes = { FilterInfo.TYPE_SMS, FilterInfo.TYPE_MMS,
+                FilterInfo.TYPE_EMAIL, FilterInfo.TYPE_IM };
+        SparseArray<ListingSource> sources = new SparseArray<ListingSource>(msgTypes.length);
+        HashMap<String, Integer> positions = new HashMap<String, Integer>(end - offset);
+        try {
+            for (int msgType : msgTypes) {
+                StringBuilder ids = new StringBuilder();
+                for (int i = offset; i < end; i++) {
+                    if (entry.mTypes[i] == msgType) {
+                        if (ids.length() > 0) {
+                            ids.append(',');
+                        }
+                        ids.append(entry.mIds[i]);
+                    }
+                }
+                if (ids.length() == 0) {
+                    continue;
+                }
+                fi.mMsgType = msgType;
+                String where = setWhereFilter(folderElement, fi, ap);
+                if (msgType == FilterInfo.TYPE_MMS) {
+                    where += " AND " + INTERESTED_MESSAGE_TYPE_CLAUSE;
+                }
+                where = (where.isEmpty() ? "" : "(" + where + ") AND ")
+                        + BaseColumns._ID + " IN (" + ids + ")";
+                Cursor c = queryListingRows(msgType, where, fi);
+                if (c == null) {
+                    continue;
+                }
+                sources.put(msgType, new ListingSource(c, msgType, false, sources.size()));
+                while (c.moveToNext()) {
+                    positions.put(msgType + ":" + getCpHandle(c, fi), c.getPosition());
+                }
+            }
+
+            ListingSource mmsSource = sources.get(FilterInfo.TYPE_MMS);
+            if (mmsSource != null) {
+                ArrayList<Long> mmsIds = new ArrayList<Long>();
+                Cursor c = mmsSource.mCursor;
+                c.moveToPosition(-1);
+                while (c.moveToNext()) {
+                    if (needsMmsTextParts(c, fi)) {
+                        mmsIds.add(c.getLong(fi.mMmsColId));
+                    }
+                }
+                loadMmsTextParts(mmsIds);
+            }
+
+            for (int i = offset; i < end; i++) {
+                ListingSource source = sources.get(entry.mTypes[i]);
+                Integer position = positions.get(entry.mTypes[i] + ":" + entry.mIds[i]);
+                if (source == null || position == null) {
+                    // Removed after the listing was cached
+                    continue;
+                }
+                selectSource(source, fi);
+                Cursor c = source.mCursor;
+                c.moveToPosition(position);
+                BluetoothMapMessageListingElement ele = element(c, fi, ap);
+                setListingAttributes(ele, c, fi, ap);
+                bmList.add(ele);
+            }
+        } finally {
+            mMmsTextParts = null;
+            mMmsAddresses = null;
+            for (int i = 0; i < sources.size(); i++) {
+                close(sources.valueAt(i).mCursor);
+            }
+        }
+    }
+
+    /* Query the listing rows of one message type and load its columns into fi */
+    private Cursor queryListingRows(int msgType, String where, FilterInfo fi) {
+        Cursor c = null;
+        if (msgType == FilterInfo.TYPE_SMS) {
+            c = mResolver.query(Sms.CONTENT_URI, SMS_PROJECTION, where, null, null);
+            if (c != null) fi.setSmsColumns(c);
+        } else if (msgType == FilterInfo.TYPE_MMS) {
+            c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION, where, null, null);
+            if (c != null) fi.setMmsColumns(c);
+        } else if (mBaseUri != null) {
+            Uri contentUri = Uri.parse(mBaseUri + BluetoothMapContract.TABLE_MESSAGE);
+            if (msgType == FilterInfo.TYPE_EMAIL) {
+                c = mResolver.query(contentUri, BluetoothMapContract.BT_MESSAGE_PROJECTION,
+                        where, null, null);
+                if (c != null) fi.setEmailMessageColumns(c);
+            } else {
+                c = mResolver.query(contentUri,
+                        BluetoothMapContract.BT_INSTANT_MESSAGE_PROJECTION, where, null, null);
+                if (c != null) fi.setImMessageColumns(c);
+            }
+        }
+        if (c != null) {
+            fi.mMsgType = msgType;
+        }
+        return c;
+    }
+
+    private void setListingAttributes(BluetoothMapMessageListingElement ele, Cursor c,
+            FilterInfo fi, BluetoothMapAppParams ap) {
+        setSenderAddressing(ele, c, fi, ap);
+        setSenderName(ele, c, fi, ap);
+        setRecipientAddressing(ele, c, fi, ap);
+        setRecipientName(ele, c, fi, ap);
+        setSubject(ele, c, fi, ap);
+        setSize(ele, c, fi, ap);
+        setText(ele, c, fi, ap);
+        setPriority(ele, c, fi, ap);
+        setSent(ele, c, fi, ap);
+        setProtected(ele, c, fi, ap);
+        setReceptionStatus(ele, c, fi, ap);
+        setAttachment(ele, c, fi, ap);
+        if(mMsgListingVersion > BluetoothMapUtils.MAP_MESSAGE_LISTING_FORMAT_V10 ){
+            setDeliveryStatus(ele, c, fi, ap);
+            setThreadId(ele, c, fi, ap);
+            setThreadName(ele, c, fi, ap);
+            setFolderType(ele, c, fi, ap);
+        }
+    }
+
     /**
      * Get the size of the message listing
      * @param folder Must contain a valid folder string != null
@@ -2303,31 +2703,27 @@ public class BluetoothMapContent {
         FilterInfo fi = new FilterInfo();
         setFilterInfo(fi);
 
+        /* SMS/MMS originator and recipient filters are matched in Java (see msgListing),
+         * all other filters are part of the where clause and can be counted in SQL. */
+        boolean matchAddresses = hasAddressFilter(ap);
+
         if (smsSelected(fi, ap) && folderElement.hasSmsMmsContent()) {
             fi.mMsgType = FilterInfo.TYPE_SMS;
             String where = setWhereFilter(folderElement, fi, ap);
-            Cursor c = mResolver.query(Sms.CONTENT_URI,
-                    SMS_PROJECTION, where, null, Sms.DATE + " DESC");
-            try {
-                if (c != null) {
-                    cnt = c.getCount();
-                }
-            } finally {
-                if (c != null) c.close();
+            if (matchAddresses) {
+                cnt = countAddressMatches(Sms.CONTENT_URI, SMS_PROJECTION, where, fi, ap);
+            } else {
+                cnt = queryCount(Sms.CONTENT_URI, where);
             }
         }
 
         if (mmsSelected(ap)  && folderElement.hasSmsMmsContent()) {
             fi.mMsgType = FilterInfo.TYPE_MMS;
             String where = setWhereFilter(folderElement, fi, ap);
-            Cursor c = mResolver.query(Mms.CONTENT_URI,
-                    MMS_PROJECTION, where, null, Mms.DATE + " DESC");
-            try {
-                if (c != null) {
-                    cnt += c.getCount();
-                }
-            } finally {
-                if (c != null) c.close();
+            if (matchAddresses) {
+                cnt += countAddressMatches(Mms.CONTENT_URI, MMS_PROJECTION, where, fi, ap);
+            } else {
+                cnt += queryCount(Mms.CONTENT_URI, where);
             }
         }
 
@@ -2336,15 +2732,7 @@ public class BluetoothMapContent {
             String where = setWhereFilter(folderElement, fi, ap);
             if(!where.isEmpty()) {
                 Uri contentUri = Uri.parse(mBaseUri + BluetoothMapContract.TABLE_MESSAGE);
-                Cursor c = mResolver.query(contentUri, BluetoothMapContract.BT_MESSAGE_PROJECTION,
-                        where, null, BluetoothMapContract.MessageColumns.DATE + " DESC");
-                try {
-                    if (c != null) {
-                        cnt += c.getCount();
-                    }
-                } finally {
-                    if (c != null) c.close();
-                }
+                cnt += queryCount(contentUri, where);
             }
         }
 
@@ -2353,16 +2741,7 @@ public class BluetoothMapContent {
             String where = setWhereFilter(folderElement, fi, ap);
             if(!where.isEmpty()) {
                 Uri contentUri = Uri.parse(mBaseUri + BluetoothMapContract.TABLE_MESSAGE);
-                Cursor c = mResolver.query(contentUri,
-                        BluetoothMapContract.BT_INSTANT_MESSAGE_PROJECTION,
-                        where, null, BluetoothMapContract.MessageColumns.DATE + " DESC");
-                try {
-                    if (c != null) {
-                        cnt += c.getCount();
-                    }
-                } finally {
-                    if (c != null) c.close();
-                }
+                cnt += queryCount(contentUri, where);
             }
         }
 
@@ -2379,86 +2758,120 @@ public class BluetoothMapContent {
     public boolean msgListingHasUnread(BluetoothMapFolderElement folderElement,
             BluetoothMapAppParams ap) {
         if (D) Log.d(TAG, "msgListingHasUnread: folder = " + folderElement.getName());
-        int cnt = 0;
+        boolean hasUnread = false;
 
         /* Cache some info used throughout filtering */
         FilterInfo fi = new FilterInfo();
         setFilterInfo(fi);
 
-       if (smsSelected(fi, ap)  && folderElement.hasSmsMmsContent()) {
+        if (smsSelected(fi, ap)  && folderElement.hasSmsMmsContent()) {
             fi.mMsgType = FilterInfo.TYPE_SMS;
             String where = setWhereFilterFolderType(folderElement, fi);
             where += " AND " + Sms.READ + "=0 ";
             where += setWhereFilterPeriod(ap, fi);
-            Cursor c = mResolver.query(Sms.CONTENT_URI,
-                SMS_PROJECTION, where, null, Sms.DATE + " DESC");
-            try {
-                if (c != null) {
-                    cnt = c.getCount();
-                }
-            } finally {
-                if (c != null) c.close();
-            }
+            hasUnread = queryExists(Sms.CONTENT_URI, where);
         }
 
-        if (mmsSelected(ap)  && folderElement.hasSmsMmsContent()) {
+        if (!hasUnread && mmsSelected(ap)  && folderElement.hasSmsMmsContent()) {
             fi.mMsgType = FilterInfo.TYPE_MMS;
             String where = setWhereFilterFolderType(folderElement, fi);
             where += " AND " + Mms.READ + "=0 ";
             where += setWhereFilterPeriod(ap, fi);
-            Cursor c = mResolver.query(Mms.CONTENT_URI,
-                MMS_PROJECTION, where, null, Sms.DATE + " DESC");
-            try {
-                if (c != null) {
-                    cnt += c.getCount();
-                }
-            } finally {
-                if (c != null) c.close();
-            }
+            hasUnread = queryExists(Mms.CONTENT_URI, where);
         }
 
-
-        if (emailSelected(ap) && folderElement.getFolderId() != -1) {
+        if (!hasUnread && emailSelected(ap) && folderElement.getFolderId() != -1) {
             fi.mMsgType = FilterInfo.TYPE_EMAIL;
             String where = setWhereFilterFolderType(folderElement, fi);
             if(!where.isEmpty()) {
                 where += " AND " + BluetoothMapContract.MessageColumns.FLAG_READ + "=0 ";
                 where += setWhereFilterPeriod(ap, fi);
                 Uri contentUri = Uri.parse(mBaseUri + BluetoothMapContract.TABLE_MESSAGE);
-                Cursor c = mResolver.query(contentUri, BluetoothMapContract.BT_MESSAGE_PROJECTION,
-                        where, null, BluetoothMapContract.MessageColumns.DATE + " DESC");
-                try {
-                    if (c != null) {
-                        cnt += c.getCount();
-                    }
-                } finally {
-                    if (c != null) c.close();
-                }
+                hasUnread = queryExists(contentUri, where);
             }
         }
 
-        if (imSelected(ap) && folderElement.hasImContent()) {
+        if (!hasUnread && imSelected(ap) && folderElement.hasImContent()) {
             fi.mMsgType = FilterInfo.TYPE_IM;
             String where = setWhereFilter(folderElement, fi, ap);
             if(!where.isEmpty()) {
                 where += " AND " + BluetoothMapContract.MessageColumns.FLAG_READ + "=0 ";
                 where += setWhereFilterPeriod(ap, fi);
                 Uri contentUri = Uri.parse(mBaseUri + BluetoothMapContract.TABLE_MESSAGE);
-                Cursor c = mResolver.query(contentUri,
-                        BluetoothMapContract.BT_INSTANT_MESSAGE_PROJECTION,
-                        where, null, BluetoothMapContract.MessageColumns.DATE + " DESC");
-                try {
-                    if (c != null) {
-                        cnt += c.getCount();
+                hasUnread = queryExists(contentUri, where);
+            }
+        }
+
+        if (D) Log.d(TAG, "msgListingHasUnread: hasUnread = " + hasUnread);
+        return hasUnread;
+    }
+
+    private static boolean hasAddressFilter(BluetoothMapAppParams ap) {
+        return !TextUtils.isEmpty(ap.getFilterOriginator())
+                || !TextUtils.isEmpty(ap.getFilterRecipient());
+    }
+
+    /**
+     * Count the rows matching where. COUNT(*) is used when the provider honors the
+     * projection, otherwise the size of an _id only cursor.
+     */
+    private int queryCount(Uri uri, String where) {
+        Cursor c = null;
+        try {
+            c = mResolver.query(uri, COUNT_PROJECTION, where, null, null);
+            if (c != null && c.getCount() == 1 && c.getColumnCount() == 1
+                    && COUNT_PROJECTION[0].equalsIgnoreCase(c.getColumnName(0))
+                    && c.moveToFirst()) {
+                return c.getInt(0);
+            }
+        } catch (IllegalArgumentException e) {
+            if (V) Log.v(TAG, "queryCount: COUNT(*) rejected by " + uri + ": " + e);
+        } catch (SQLiteException e) {
+            if (V) Log.v(TAG, "queryCount: COUNT(*) rejected by " + uri + ": " + e);
+        } finally {
+            close(c);
+        }
+
+        c = mResolver.query(uri, ID_PROJECTION, where, null, null);
+        try {
+            return (c != null) ? c.getCount() : 0;
+        } finally {
+            close(c);
+        }
+    }
+
+    private boolean queryExists(Uri uri, String where) {
+        Cursor c = mResolver.query(uri, ID_PROJECTION, where, null,
+                BaseColumns._ID + " LIMIT 1");
+        try {
+            return c != null && c.getCount() > 0;
+        } finally {
+            close(c);
+        }
+    }
+
+    /* Count the SMS/MMS rows passing the originator/recipient filters */
+    private int countAddressMatches(Uri uri, String[] projection, String where, FilterInfo fi,
+            BluetoothMapAppParams ap) {
+        int cnt = 0;
+        Cursor c = mResolver.query(uri, projection, where, null, null);
+        try {
+            if (c != null) {
+                if (fi.mMsgType == FilterInfo.TYPE_SMS) {
+                    fi.setSmsColumns(c);
+                } else {
+                    fi.setMmsColumns(c);
+                }
+                while (c.moveToNext()) {
+                    if (matchAddresses(c, fi, ap)) {
+                        cnt++;
                     }
-                } finally {
-                    if (c != null) c.close();
                 }
             }
+        } finally {
+            close(c);
         }
-
-        if (D) Log.d(TAG, "msgListingHasUnread: numUnread = " + cnt);
-        return (cnt>0)?true:false;
+        return cnt;
     }
 
     /**
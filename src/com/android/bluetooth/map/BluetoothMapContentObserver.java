@@ -32,11 +32,13 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserManager;
 import android.provider.Telephony;
 import android.provider.Telephony.Mms;
@@ -59,6 +61,7 @@ import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
 import com.android.bluetooth.map.BluetoothMapbMessageMime.MimePart;
 import com.android.bluetooth.mapapi.BluetoothMapContract;
 import com.android.bluetooth.mapapi.BluetoothMapContract.MessageColumns;
+import com.android.internal.annotations.VisibleForTesting;
 import com.google.android.mms.pdu.PduHeaders;
 
 import java.io.FileNotFoundException;
@@ -120,12 +123,13 @@ public class BluetoothMapContentObserver {
 
     private Context mContext;
     private ContentResolver mResolver;
-    private ContentProviderClient mProviderClient = null;
+    /* Released on mChangeThread after unregistering, hence volatile */
+    private volatile ContentProviderClient mProviderClient = null;
     private BluetoothMnsObexClient mMnsClient;
     private BluetoothMapMasInstance mMasInstance = null;
     private int mMasId;
     private boolean mEnableSmsMms = false;
-    private boolean mObserverRegistered = false;
+    private volatile boolean mObserverRegistered = false;
     private BluetoothMapAccountItem mAccount;
     private String mAuthority = null;
 
@@ -154,6 +158,36 @@ public class BluetoothMapContentObserver {
     // X-Mms-Message-Type field types. These are from PduHeaders.java
     public static final int MESSAGE_TYPE_RETRIEVE_CONF = 0x84;
 
+    /* SMS/MMS changes are found from the highest known _ID and re-checks of the
+     * messages that can still change, with a full rescan at least this often */
+    private static final long SMS_MMS_RECONCILE_INTERVAL_MS = 10 * 60 * 1000;
+    /* Beyond this many messages settled since the previous pass (e.g. a whole
+     * folder marked as read) a full rescan is cheaper than re-checking by id */
+    private static final int MAX_INCREMENTAL_RECHECK_IDS = 500;
+
+    /* Highest _ID seen, -1 until the first full rescan */
+    private long mSmsMaxId = -1;
+    private long mMmsMaxId = -1;
+    /* Inbox MMS notifications not retrieved yet - not tracked, but re-checked
+     * by id every pass so they don't hold the watermark back */
+    private final HashSet<Long> mMmsPendingIds = new HashSet<Long>();
+    private long mLastSmsReconcileMs;
+    private long mLastMmsReconcileMs;
+
+    /* Change notifications arriving within this window of the first one are
+     * handled by a single pass on the worker thread */
+    private static final long CHANGE_DEBOUNCE_MS = 200;
+    private static final int MSG_PROCESS_CHANGES = 1;
+
+    private HandlerThread mChangeThread = null;
+    private Handler mChangeHandler = null;
+    /* Uris changed since the last pass - guarded by itself */
+    private final Set<Uri> mPendingChangeUris = new HashSet<Uri>();
+    /* A pass has taken the pending Uris but not finished - guarded by mPendingChangeUris */
+    private boolean mChangePassRunning = false;
+    private volatile int mChangesCoalesced = 0;
+    private volatile int mChangePassesProcessed = 0;
+
     // Text only MMS converted to SMS if sms parts less than or equal to defined count
     private static final int CONVERT_MMS_TO_SMS_PART_COUNT = 10;
 
@@ -175,7 +209,7 @@ public class BluetoothMapContentObserver {
     private SmsBroadcastReceiver mSmsBroadcastReceiver = new SmsBroadcastReceiver();
     private CeBroadcastReceiver mCeBroadcastReceiver = new CeBroadcastReceiver();
 
-    private boolean mStorageUnlocked = false;
+    private volatile boolean mStorageUnlocked = false;
     private boolean mInitialized = false;
 
 
@@ -471,7 +505,9 @@ public class BluetoothMapContentObserver {
         return smsType;
     }
 
-    private final ContentObserver mObserver = new ContentObserver(new Handler()) {
+    /* Notifications are delivered on a binder thread and only queued here - the
+     * provider queries run on mChangeThread */
+    private final ContentObserver mObserver = new ContentObserver(null) {
         @Override
         public void onChange(boolean selfChange) {
             onChange(selfChange, null);
@@ -492,13 +528,130 @@ public class BluetoothMapContentObserver {
             if (V) Log.d(TAG, "onChange on thread: " + Thread.currentThread().getId()
                     + " Uri: " + uri.toString() + " selfchange: " + selfChange);
 
-            if(uri.toString().contains(BluetoothMapContract.TABLE_CONVOCONTACT))
-                handleContactListChanges(uri);
-            else
-                handleMsgListChanges(uri);
+            queueChange(uri);
         }
     };
 
+    private void queueChange(Uri uri) {
+        synchronized (mPendingChangeUris) {
+            if (mChangeHandler == null) {
+                Log.w(TAG, "queueChange() after unregister - ignored");
+                return;
+            }
+            boolean passPending = !mPendingChangeUris.isEmpty();
+            mPendingChangeUris.add(uri);
+            if (passPending) {
+                mChangesCoalesced++;
+            } else {
+                mChangeHandler.sendEmptyMessageDelayed(MSG_PROCESS_CHANGES, CHANGE_DEBOUNCE_MS);
+            }
+        }
+    }
+
+    private final class ChangeHandler extends Handler {
+        ChangeHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_PROCESS_CHANGES) {
+                processChanges();
+            }
+        }
+    }
+
+    /**
+     * Handle every Uri queued since the previous pass. The SMS/MMS lists are
+     * reconciled at most once per pass, regardless of the number of changes.
+     */
+    private void processChanges() {
+        Uri[] uris;
+        synchronized (mPendingChangeUris) {
+            uris = mPendingChangeUris.toArray(new Uri[mPendingChangeUris.size()]);
+            mPendingChangeUris.clear();
+            mChangePassRunning = true;
+        }
+        if (V) Log.v(TAG, "processChanges: " + uris.length + " uri(s)");
+
+        try {
+            boolean smsMmsChanged = false;
+            for (Uri uri : uris) {
+                if (uri.toString().contains(BluetoothMapContract.TABLE_CONVOCONTACT)) {
+                    handleContactListChanges(uri);
+                } else {
+                    handleMsgListChanges(uri);
+                    smsMmsChanged = true;
+                }
+            }
+            // TODO: check to see if there could be problem with IM and SMS in one instance
+            if (smsMmsChanged && mEnableSmsMms) {
+                handleMsgListChangesSms();
+                handleMsgListChangesMms();
+            }
+        } finally {
+            synchronized (mPendingChangeUris) {
+                mChangePassRunning = false;
+            }
+        }
+        mChangePassesProcessed++;
+    }
+
+    /**
+     * @return true while a change notification waits for its debounced pass or the
+     *         pass is running, i.e. the folder version counter may lag the content
+     */
+    /* package */ boolean hasPendingChanges() {
+        synchronized (mPendingChangeUris) {
+            return !mPendingChangeUris.isEmpty() || mChangePassRunning;
+        }
+    }
+
+    /**
+     * @return the number of change notifications merged into an already pending pass
+     */
+    public int getChangesCoalesced() {
+        return mChangesCoalesced;
+    }
+
+    /**
+     * @return the number of change passes run on the worker thread
+     */
+    public int getChangePassesProcessed() {
+        return mChangePassesProcessed;
+    }
+
+    /**
+     * Runs one SMS/MMS pass on the calling thread: a full rescan if fullRescan
+     * is set, otherwise the incremental update alone.
+     * @return the tracked state of every message ordered by handle, or null if
+     *         the incremental update needed a full rescan
+     */
+    @VisibleForTesting
+    public ArrayList<String> updateMsgListsSmsMms(boolean fullRescan) {
+        if (fullRescan) {
+            reconcileMsgListSms();
+            reconcileMsgListMms();
+        } else if (mSmsMaxId < 0 || mMmsMaxId < 0 || !updateMsgListSms()
+                || !updateMsgListMms()) {
+            return null;
+        }
+        ArrayList<String> state = new ArrayList<String>();
+        for (Map<Long, Msg> msgList : Arrays.asList(getMsgListSms(), getMsgListMms())) {
+            synchronized (msgList) {
+                ArrayList<Long> ids = new ArrayList<Long>(msgList.keySet());
+                Collections.sort(ids);
+                for (Long id : ids) {
+                    Msg msg = msgList.get(id);
+                    state.add((msgList == getMsgListSms() ? "sms " : "mms ") + id +
+                            " type=" + msg.type + " thread=" + msg.threadId +
+                            " read=" + msg.flagRead);
+                }
+            }
+        }
+        return state;
+    }
+
     private static final HashMap<Integer, String> FOLDER_SMS_MAP;
     static {
         FOLDER_SMS_MAP = new HashMap<Integer, String>();
@@ -996,6 +1149,15 @@ public class BluetoothMapContentObserver {
         // loads of events - hence init before register.
         initMsgList();
 
+        synchronized (mPendingChangeUris) {
+            if (mChangeThread == null) {
+                mChangeThread =
+                        new HandlerThread("BluetoothMapContentObserver" + mMasId);
+                mChangeThread.start();
+                mChangeHandler = new ChangeHandler(mChangeThread.getLooper());
+            }
+        }
+
         /* Use MmsSms Uri since the Sms Uri is not notified on deletes */
         if(mEnableSmsMms){
             //this is sms/mms
@@ -1038,12 +1200,45 @@ public class BluetoothMapContentObserver {
         if (V) Log.d(TAG, "unregisterObserver");
         mResolver.unregisterContentObserver(mObserver);
         mObserverRegistered = false;
-        if(mProviderClient != null){
-            mProviderClient.release();
+        final ContentProviderClient providerClient = mProviderClient;
+        synchronized (mPendingChangeUris) {
+            if (mChangeHandler != null) {
+                /* Never wait for the worker here, the caller may hold locks a
+                 * running pass needs. The client is released on the worker once
+                 * that pass is done, then the thread ends. */
+                mChangeHandler.removeMessages(MSG_PROCESS_CHANGES);
+                mChangeHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        releaseProviderClient(providerClient);
+                    }
+                });
+                mChangeThread.quitSafely();
+            } else {
+                releaseProviderClient(providerClient);
+            }
+            mChangeHandler = null;
+            mChangeThread = null;
+            mPendingChangeUris.clear();
+        }
+    }
+
+    /* Releases a provider client, and forgets it unless registerObserver()
+     * has acquired a new one meanwhile */
+    private void releaseProviderClient(ContentProviderClient providerClient) {
+        if (providerClient == null) {
+            return;
+        }
+        providerClient.release();
+        if (mProviderClient == providerClient) {
             mProviderClient = null;
         }
     }
 
+    /* package */ boolean isObserverRegistered() {
+        return mObserverRegistered;
+    }
+
     /**
      * Per design it is only possible to call the refreshXxxx functions sequentially, hence it
      * is safe to modify mTransmitEvents without synchronization.
@@ -1324,8 +1519,19 @@ public class BluetoothMapContentObserver {
     private void handleMsgListChangesSms() {
         if (V) Log.d(TAG, "handleMsgListChangesSms");
 
+        if (mSmsMaxId < 0 || SystemClock.elapsedRealtime() - mLastSmsReconcileMs >
+                SMS_MMS_RECONCILE_INTERVAL_MS || !updateMsgListSms()) {
+            reconcileMsgListSms();
+        }
+    }
+
+    /* Rescans the whole SMS table against the tracked messages */
+    private void reconcileMsgListSms() {
+        if (V) Log.d(TAG, "reconcileMsgListSms");
+
         HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
         boolean listChanged = false;
+        long maxId = 0;
 
         Cursor c;
         synchronized(getMsgListSms()) {
@@ -1340,121 +1546,9 @@ public class BluetoothMapContentObserver {
                 if (c != null && c.moveToFirst()) {
                     do {
                         long id = c.getLong(c.getColumnIndex(Sms._ID));
-                        int type = c.getInt(c.getColumnIndex(Sms.TYPE));
-                        int threadId = c.getInt(c.getColumnIndex(Sms.THREAD_ID));
-                        int read = c.getInt(c.getColumnIndex(Sms.READ));
-
-                        Msg msg = getMsgListSms().remove(id);
-
-                        /* We must filter out any actions made by the MCE, hence do not send e.g.
-                         * a message deleted and/or MessageShift for messages deleted by the MCE. */
-
-                        if (msg == null) {
-                            /* New message */
-                            msg = new Msg(id, type, threadId, read);
-                            msgListSms.put(id, msg);
+                        maxId = Math.max(maxId, id);
+                        if (handleSmsRow(c, getMsgListSms().remove(id), msgListSms)) {
                             listChanged = true;
-                            Event evt;
-                            if (mTransmitEvents == true && // extract contact details only if needed
-                                    mMapEventReportVersion >
-                            BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                String date = BluetoothMapUtils.getDateTimeString(
-                                        c.getLong(c.getColumnIndex(Sms.DATE)));
-                                String subject = c.getString(c.getColumnIndex(Sms.BODY));
-                                if (subject == null ) {
-                                    subject = "";
-                                }
-                                String name = "";
-                                String phone = "";
-                                if (type == 1) { //inbox
-                                    phone = c.getString(c.getColumnIndex(Sms.ADDRESS));
-                                    if (phone != null && !phone.isEmpty()) {
-                                        name = BluetoothMapContent.getContactNameFromPhone(phone,
-                                                mResolver);
-                                        if(name == null || name.isEmpty()){
-                                            name = phone;
-                                        }
-                                    }else{
-                                        name = phone;
-                                    }
-                                } else {
-                                    TelephonyManager tm =
-                                            (TelephonyManager)mContext.getSystemService(
-                                            Context.TELEPHONY_SERVICE);
-                                    if (tm != null) {
-                                        phone = tm.getLine1Number();
-                                        name = tm.getLine1AlphaTag();
-                                        if(name == null || name.isEmpty()){
-                                            name = phone;
-                                        }
-                                    }
-                                }
-                                String priority = "no";// no priority for sms
-                                /* Incoming message from the network */
-                                if (mMapEventReportVersion ==
-                                        BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
-                                    evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type),
-                                            mSmsType, date, subject, name, priority);
-                                } else {
-                                    evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type),
-                                            mSmsType, date, subject, name, priority,
-                                            (long)threadId, null);
-                                }
-                            } else {
-                                /* Incoming message from the network */
-                                evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type),
-                                        null, mSmsType);
-                            }
-                            sendEvent(evt);
-                        } else {
-                            /* Existing message */
-                            if (type != msg.type) {
-                                listChanged = true;
-                                Log.d(TAG, "new type: " + type + " old type: " + msg.type);
-                                String oldFolder = getSmsFolderName(msg.type);
-                                String newFolder = getSmsFolderName(type);
-                                // Filter out the intermediate outbox steps
-                                if(!oldFolder.equalsIgnoreCase(newFolder)) {
-                                    Event evt = new Event(EVENT_TYPE_SHIFT, id,
-                                            getSmsFolderName(type), oldFolder, mSmsType);
-                                    sendEvent(evt);
-                                }
-                                msg.type = type;
-                            } else if(threadId != msg.threadId) {
-                                listChanged = true;
-                                Log.d(TAG, "Message delete change: type: " + type
-                                        + " old type: " + msg.type
-                                        + "\n    threadId: " + threadId
-                                        + " old threadId: " + msg.threadId);
-                                if(threadId == DELETED_THREAD_ID) { // Message deleted
-                                    // TODO:
-                                    // We shall only use the folder attribute, but can't remember
-                                    // wether to set it to "deleted" or the name of the folder
-                                    // from which the message have been deleted.
-                                    // "old_folder" used only for MessageShift event
-                                    Event evt = new Event(EVENT_TYPE_DELETE, id,
-                                            getSmsFolderName(msg.type), null, mSmsType);
-                                    sendEvent(evt);
-                                    msg.threadId = threadId;
-                                } else { // Undelete
-                                    Event evt = new Event(EVENT_TYPE_SHIFT, id,
-                                            getSmsFolderName(msg.type),
-                                            BluetoothMapContract.FOLDER_NAME_DELETED, mSmsType);
-                                    sendEvent(evt);
-                                    msg.threadId = threadId;
-                                }
-                            }
-                            if(read != msg.flagRead) {
-                                listChanged = true;
-                                msg.flagRead = read;
-                                if (mMapEventReportVersion >
-                                        BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                    Event evt = new Event(EVENT_TYPE_READ_STATUS, id,
-                                            getSmsFolderName(msg.type), mSmsType);
-                                    sendEvent(evt);
-                                }
-                            }
-                            msgListSms.put(id, msg);
                         }
                     } while (c.moveToNext());
                 }
@@ -1471,14 +1565,243 @@ public class BluetoothMapContentObserver {
             }
 
             setMsgListSms(msgListSms, listChanged);
+            mSmsMaxId = maxId;
+            mLastSmsReconcileMs = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Finds SMS changes without a table scan. One query returns the rows above
+     * the _ID watermark and the rows that can still change state (unread, not
+     * in inbox/sent, soft deleted). Tracked messages that were in such a state
+     * but are no longer returned have settled or been deleted since the
+     * previous pass, only those are re-checked by id. Returns false if the
+     * tracked list can no longer be trusted and a full reconciliation is needed.
+     */
+    private boolean updateMsgListSms() {
+        if (V) Log.d(TAG, "updateMsgListSms from _id " + mSmsMaxId);
+
+        boolean listChanged = false;
+        synchronized(getMsgListSms()) {
+            Map<Long, Msg> msgListSms = getMsgListSms();
+            String[] projection =
+                    (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) ?
+                    SMS_PROJECTION_SHORT : SMS_PROJECTION_SHORT_EXT;
+
+            /* Tracked messages whose state may still change */
+            HashSet<Long> unsettledIds = new HashSet<Long>();
+            for (Msg msg : msgListSms.values()) {
+                if (msg.flagRead == 0 || msg.threadId == DELETED_THREAD_ID
+                        || (msg.type != Sms.MESSAGE_TYPE_INBOX
+                        && msg.type != Sms.MESSAGE_TYPE_SENT)) {
+                    unsettledIds.add(msg.id);
+                }
+            }
+
+            String selection = Sms._ID + " > " + mSmsMaxId + " OR " + Sms.READ + " = 0 OR " +
+                    Sms.THREAD_ID + " = " + DELETED_THREAD_ID + " OR " + Sms.TYPE + " NOT IN (" +
+                    Sms.MESSAGE_TYPE_INBOX + "," + Sms.MESSAGE_TYPE_SENT + ")";
+            long maxId = mSmsMaxId;
+            Cursor c = mResolver.query(Sms.CONTENT_URI, projection, selection, null, null);
+            if (c == null) {
+                return false;
+            }
+            try {
+                while (c.moveToNext()) {
+                    long id = c.getLong(c.getColumnIndex(Sms._ID));
+                    maxId = Math.max(maxId, id);
+                    unsettledIds.remove(id);
+                    if (handleSmsRow(c, msgListSms.get(id), msgListSms)) {
+                        listChanged = true;
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            mSmsMaxId = maxId;
+
+            /* The rest settled or were deleted since the previous pass */
+            if (unsettledIds.size() > MAX_INCREMENTAL_RECHECK_IDS) {
+                setMsgListSms(msgListSms, listChanged);
+                return false;
+            }
+            if (!unsettledIds.isEmpty()) {
+                c = mResolver.query(Sms.CONTENT_URI, projection, Sms._ID + " IN (" +
+                        TextUtils.join(",", unsettledIds) + ")", null, null);
+                if (c == null) {
+                    setMsgListSms(msgListSms, listChanged);
+                    return false;
+                }
+                try {
+                    while (c.moveToNext()) {
+                        long id = c.getLong(c.getColumnIndex(Sms._ID));
+                        unsettledIds.remove(id);
+                        if (handleSmsRow(c, msgListSms.get(id), msgListSms)) {
+                            listChanged = true;
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+
+            /* Re-checked messages that are gone have been deleted */
+            for (Long id : unsettledIds) {
+                Msg msg = msgListSms.remove(id);
+                // "old_folder" used only for MessageShift event
+                Event evt = new Event(EVENT_TYPE_DELETE, msg.id,
+                        getSmsFolderName(msg.type), null, mSmsType);
+                sendEvent(evt);
+                listChanged = true;
+            }
+            setMsgListSms(msgListSms, listChanged);
+
+            /* Anything else deleted shows up as a count mismatch */
+            return getRowCount(Sms.CONTENT_URI, null) == msgListSms.size();
+        }
+    }
+
+    /**
+     * Sends the events for one SMS row compared with its tracked state, or
+     * null for a message not tracked yet, and puts the updated state in
+     * msgList. Returns true if the listing changed.
+     */
+    private boolean handleSmsRow(Cursor c, Msg msg, Map<Long, Msg> msgList) {
+        boolean listChanged = false;
+        long id = c.getLong(c.getColumnIndex(Sms._ID));
+        int type = c.getInt(c.getColumnIndex(Sms.TYPE));
+        int threadId = c.getInt(c.getColumnIndex(Sms.THREAD_ID));
+        int read = c.getInt(c.getColumnIndex(Sms.READ));
+
+        /* We must filter out any actions made by the MCE, hence do not send e.g.
+         * a message deleted and/or MessageShift for messages deleted by the MCE. */
+
+        if (msg == null) {
+            /* New message */
+            msg = new Msg(id, type, threadId, read);
+            msgList.put(id, msg);
+            listChanged = true;
+            Event evt;
+            if (mTransmitEvents == true && // extract contact details only if needed
+                    mMapEventReportVersion >
+            BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+                String date = BluetoothMapUtils.getDateTimeString(
+                        c.getLong(c.getColumnIndex(Sms.DATE)));
+                String subject = c.getString(c.getColumnIndex(Sms.BODY));
+                if (subject == null ) {
+                    subject = "";
+                }
+                String name = "";
+                String phone = "";
+                if (type == 1) { //inbox
+                    phone = c.getString(c.getColumnIndex(Sms.ADDRESS));
+                    if (phone != null && !phone.isEmpty()) {
+                        name = BluetoothMapContent.getContactNameFromPhone(phone,
+                                mResolver);
+                        if(name == null || name.isEmpty()){
+                            name = phone;
+                        }
+                    }else{
+                        name = phone;
+                    }
+                } else {
+                    TelephonyManager tm =
+                            (TelephonyManager)mContext.getSystemService(
+                            Context.TELEPHONY_SERVICE);
+                    if (tm != null) {
+                        phone = tm.getLine1Number();
+                        name = tm.getLine1AlphaTag();
+                        if(name == null || name.isEmpty()){
+                            name = phone;
+                        }
+                    }
+                }
+                String priority = "no";// no priority for sms
+                /* Incoming message from the network */
+                if (mMapEventReportVersion ==
+                        BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
+                    evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type),
+                            mSmsType, date, subject, name, priority);
+                } else {
+                    evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type),
+                            mSmsType, date, subject, name, priority,
+                            (long)threadId, null);
+                }
+            } else {
+                /* Incoming message from the network */
+                evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type),
+                        null, mSmsType);
+            }
+            sendEvent(evt);
+        } else {
+            /* Existing message */
+            if (type != msg.type) {
+                listChanged = true;
+                Log.d(TAG, "new type: " + type + " old type: " + msg.type);
+                String oldFolder = getSmsFolderName(msg.type);
+                String newFolder = getSmsFolderName(type);
+                // Filter out the intermediate outbox steps
+                if(!oldFolder.equalsIgnoreCase(newFolder)) {
+                    Event evt = new Event(EVENT_TYPE_SHIFT, id,
+                            getSmsFolderName(type), oldFolder, mSmsType);
+                    sendEvent(evt);
+                }
+                msg.type = type;
+            } else if(threadId != msg.threadId) {
+                listChanged = true;
+                Log.d(TAG, "Message delete change: type: " + type
+                        + " old type: " + msg.type
+                        + "\n    threadId: " + threadId
+                        + " old threadId: " + msg.threadId);
+                if(threadId == DELETED_THREAD_ID) { // Message deleted
+                    // TODO:
+                    // We shall only use the folder attribute, but can't remember
+                    // wether to set it to "deleted" or the name of the folder
+                    // from which the message have been deleted.
+                    // "old_folder" used only for MessageShift event
+                    Event evt = new Event(EVENT_TYPE_DELETE, id,
+                            getSmsFolderName(msg.type), null, mSmsType);
+                    sendEvent(evt);
+                    msg.threadId = threadId;
+                } else { // Undelete
+                    Event evt = new Event(EVENT_TYPE_SHIFT, id,
+                            getSmsFolderName(msg.type),
+                            BluetoothMapContract.FOLDER_NAME_DELETED, mSmsType);
+                    sendEvent(evt);
+                    msg.threadId = threadId;
+                }
+            }
+            if(read != msg.flagRead) {
+                listChanged = true;
+                msg.flagRead = read;
+                if (mMapEventReportVersion >
+                        BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+                    Event evt = new Event(EVENT_TYPE_READ_STATUS, id,
+                            getSmsFolderName(msg.type), mSmsType);
+                    sendEvent(evt);
+                }
+            }
+            msgList.put(id, msg);
         }
+        return listChanged;
     }
 
     private void handleMsgListChangesMms() {
         if (V) Log.d(TAG, "handleMsgListChangesMms");
 
+        if (mMmsMaxId < 0 || SystemClock.elapsedRealtime() - mLastMmsReconcileMs >
+                SMS_MMS_RECONCILE_INTERVAL_MS || !updateMsgListMms()) {
+            reconcileMsgListMms();
+        }
+    }
+
+    /* Rescans the whole MMS table against the tracked messages */
+    private void reconcileMsgListMms() {
+        if (V) Log.d(TAG, "reconcileMsgListMms");
+
         HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
         boolean listChanged = false;
+        long maxId = 0;
         Cursor c;
         synchronized(getMsgListMms()) {
             if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
@@ -1489,133 +1812,17 @@ public class BluetoothMapContentObserver {
                         MMS_PROJECTION_SHORT_EXT, null, null, null);
             }
 
+            mMmsPendingIds.clear();
             try{
                 if (c != null && c.moveToFirst()) {
                     do {
                         long id = c.getLong(c.getColumnIndex(Mms._ID));
-                        int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
-                        int mtype = c.getInt(c.getColumnIndex(Mms.MESSAGE_TYPE));
-                        int threadId = c.getInt(c.getColumnIndex(Mms.THREAD_ID));
-                        // TODO: Go through code to see if we have an issue with mismatch in types
-                        //       for threadId. Seems to be a long in DB??
-                        int read = c.getInt(c.getColumnIndex(Mms.READ));
-
-                        Msg msg = getMsgListMms().remove(id);
-
-                        /* We must filter out any actions made by the MCE, hence do not send
-                         * e.g. a message deleted and/or MessageShift for messages deleted by the
-                         * MCE.*/
-
-                        if (msg == null) {
-                            /* New message - only notify on retrieve conf */
+                        maxId = Math.max(maxId, id);
+                        if (handleMmsRow(c, getMsgListMms().remove(id), msgListMms)) {
                             listChanged = true;
-                            if (getMmsFolderName(type).equalsIgnoreCase(
-                                    BluetoothMapContract.FOLDER_NAME_INBOX) &&
-                                    mtype != MESSAGE_TYPE_RETRIEVE_CONF) {
-                                continue;
-                            }
-                            msg = new Msg(id, type, threadId, read);
-                            msgListMms.put(id, msg);
-                            Event evt;
-                            if (mTransmitEvents == true && // extract contact details only if needed
-                                    mMapEventReportVersion !=
-                                    BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                String date = BluetoothMapUtils.getDateTimeString(
-                                        c.getLong(c.getColumnIndex(Mms.DATE)));
-                                String subject = c.getString(c.getColumnIndex(Mms.SUBJECT));
-                                if (subject == null || subject.length() == 0) {
-                                    /* Get subject from mms text body parts - if any exists */
-                                    subject = BluetoothMapContent.getTextPartsMms(mResolver, id);
-                                }
-                                if (subject == null ) {
-                                    subject = "";
-                                }
-                                int tmpPri = c.getInt(c.getColumnIndex(Mms.PRIORITY));
-                                Log.d(TAG, "TEMP handleMsgListChangesMms, " +
-                                        "newMessage 'read' state: " + read +
-                                        "priority: " + tmpPri);
-
-                                String address = BluetoothMapContent.getAddressMms(
-                                        mResolver,id,BluetoothMapContent.MMS_FROM);
-                                if (address == null ) {
-                                    address = "";
-                                }
-                                String priority = "no";
-                                if(tmpPri == PduHeaders.PRIORITY_HIGH)
-                                    priority = "yes";
-
-                                /* Incoming message from the network */
-                                if (mMapEventReportVersion ==
-                                        BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
-                                    evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type),
-                                            TYPE.MMS, date, subject, address, priority);
-                                } else {
-                                    evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type),
-                                            TYPE.MMS, date, subject, address, priority,
-                                            (long)threadId, null);
-                                }
-
-                            } else {
-                                /* Incoming message from the network */
-                                evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type),
-                                        null, TYPE.MMS);
-                            }
-
-                            sendEvent(evt);
-                        } else {
-                            /* Existing message */
-                            if (type != msg.type) {
-                                Log.d(TAG, "new type: " + type + " old type: " + msg.type);
-                                Event evt;
-                                listChanged = true;
-                                if(msg.localInitiatedSend == false) {
-                                    // Only send events about local initiated changes
-                                    evt = new Event(EVENT_TYPE_SHIFT, id, getMmsFolderName(type),
-                                            getMmsFolderName(msg.type), TYPE.MMS);
-                                    sendEvent(evt);
-                                }
-                                msg.type = type;
-
-                                if (getMmsFolderName(type).equalsIgnoreCase(
-                                        BluetoothMapContract.FOLDER_NAME_SENT)
-                                        && msg.localInitiatedSend == true) {
-                                    // Stop tracking changes for this message
-                                    msg.localInitiatedSend = false;
-                                    evt = new Event(EVENT_TYPE_SENDING_SUCCESS, id,
-                                            getMmsFolderName(type), null, TYPE.MMS);
-                                    sendEvent(evt);
-                                }
-                            } else if(threadId != msg.threadId) {
-                                Log.d(TAG, "Message delete change: type: " + type + " old type: "
-                                        + msg.type
-                                        + "\n    threadId: " + threadId + " old threadId: "
-                                        + msg.threadId);
-                                listChanged = true;
-                                if(threadId == DELETED_THREAD_ID) { // Message deleted
-                                    // "old_folder" used only for MessageShift event
-                                    Event evt = new Event(EVENT_TYPE_DELETE, id,
-                                            getMmsFolderName(msg.type), null, TYPE.MMS);
-                                    sendEvent(evt);
-                                    msg.threadId = threadId;
-                                } else { // Undelete
-                                    Event evt = new Event(EVENT_TYPE_SHIFT, id,
-                                            getMmsFolderName(msg.type),
-                                            BluetoothMapContract.FOLDER_NAME_DELETED, TYPE.MMS);
-                                    sendEvent(evt);
-                                    msg.threadId = threadId;
-                                }
-                            }
-                            if(read != msg.flagRead) {
-                                listChanged = true;
-                                msg.flagRead = read;
-                                if (mMapEventReportVersion >
-                                        BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                    Event evt = new Event(EVENT_TYPE_READ_STATUS, id,
-                                            getMmsFolderName(msg.type), TYPE.MMS);
-                                    sendEvent(evt);
-                                }
-                            }
-                            msgListMms.put(id, msg);
+                        }
+                        if (!msgListMms.containsKey(id)) {
+                            mMmsPendingIds.add(id);
                         }
                     } while (c.moveToNext());
 
@@ -1631,9 +1838,263 @@ public class BluetoothMapContentObserver {
                 listChanged = true;
             }
             setMsgListMms(msgListMms, listChanged);
+            mMmsMaxId = maxId;
+            mLastMmsReconcileMs = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * The MMS counterpart of updateMsgListSms(). Inbox notifications not yet
+     * retrieved are not tracked, they are kept in mMmsPendingIds and queried
+     * by id along with the new and unsettled rows until they are retrieved or
+     * gone.
+     */
+    private boolean updateMsgListMms() {
+        if (V) Log.d(TAG, "updateMsgListMms from _id " + mMmsMaxId);
+
+        boolean listChanged = false;
+        synchronized(getMsgListMms()) {
+            Map<Long, Msg> msgListMms = getMsgListMms();
+            String[] projection =
+                    (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) ?
+                    MMS_PROJECTION_SHORT : MMS_PROJECTION_SHORT_EXT;
+
+            /* Tracked messages whose state may still change */
+            HashSet<Long> unsettledIds = new HashSet<Long>();
+            for (Msg msg : msgListMms.values()) {
+                if (msg.flagRead == 0 || msg.threadId == DELETED_THREAD_ID
+                        || (msg.type != Mms.MESSAGE_BOX_INBOX
+                        && msg.type != Mms.MESSAGE_BOX_SENT)) {
+                    unsettledIds.add(msg.id);
+                }
+            }
+
+            String selection = Mms._ID + " > " + mMmsMaxId + " OR " + Mms.READ + " = 0 OR " +
+                    Mms.THREAD_ID + " = " + DELETED_THREAD_ID + " OR " + Mms.MESSAGE_BOX +
+                    " NOT IN (" + Mms.MESSAGE_BOX_INBOX + "," + Mms.MESSAGE_BOX_SENT + ")";
+            if (!mMmsPendingIds.isEmpty()) {
+                selection += " OR " + Mms._ID + " IN (" +
+                        TextUtils.join(",", mMmsPendingIds) + ")";
+            }
+            HashSet<Long> pendingIds = new HashSet<Long>(mMmsPendingIds);
+            mMmsPendingIds.clear();
+            long maxId = mMmsMaxId;
+            Cursor c = mResolver.query(Mms.CONTENT_URI, projection, selection, null, null);
+            if (c == null) {
+                return false;
+            }
+            try {
+                while (c.moveToNext()) {
+                    long id = c.getLong(c.getColumnIndex(Mms._ID));
+                    maxId = Math.max(maxId, id);
+                    unsettledIds.remove(id);
+                    boolean changed = handleMmsRow(c, msgListMms.get(id), msgListMms);
+                    if (!msgListMms.containsKey(id)) {
+                        mMmsPendingIds.add(id);
+                        /* Only the first sight of a notification changes the listing */
+                        changed = changed && !pendingIds.contains(id);
+                    }
+                    if (changed) {
+                        listChanged = true;
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            mMmsMaxId = maxId;
+
+            /* The rest settled or were deleted since the previous pass */
+            if (unsettledIds.size() > MAX_INCREMENTAL_RECHECK_IDS) {
+                setMsgListMms(msgListMms, listChanged);
+                return false;
+            }
+            if (!unsettledIds.isEmpty()) {
+                c = mResolver.query(Mms.CONTENT_URI, projection, Mms._ID + " IN (" +
+                        TextUtils.join(",", unsettledIds) + ")", null, null);
+                if (c == null) {
+                    setMsgListMms(msgListMms, listChanged);
+                    return false;
+                }
+                try {
+                    while (c.moveToNext()) {
+                        long id = c.getLong(c.getColumnIndex(Mms._ID));
+                        unsettledIds.remove(id);
+                        if (handleMmsRow(c, msgListMms.get(id), msgListMms)) {
+                            listChanged = true;
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+
+            /* Re-checked messages that are gone have been deleted */
+            for (Long id : unsettledIds) {
+                Msg msg = msgListMms.remove(id);
+                // "old_folder" used only for MessageShift event
+                Event evt = new Event(EVENT_TYPE_DELETE, msg.id,
+                        getMmsFolderName(msg.type), null, TYPE.MMS);
+                sendEvent(evt);
+                listChanged = true;
+            }
+            setMsgListMms(msgListMms, listChanged);
+
+            /* Anything else deleted shows up as a count mismatch */
+            return getRowCount(Mms.CONTENT_URI, "NOT (" + Mms.MESSAGE_BOX + " = " +
+                    Mms.MESSAGE_BOX_INBOX + " AND " + Mms.MESSAGE_TYPE + " != " +
+                    MESSAGE_TYPE_RETRIEVE_CONF + ")") == msgListMms.size();
         }
     }
 
+    /**
+     * Sends the events for one MMS row compared with its tracked state, or
+     * null for a message not tracked yet, and puts the updated state in
+     * msgList. Returns true if the listing changed.
+     */
+    private boolean handleMmsRow(Cursor c, Msg msg, Map<Long, Msg> msgList) {
+        boolean listChanged = false;
+        long id = c.getLong(c.getColumnIndex(Mms._ID));
+        int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
+        int mtype = c.getInt(c.getColumnIndex(Mms.MESSAGE_TYPE));
+        int threadId = c.getInt(c.getColumnIndex(Mms.THREAD_ID));
+        // TODO: Go through code to see if we have an issue with mismatch in types
+        //       for threadId. Seems to be a long in DB??
+        int read = c.getInt(c.getColumnIndex(Mms.READ));
+
+        /* We must filter out any actions made by the MCE, hence do not send
+         * e.g. a message deleted and/or MessageShift for messages deleted by the
+         * MCE.*/
+
+        if (msg == null) {
+            /* New message - only notify on retrieve conf */
+            listChanged = true;
+            if (getMmsFolderName(type).equalsIgnoreCase(
+                    BluetoothMapContract.FOLDER_NAME_INBOX) &&
+                    mtype != MESSAGE_TYPE_RETRIEVE_CONF) {
+                return listChanged;
+            }
+            msg = new Msg(id, type, threadId, read);
+            msgList.put(id, msg);
+            Event evt;
+            if (mTransmitEvents == true && // extract contact details only if needed
+                    mMapEventReportVersion !=
+                    BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+                String date = BluetoothMapUtils.getDateTimeString(
+                        c.getLong(c.getColumnIndex(Mms.DATE)));
+                String subject = c.getString(c.getColumnIndex(Mms.SUBJECT));
+                if (subject == null || subject.length() == 0) {
+                    /* Get subject from mms text body parts - if any exists */
+                    subject = BluetoothMapContent.getTextPartsMms(mResolver, id);
+                }
+                if (subject == null ) {
+                    subject = "";
+                }
+                int tmpPri = c.getInt(c.getColumnIndex(Mms.PRIORITY));
+                Log.d(TAG, "TEMP handleMsgListChangesMms, " +
+                        "newMessage 'read' state: " + read +
+                        "priority: " + tmpPri);
+
+                String address = BluetoothMapContent.getAddressMms(
+                        mResolver,id,BluetoothMapContent.MMS_FROM);
+                if (address == null ) {
+                    address = "";
+                }
+                String priority = "no";
+                if(tmpPri == PduHeaders.PRIORITY_HIGH)
+                    priority = "yes";
+
+                /* Incoming message from the network */
+                if (mMapEventReportVersion ==
+                        BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
+                    evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type),
+                            TYPE.MMS, date, subject, address, priority);
+                } else {
+                    evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type),
+                            TYPE.MMS, date, subject, address, priority,
+                            (long)threadId, null);
+                }
+
+            } else {
+                /* Incoming message from the network */
+                evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type),
+                        null, TYPE.MMS);
+            }
+
+            sendEvent(evt);
+        } else {
+            /* Existing message */
+            if (type != msg.type) {
+                Log.d(TAG, "new type: " + type + " old type: " + msg.type);
+                Event evt;
+                listChanged = true;
+                if(msg.localInitiatedSend == false) {
+                    // Only send events about local initiated changes
+                    evt = new Event(EVENT_TYPE_SHIFT, id, getMmsFolderName(type),
+                            getMmsFolderName(msg.type), TYPE.MMS);
+                    sendEvent(evt);
+                }
+                msg.type = type;
+
+                if (getMmsFolderName(type).equalsIgnoreCase(
+                        BluetoothMapContract.FOLDER_NAME_SENT)
+                        && msg.localInitiatedSend == true) {
+                    // Stop tracking changes for this message
+                    msg.localInitiatedSend = false;
+                    evt = new Event(EVENT_TYPE_SENDING_SUCCESS, id,
+                            getMmsFolderName(type), null, TYPE.MMS);
+                    sendEvent(evt);
+                }
+            } else if(threadId != msg.threadId) {
+                Log.d(TAG, "Message delete change: type: " + type + " old type: "
+                        + msg.type
+                        + "\n    threadId: " + threadId + " old threadId: "
+                        + msg.threadId);
+                listChanged = true;
+                if(threadId == DELETED_THREAD_ID) { // Message deleted
+                    // "old_folder" used only for MessageShift event
+                    Event evt = new Event(EVENT_TYPE_DELETE, id,
+                            getMmsFolderName(msg.type), null, TYPE.MMS);
+                    sendEvent(evt);
+                    msg.threadId = threadId;
+                } else { // Undelete
+                    Event evt = new Event(EVENT_TYPE_SHIFT, id,
+                            getMmsFolderName(msg.type),
+                            BluetoothMapContract.FOLDER_NAME_DELETED, TYPE.MMS);
+                    sendEvent(evt);
+                    msg.threadId = threadId;
+                }
+            }
+            if(read != msg.flagRead) {
+                listChanged = true;
+                msg.flagRead = read;
+                if (mMapEventReportVersion >
+                        BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+                    Event evt = new Event(EVENT_TYPE_READ_STATUS, id,
+                            getMmsFolderName(msg.type), TYPE.MMS);
+                    sendEvent(evt);
+                }
+            }
+            msgList.put(id, msg);
+        }
+        return listChanged;
+    }
+
+    /* Number of rows matching selection, or -1 if the provider can't tell */
+    private int getRowCount(Uri uri, String selection) {
+        Cursor c = null;
+        try {
+            c = mResolver.query(uri, new String[] {"COUNT(*)"}, selection, null, null);
+            if (c != null && c.moveToFirst()) {
+                return c.getInt(0);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to count rows of " + uri, e);
+        } finally {
+            if (c != null) c.close();
+        }
+        return -1;
+    }
+
     private void handleMsgListChangesMsg(Uri uri)  throws RemoteException{
         if (V) Log.v(TAG, "handleMsgListChangesMsg uri: " + uri.toString());
 
@@ -1831,11 +2292,6 @@ public class BluetoothMapContentObserver {
             }
 
         }
-        // TODO: check to see if there could be problem with IM and SMS in one instance
-        if (mEnableSmsMms) {
-            handleMsgListChangesSms();
-            handleMsgListChangesMms();
-        }
     }
 
     private void handleContactListChanges(Uri uri) {
@@ -2350,6 +2806,11 @@ public class BluetoothMapContentObserver {
                 }
             }
         }
+        if (res) {
+            /* The tracked lists are updated above, so the observer will not count
+             * this change - a cached listing of the folder must not be used */
+            mMasInstance.updateFolderVersionCounter();
+        }
         return res;
     }
 
@@ -2414,6 +2875,10 @@ public class BluetoothMapContentObserver {
             count = mProviderClient.update(uri, contentValues, null, null);
         }
 
+        if (count > 0) {
+            /* Not counted by the observer, see setMessageStatusDeleted() */
+            mMasInstance.updateFolderVersionCounter();
+        }
         return (count > 0);
     }
 
@@ -2646,6 +3111,10 @@ public class BluetoothMapContentObserver {
             }
         }
 
+        if (handle != -1) {
+            /* Not counted by the observer, see setMessageStatusDeleted() */
+            mMasInstance.updateFolderVersionCounter();
+        }
         /* If multiple recipients return handle of last */
         return handle;
     }
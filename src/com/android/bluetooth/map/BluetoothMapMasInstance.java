@@ -28,6 +28,7 @@ import com.android.bluetooth.ObexServerSockets;
 import com.android.bluetooth.map.BluetoothMapContentObserver.Msg;
 import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
 import com.android.bluetooth.sdp.SdpManager;
+import com.android.internal.annotations.VisibleForTesting;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -146,10 +147,24 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
         TAG = "BluetoothMapMasInstance" + sInstanceCounter++;
     }
 
+    /**
+     * Use observer for the version counters of a MasInstance that is not started.
+     */
+    @VisibleForTesting
+    public void setContentObserver(BluetoothMapContentObserver observer) {
+        mObserver = observer;
+    }
+
     @Override
     public String toString() {
-        return "MasId: " + mMasInstanceId + " Uri:" + mBaseUri + " Is Enable SMS/MMS? :"
+        String str = "MasId: " + mMasInstanceId + " Uri:" + mBaseUri + " Is Enable SMS/MMS? :"
                 + mEnableSmsMms;
+        BluetoothMapContentObserver observer = mObserver;
+        if (observer != null) {
+            str += " Change passes: " + observer.getChangePassesProcessed()
+                    + " coalesced: " + observer.getChangesCoalesced();
+        }
+        return str;
     }
 
     private void init() {
@@ -250,11 +265,23 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
         return mDbIndetifier.get();
     }
 
-    /* package*/
-    long getFolderVersionCounter() {
+    @VisibleForTesting
+    public long getFolderVersionCounter() {
         return mFolderVersionCounter.get();
     }
 
+    /**
+     * @return true if the content observer is registered and has handled every change
+     *         notification, hence the folder version counter is up to date without a
+     *         refresh.
+     */
+    @VisibleForTesting
+    public boolean isFolderVersionCounterTracked() {
+        BluetoothMapContentObserver observer = mObserver;
+        return observer != null && observer.isObserverRegistered()
+                && !observer.hasPendingChanges();
+    }
+
     /* package */
     long getCombinedConvoListVersionCounter() {
         long combinedVersionCounter = mSmsMmsConvoListVersionCounter.get();
@@ -34,6 +34,7 @@ import com.android.bluetooth.map.BluetoothMapMasInstance;
 import com.android.bluetooth.mapapi.BluetoothMapContract;
 import com.android.bluetooth.mapapi.BluetoothMapEmailContract;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -1005,6 +1006,45 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         }
     }
 
+    /**
+     * Writes through to the OBEX body stream in chunks of at most one OBEX packet,
+     * and stops with an IOException once the operation has been aborted. This saves
+     * the encoded copies of a listing, the listing elements are still all built
+     * before the first byte is written.
+     */
+    private class ChunkedOutputStream extends FilterOutputStream {
+        private final int mChunkSize;
+        private long mBytesWritten = 0;
+
+        ChunkedOutputStream(OutputStream out, int chunkSize) {
+            super(out);
+            mChunkSize = Math.max(1, chunkSize);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mIsAborted) {
+                    throw new IOException("Operation aborted");
+                }
+                int bytesToWrite = Math.min(mChunkSize, len);
+                out.write(b, off, bytesToWrite);
+                off += bytesToWrite;
+                len -= bytesToWrite;
+                mBytesWritten += bytesToWrite;
+            }
+        }
+
+        long getBytesWritten() {
+            return mBytesWritten;
+        }
+    }
+
     /**
      * Generate and send the message listing response based on an application
      * parameter header. This function call will block until complete or aborted
@@ -1022,12 +1062,12 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                                       BluetoothMapAppParams appParams,
                                       String folderName){
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0, listSize;
+        int maxChunkSize, listSize;
         boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
-        BluetoothMapMessageListing outList;
+        BluetoothMapMessageListing outList = null;
+        String version = null;
         if(appParams == null){
             appParams = new BluetoothMapAppParams();
             appParams.setMaxListCount(1024);
@@ -1075,9 +1115,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             // Check to see if we only need to send the size - hence no need to encode.
             if(appParams.getMaxListCount() != 0) {
                 outList = mOutContent.msgListing(folderToList, appParams);
-                // Generate the byte stream
                 outAppParams.setMessageListingSize(outList.getCount());
-                String version;
                 if(0 < (mRemoteFeatureMask &
                         BluetoothMapUtils.MAP_FEATURE_MESSAGE_LISTING_FORMAT_V11_BIT)) {
                     version = BluetoothMapUtils.MAP_V11_STR;
@@ -1085,8 +1123,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                     version = BluetoothMapUtils.MAP_V10_STR;
                 }
                 /* This will only set the version, the bit must also be checked before adding any
-                 * 1.1 bits to the listing. */
-                outBytes = outList.encode(mThreadIdSupport, version);
+                 * 1.1 bits to the listing. The listing is encoded once the headers are sent. */
                 hasUnread = outList.hasUnread();
             } else {
                 listSize = mOutContent.msgListingSize(folderToList, appParams);
@@ -1133,21 +1170,22 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         }
 
         maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if(outBytes != null) {
+        if(outList != null) {
+            boolean encoded = false;
+            ChunkedOutputStream chunkedStream = new ChunkedOutputStream(outStream, maxChunkSize);
             try {
-                while (bytesWritten < outBytes.length && mIsAborted == false) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                outList.encode(chunkedStream, mThreadIdSupport, version);
+                encoded = true;
             } catch (IOException e) {
                 if(D) Log.w(TAG,e);
                 // We were probably aborted or disconnected
             } finally {
                 if(outStream != null) { try { outStream.close(); } catch (IOException e) {} }
             }
-            if(bytesWritten != outBytes.length && !mIsAborted) {
-                Log.w(TAG,"sendMessageListingRsp: bytesWritten != outBytes.length" +
+            if(D) Log.d(TAG, "sendMessageListingRsp: " + chunkedStream.getBytesWritten()
+                    + " bytes written");
+            if(!encoded && !mIsAborted) {
+                Log.w(TAG,"sendMessageListingRsp: listing not completely written" +
                         " - sending OBEX_HTTP_BAD_REQUEST");
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             }
@@ -1213,12 +1251,12 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                                     BluetoothMapAppParams appParams,
                                     String folderName){
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0;
+        int maxChunkSize;
         //boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
-        BluetoothMapConvoListing outList;
+        BluetoothMapConvoListing outList = null;
+        BluetoothMapConvoListing encodeList = null;
         if(appParams == null){
             appParams = new BluetoothMapAppParams();
             appParams.setMaxListCount(1024);
@@ -1242,10 +1280,9 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             if(appParams.getMaxListCount() != 0) {
                 outList = mOutContent.convoListing(appParams, false);
                 outAppParams.setConvoListingSize(outList.getCount());
-                // Generate the byte stream
-                outBytes = outList.encode(); // Include thread ID for clients that supports it.
+                // The listing is encoded once the headers are sent
+                encodeList = outList;
       //          hasUnread = outList.hasUnread();
-                if(D) Log.d(TAG, "outBytes size:"+ outBytes.length);
             } else {
                 outList = mOutContent.convoListing(appParams, true);
                 outAppParams.setConvoListingSize(outList.getCount());
@@ -1292,21 +1329,22 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         }
 
         maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if(outBytes != null) {
+        if(encodeList != null) {
+            boolean encoded = false;
+            ChunkedOutputStream chunkedStream = new ChunkedOutputStream(outStream, maxChunkSize);
             try {
-                while (bytesWritten < outBytes.length && mIsAborted == false) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                encodeList.encode(chunkedStream);
+                encoded = true;
             } catch (IOException e) {
                 if(D) Log.w(TAG,e);
                 // We were probably aborted or disconnected
             } finally {
                 if(outStream != null) { try { outStream.close(); } catch (IOException e) {} }
             }
-            if(bytesWritten != outBytes.length && !mIsAborted) {
-                Log.w(TAG,"sendConvoListingRsp: bytesWritten != outBytes.length" +
+            if(D) Log.d(TAG, "sendConvoListingRsp: " + chunkedStream.getBytesWritten()
+                    + " bytes written");
+            if(!encoded && !mIsAborted) {
+                Log.w(TAG,"sendConvoListingRsp: listing not completely written" +
                         " - sending OBEX_HTTP_BAD_REQUEST");
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             }
@@ -665,6 +665,8 @@ public class BluetoothMapService extends ProfileService {
                 Log.e(TAG,"Unable to register map receiver",e);
             }
         }
+        SmsMmsContacts.startNameCache(getContentResolver());
+        SmsMmsContacts.startThreadAddressCache();
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         mSmsCapable = getResources().getBoolean(
                 com.android.internal.R.bool.config_sms_capable);
@@ -849,6 +851,8 @@ public class BluetoothMapService extends ProfileService {
                 Log.e(TAG,"Unable to unregister map receiver",e);
             }
         }
+        SmsMmsContacts.stopNameCache(getContentResolver());
+        SmsMmsContacts.stopThreadAddressCache();
         //Stop MapProfile if already started.
         //TODO: Check if the profile state can be retreived from ProfileService or AdapterService.
         if (!isMapStarted()) {
@@ -1365,6 +1369,8 @@ public class BluetoothMapService extends ProfileService {
         for (BluetoothMapAccountItem key : mMasInstanceMap.keySet()) {
             println(sb, "  " + key + " : " + mMasInstanceMap.get(key));
         }
+        println(sb, "Contact name cache: " + SmsMmsContacts.getNameCacheStats());
+        println(sb, "Thread address cache: " + SmsMmsContacts.getThreadCacheStats());
         println(sb, "mEnabledAccounts:");
         if (mEnabledAccounts != null) {
             for (BluetoothMapAccountItem account : mEnabledAccounts) {
@@ -17,10 +17,12 @@ package com.android.bluetooth.map;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.regex.Pattern;
 
 import android.annotation.TargetApi;
 import android.content.ContentResolver;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.provider.ContactsContract;
@@ -28,7 +30,11 @@ import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.PhoneLookup;
 import android.provider.Telephony.CanonicalAddressesColumns;
 import android.provider.Telephony.MmsSms;
+import android.provider.Telephony.Threads;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 
 /**
  * Use these functions when extracting data for listings. It caches frequently used data to
@@ -40,7 +46,34 @@ public class SmsMmsContacts {
     private static final String TAG = "SmsMmsContacts";
 
     private HashMap<Long,String> mPhoneNumbers = null;
-    private final HashMap<String,MapContact> mNames = new HashMap<String, MapContact>(10);
+
+    /* Process-wide cache of contact lookups, keyed by normalized phone number or
+     * email address, prefixed with the lookup Uri used. Misses are cached as a
+     * contact with id -1. It is only used while sContactsObserver is registered,
+     * as that is what keeps it valid. */
+    private static final int MAX_CACHED_NAMES = 512;
+    private static final LruCache<String, MapContact> sNameCache =
+            new LruCache<String, MapContact>(MAX_CACHED_NAMES);
+    private static final Object sNameCacheLock = new Object();
+    private static ContentObserver sContactsObserver = null;
+    /* Incremented on every contacts change, so a lookup racing with a change is not cached */
+    private static int sNameCacheGeneration = 0;
+    private static int sNameCacheHits = 0;
+    private static int sNameCacheMisses = 0;
+
+    /* Process-wide map of thread id to the ';' separated addresses of its recipients,
+     * loaded per thread when first needed. The recipients of a thread never change and
+     * thread ids are not reused, so entries stay valid without observing the threads. */
+    private static final int MAX_CACHED_THREADS = 256;
+    private static final LruCache<Long, String> sThreadAddresses =
+            new LruCache<Long, String>(MAX_CACHED_THREADS);
+    private static final Object sThreadCacheLock = new Object();
+    private static boolean sThreadCacheEnabled = false;
+    private static int sThreadCacheLoads = 0;
+
+    private static final Uri THREADS_URI =
+            Threads.CONTENT_URI.buildUpon().appendQueryParameter("simple", "true").build();
+    private static final String[] THREADS_PROJECTION = { Threads._ID, Threads.RECIPIENT_IDS };
 
     private static final Uri ADDRESS_URI =
             MmsSms.CONTENT_URI.buildUpon().appendPath("canonical-addresses").build();
@@ -96,7 +129,258 @@ public class SmsMmsContacts {
      */
     public void clearCache() {
         if(mPhoneNumbers != null) mPhoneNumbers.clear();
-        if(mNames != null) mNames.clear();
+    }
+
+    /**
+     * Start caching contact lookups. The cache is flushed whenever the Contacts
+     * database changes.
+     * @param resolver the ContentResolver used to observe the Contacts database.
+     */
+    public static void startNameCache(ContentResolver resolver) {
+        synchronized (sNameCacheLock) {
+            if (sContactsObserver != null) {
+                return;
+            }
+            sNameCache.evictAll();
+            sNameCacheGeneration++;
+            sContactsObserver = new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    synchronized (sNameCacheLock) {
+                        sNameCacheGeneration++;
+                        sNameCache.evictAll();
+                    }
+                }
+            };
+            resolver.registerContentObserver(ContactsContract.Contacts.CONTENT_URI, true,
+                    sContactsObserver);
+        }
+    }
+
+    /**
+     * Stop caching contact lookups and drop the cached contacts.
+     * @param resolver the ContentResolver passed to {@link #startNameCache}.
+     */
+    public static void stopNameCache(ContentResolver resolver) {
+        synchronized (sNameCacheLock) {
+            if (sContactsObserver == null) {
+                return;
+            }
+            resolver.unregisterContentObserver(sContactsObserver);
+            sContactsObserver = null;
+            sNameCache.evictAll();
+            sNameCacheGeneration++;
+        }
+    }
+
+    /**
+     * Returns the cache key for an address: the dialable characters of a phone
+     * number, or the lower case address if it is an email or alphanumeric sender.
+     */
+    static String normalizeAddress(String address) {
+        String trimmed = address.trim();
+        for (int i = 0; i < trimmed.length(); i++) {
+            if (Character.isLetter(trimmed.charAt(i)) || trimmed.charAt(i) == '@') {
+                return trimmed.toLowerCase(Locale.ROOT);
+            }
+        }
+        String number = PhoneNumberUtils.stripSeparators(trimmed);
+        return TextUtils.isEmpty(number) ? trimmed : number;
+    }
+
+    /**
+     * Lookup a contact in the Android Contacts database through the shared cache.
+     * @param phone the phone number or email address of the contact
+     * @param resolver the ContentResolver to use.
+     * @param enterprise true to include work profile contacts, as the event
+     *        reports and message listings do. Conversation listings only look
+     *        in the personal contacts.
+     * @return the contact or null, if no contact was found.
+     */
+    public static MapContact lookupContact(String phone, ContentResolver resolver,
+            boolean enterprise) {
+        if (TextUtils.isEmpty(phone)) {
+            return null;
+        }
+        String key = (enterprise ? "e:" : "p:") + normalizeAddress(phone);
+        int generation;
+        synchronized (sNameCacheLock) {
+            if (sContactsObserver != null) {
+                MapContact contact = sNameCache.get(key);
+                if (contact != null) {
+                    sNameCacheHits++;
+                    return contact.getId() < 0 ? null : contact;
+                }
+                sNameCacheMisses++;
+            }
+            generation = sNameCacheGeneration;
+        }
+
+        MapContact contact = null;
+        Uri uri = Uri.withAppendedPath(enterprise ? PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI
+                : PhoneLookup.CONTENT_FILTER_URI, Uri.encode(phone));
+        Cursor c = resolver.query(uri, CONTACT_PROJECTION, CONTACT_SEL_VISIBLE, null,
+                Contacts.DISPLAY_NAME + " ASC");
+        try {
+            if (c != null && c.moveToFirst()) {
+                contact = MapContact.create(c.getLong(COL_CONTACT_ID),
+                        c.getString(COL_CONTACT_NAME));
+            }
+        } finally {
+            if (c != null) c.close();
+        }
+
+        synchronized (sNameCacheLock) {
+            if (sContactsObserver != null && generation == sNameCacheGeneration) {
+                sNameCache.put(key, contact != null ? contact : MapContact.create(-1, null));
+            }
+        }
+        return contact;
+    }
+
+    /**
+     * Start caching the recipient addresses of the SMS/MMS threads.
+     */
+    public static void startThreadAddressCache() {
+        synchronized (sThreadCacheLock) {
+            sThreadCacheEnabled = true;
+        }
+    }
+
+    /**
+     * Stop caching thread addresses and drop the cached addresses.
+     */
+    public static void stopThreadAddressCache() {
+        synchronized (sThreadCacheLock) {
+            sThreadCacheEnabled = false;
+            sThreadAddresses.evictAll();
+        }
+    }
+
+    /**
+     * Get the recipient addresses of a thread, separated by ';'. A thread not cached yet
+     * is loaded with two queries, outside of the cache lock.
+     * @param resolver the ContentResolver to use.
+     * @param threadId the id of the thread.
+     * @return the addresses, "" for an unknown thread, or null if the cache is not started.
+     */
+    public static String getThreadAddress(ContentResolver resolver, long threadId) {
+        synchronized (sThreadCacheLock) {
+            if (!sThreadCacheEnabled) {
+                return null;
+            }
+        }
+        String address = sThreadAddresses.get(threadId);
+        if (address != null) {
+            return address;
+        }
+        address = loadThreadAddress(resolver, threadId);
+        if (address == null) {
+            /* Not cached, the thread may not be created yet */
+            return "";
+        }
+        synchronized (sThreadCacheLock) {
+            sThreadCacheLoads++;
+            if (sThreadCacheEnabled) {
+                sThreadAddresses.put(threadId, address);
+            }
+        }
+        return address;
+    }
+
+    /* The addresses of one thread, or null if there is no such thread */
+    private static String loadThreadAddress(ContentResolver resolver, long threadId) {
+        String recipientIds = null;
+        Cursor c = resolver.query(THREADS_URI, THREADS_PROJECTION,
+                Threads._ID + " = " + threadId, null, null);
+        try {
+            if (c != null && c.moveToFirst()) {
+                recipientIds = c.getString(1);
+            }
+        } finally {
+            if (c != null) c.close();
+        }
+        if (recipientIds == null) {
+            return null;
+        }
+
+        StringBuilder where = new StringBuilder();
+        for (String id : recipientIds.trim().split(" +")) {
+            try {
+                Long.parseLong(id);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            where.append(where.length() == 0 ? "" : ",").append(id);
+        }
+        HashMap<Long, String> canonical = new HashMap<Long, String>();
+        if (where.length() != 0) {
+            c = resolver.query(ADDRESS_URI, ADDRESS_PROJECTION,
+                    CanonicalAddressesColumns._ID + " IN (" + where + ")", null, null);
+            try {
+                if (c == null) {
+                    Log.e(TAG, "canonical address query failed");
+                    return null;
+                }
+                while (c.moveToNext()) {
+                    canonical.put(c.getLong(COL_ADDR_ID), c.getString(COL_ADDR_ADDR));
+                }
+            } finally {
+                if (c != null) c.close();
+            }
+        }
+        return joinAddresses(recipientIds, canonical);
+    }
+
+    /* Same order as the canonical address query by id this replaces: ascending id */
+    private static String joinAddresses(String recipientIds, HashMap<Long, String> canonical) {
+        String[] ids = recipientIds.trim().split(" +");
+        long[] sortedIds = new long[ids.length];
+        int count = 0;
+        for (String id : ids) {
+            try {
+                sortedIds[count] = Long.parseLong(id);
+                count++;
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid recipient id: " + id);
+            }
+        }
+        Arrays.sort(sortedIds, 0, count);
+        StringBuilder addresses = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && sortedIds[i] == sortedIds[i - 1]) {
+                continue;
+            }
+            String address = canonical.get(sortedIds[i]);
+            if (address == null) {
+                continue;
+            }
+            if (addresses.length() != 0) {
+                addresses.append(';');
+            }
+            addresses.append(address);
+        }
+        return addresses.toString();
+    }
+
+    /**
+     * @return a one line summary of the shared contact cache, for dumpsys.
+     */
+    public static String getNameCacheStats() {
+        synchronized (sNameCacheLock) {
+            return "enabled: " + (sContactsObserver != null) + " size: " + sNameCache.size()
+                    + " hits: " + sNameCacheHits + " misses: " + sNameCacheMisses;
+        }
+    }
+
+    /**
+     * @return a one line summary of the shared thread address cache, for dumpsys.
+     */
+    public static String getThreadCacheStats() {
+        synchronized (sThreadCacheLock) {
+            return "enabled: " + sThreadCacheEnabled + " threads: " + sThreadAddresses.size()
+                    + " loads: " + sThreadCacheLoads;
+        }
     }
 
     /**
@@ -145,51 +429,24 @@ public class SmsMmsContacts {
      */
     public MapContact getContactNameFromPhone(String phone, ContentResolver resolver,
             String contactNameFilter) {
-        MapContact contact = mNames.get(phone);
-
-        if(contact != null){
-            if(contact.getId() < 0) {
-                return null;
-            }
-            if(contactNameFilter == null) {
-                return contact;
+        MapContact contact = lookupContact(phone, resolver, false);
+        if (contact == null || contactNameFilter == null) {
+            return contact;
+        }
+        // Same semantics as a case insensitive "like %filter%" with '*' as wildcard
+        StringBuilder regex = new StringBuilder();
+        for (String part : contactNameFilter.split("\\*", -1)) {
+            if (regex.length() > 0) {
+                regex.append(".*");
             }
-            // Validate filter
-            String searchString = contactNameFilter.replace("*", ".*");
-            searchString = ".*" + searchString + ".*";
-            Pattern p = Pattern.compile(Pattern.quote(searchString), Pattern.CASE_INSENSITIVE);
-            if(p.matcher(contact.getName()).find()) {
-                return contact;
+            if (!part.isEmpty()) {
+                regex.append(Pattern.quote(part));
             }
-            return null;
         }
-
-        // TODO: Should we change to extract both formatted name, and display name?
-
-        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,Uri.encode(phone));
-        String selection = CONTACT_SEL_VISIBLE;
-        String[] selectionArgs = null;
-        if(contactNameFilter != null) {
-            selection += "AND " + ContactsContract.Contacts.DISPLAY_NAME + " like ?";
-            selectionArgs = new String[]{"%" + contactNameFilter.replace("*", "%") + "%"};
-        }
-
-        Cursor c = resolver.query(uri, CONTACT_PROJECTION, selection, selectionArgs, null);
-        try {
-            if (c != null && c.getCount() >= 1) {
-                c.moveToFirst();
-                long id = c.getLong(COL_CONTACT_ID);
-                String name = c.getString(COL_CONTACT_NAME);
-                contact = MapContact.create(id, name);
-                mNames.put(phone, contact);
-            } else {
-                contact = MapContact.create(-1, null);
-                mNames.put(phone, contact);
-                contact = null;
-            }
-        } finally {
-            if (c != null) c.close();
+        Pattern p = Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+        if (contact.getName() != null && p.matcher(contact.getName()).find()) {
+            return contact;
         }
-        return contact;
+        return null;
     }
 }
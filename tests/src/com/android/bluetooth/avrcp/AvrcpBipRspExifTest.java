@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2015, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *           * Redistributions of source code must retain the above copyright
+ *             notice, this list of conditions and the following disclaimer.
+ *           * Redistributions in binary form must reproduce the above
+ *           * copyright notice, this list of conditions and the following
+ *             disclaimer in the documentation and/or other materials provided
+ *             with the distribution.
+ *           * Neither the name of The Linux Foundation nor the names of its
+ *             contributors may be used to endorse or promote products derived
+ *             from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.media.ExifInterface;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link AvrcpBipRspExif}: JPEGs produced by the platform encoder
+ * are passed through {@link AvrcpBipRspExif.JfifToExifOutputStream} and the
+ * result is read back with {@link ExifInterface}.
+ */
+public class AvrcpBipRspExifTest extends AndroidTestCase {
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 200;
+
+    private static final String MAKE = "BipMake";
+    private static final String MODEL = "BipModel";
+    private static final String DATETIME = "2015:06:01 12:34:56";
+    private static final String ORIENTATION = "6";
+    private static final String FLASH = "1";
+
+    private File mSrcFile;
+    private File mOutFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSrcFile = new File(getContext().getCacheDir(), "exif_src.jpg");
+        mOutFile = new File(getContext().getCacheDir(), "exif_out.jpg");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSrcFile.delete();
+        mOutFile.delete();
+        super.tearDown();
+    }
+
+    /* Encodes a w*h thumbnail the way the parser does, JFIF APP0 included */
+    private static byte[] encodeJpeg(int w, int h) {
+        byte[] yuv = new byte[w * h * AvrcpBipRspYuvConverter.BYTES_PER_PIXEL];
+        for (int i = 0; i < yuv.length; i++) {
+            yuv[i] = (byte) i;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(new YuvImage(yuv, ImageFormat.YUY2, w, h, null)
+                .compressToJpeg(new Rect(0, 0, w, h), 90, out));
+        return out.toByteArray();
+    }
+
+    /* Feeds jpeg through the splicer in small writes so that segment
+     * boundaries fall in the middle of a write */
+    private static byte[] splice(byte[] jpeg, byte[] app1) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = new AvrcpBipRspExif.JfifToExifOutputStream(bytes, app1);
+        out.write(jpeg[0]);
+        for (int off = 1; off < jpeg.length; off += 7) {
+            out.write(jpeg, off, Math.min(7, jpeg.length - off));
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static boolean hasApp0(byte[] jpeg) {
+        return (jpeg[2] & 0xff) == 0xff && (jpeg[3] & 0xff) == 0xe0;
+    }
+
+    private static byte[] stripApp0(byte[] jpeg) {
+        assertTrue(hasApp0(jpeg));
+        int length = ((jpeg[4] & 0xff) << 8) | (jpeg[5] & 0xff);
+        byte[] stripped = new byte[jpeg.length - 2 - length];
+        System.arraycopy(jpeg, 0, stripped, 0, 2);
+        System.arraycopy(jpeg, 4 + length, stripped, 2, stripped.length - 2);
+        return stripped;
+    }
+
+    private void writeSource(boolean withFlash) throws IOException {
+        FileOutputStream out = new FileOutputStream(mSrcFile);
+        try {
+            Bitmap.createBitmap(64, 48, Bitmap.Config.ARGB_8888)
+                    .compress(Bitmap.CompressFormat.JPEG, 90, out);
+        } finally {
+            out.close();
+        }
+        ExifInterface exif = new ExifInterface(mSrcFile.getPath());
+        exif.setAttribute(ExifInterface.TAG_MAKE, MAKE);
+        exif.setAttribute(ExifInterface.TAG_MODEL, MODEL);
+        exif.setAttribute(ExifInterface.TAG_DATETIME, DATETIME);
+        exif.setAttribute(ExifInterface.TAG_ORIENTATION, ORIENTATION);
+        if (withFlash) {
+            exif.setAttribute(ExifInterface.TAG_FLASH, FLASH);
+        }
+        exif.saveAttributes();
+    }
+
+    private ExifInterface readBack(byte[] jpeg) throws IOException {
+        FileOutputStream out = new FileOutputStream(mOutFile);
+        try {
+            out.write(jpeg);
+        } finally {
+            out.close();
+        }
+        return new ExifInterface(mOutFile.getPath());
+    }
+
+    private static void assertValidJpeg(byte[] jpeg, int w, int h) {
+        assertEquals(0xff, jpeg[0] & 0xff);
+        assertEquals(0xd8, jpeg[1] & 0xff);
+        /* APP1 follows SOI and the JFIF APP0 is gone */
+        assertEquals(0xff, jpeg[2] & 0xff);
+        assertEquals(0xe1, jpeg[3] & 0xff);
+        int app1Length = ((jpeg[4] & 0xff) << 8) | (jpeg[5] & 0xff);
+        assertFalse((jpeg[4 + app1Length] & 0xff) == 0xff
+                && (jpeg[5 + app1Length] & 0xff) == 0xe0);
+        Bitmap decoded = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+        assertNotNull(decoded);
+        assertEquals(w, decoded.getWidth());
+        assertEquals(h, decoded.getHeight());
+    }
+
+    @SmallTest
+    public void testSpliceCopiesSourceAttributes() throws IOException {
+        writeSource(true);
+        byte[] jpeg = encodeJpeg(WIDTH, HEIGHT);
+        assertTrue(hasApp0(jpeg));
+        byte[] out = splice(jpeg, AvrcpBipRspExif.buildApp1(mSrcFile.getPath(), WIDTH, HEIGHT));
+        assertValidJpeg(out, WIDTH, HEIGHT);
+
+        ExifInterface exif = readBack(out);
+        assertEquals(WIDTH, exif.getAttributeInt(ExifInterface.TAG_IMAGE_WIDTH, -1));
+        assertEquals(HEIGHT, exif.getAttributeInt(ExifInterface.TAG_IMAGE_LENGTH, -1));
+        assertEquals(MAKE, exif.getAttribute(ExifInterface.TAG_MAKE));
+        assertEquals(MODEL, exif.getAttribute(ExifInterface.TAG_MODEL));
+        assertEquals(DATETIME, exif.getAttribute(ExifInterface.TAG_DATETIME));
+        assertEquals(Integer.parseInt(ORIENTATION),
+                exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, -1));
+        assertEquals(Integer.parseInt(FLASH), exif.getAttributeInt(ExifInterface.TAG_FLASH, -1));
+    }
+
+    @SmallTest
+    public void testSpliceWithoutExifIfd() throws IOException {
+        /* No flash on the source, so only IFD0 is written */
+        writeSource(false);
+        byte[] jpeg = encodeJpeg(WIDTH, HEIGHT);
+        byte[] out = splice(jpeg, AvrcpBipRspExif.buildApp1(mSrcFile.getPath(), WIDTH, HEIGHT));
+        assertValidJpeg(out, WIDTH, HEIGHT);
+
+        ExifInterface exif = readBack(out);
+        assertEquals(WIDTH, exif.getAttributeInt(ExifInterface.TAG_IMAGE_WIDTH, -1));
+        assertEquals(HEIGHT, exif.getAttributeInt(ExifInterface.TAG_IMAGE_LENGTH, -1));
+        assertEquals(MAKE, exif.getAttribute(ExifInterface.TAG_MAKE));
+        assertEquals(Integer.parseInt(ORIENTATION),
+                exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, -1));
+        assertNull(exif.getAttribute(ExifInterface.TAG_FLASH));
+    }
+
+    @SmallTest
+    public void testSpliceWithoutSourceArt() throws IOException {
+        byte[] jpeg = encodeJpeg(WIDTH, HEIGHT);
+        byte[] out = splice(jpeg, AvrcpBipRspExif.buildApp1(null, WIDTH, HEIGHT));
+        assertValidJpeg(out, WIDTH, HEIGHT);
+
+        ExifInterface exif = readBack(out);
+        assertEquals(WIDTH, exif.getAttributeInt(ExifInterface.TAG_IMAGE_WIDTH, -1));
+        assertEquals(HEIGHT, exif.getAttributeInt(ExifInterface.TAG_IMAGE_LENGTH, -1));
+        assertNull(exif.getAttribute(ExifInterface.TAG_MAKE));
+        assertNull(exif.getAttribute(ExifInterface.TAG_DATETIME));
+        assertNull(exif.getAttribute(ExifInterface.TAG_FLASH));
+    }
+
+    @SmallTest
+    public void testSpliceWithoutApp0() throws IOException {
+        writeSource(true);
+        byte[] jpeg = stripApp0(encodeJpeg(WIDTH, HEIGHT));
+        byte[] app1 = AvrcpBipRspExif.buildApp1(mSrcFile.getPath(), WIDTH, HEIGHT);
+        byte[] out = splice(jpeg, app1);
+        assertValidJpeg(out, WIDTH, HEIGHT);
+
+        /* Nothing but the APP1 segment is added, nothing of the input dropped */
+        assertEquals(jpeg.length + app1.length, out.length);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(jpeg, 2, jpeg.length),
+                Arrays.copyOfRange(out, 2 + app1.length, out.length)));
+
+        ExifInterface exif = readBack(out);
+        assertEquals(WIDTH, exif.getAttributeInt(ExifInterface.TAG_IMAGE_WIDTH, -1));
+        assertEquals(HEIGHT, exif.getAttributeInt(ExifInterface.TAG_IMAGE_LENGTH, -1));
+        assertEquals(MODEL, exif.getAttribute(ExifInterface.TAG_MODEL));
+        assertEquals(Integer.parseInt(FLASH), exif.getAttributeInt(ExifInterface.TAG_FLASH, -1));
+    }
+}
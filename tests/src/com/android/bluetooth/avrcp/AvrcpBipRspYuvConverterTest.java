@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2015, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *           * Redistributions of source code must retain the above copyright
+ *             notice, this list of conditions and the following disclaimer.
+ *           * Redistributions in binary form must reproduce the above
+ *           * copyright notice, this list of conditions and the following
+ *             disclaimer in the documentation and/or other materials provided
+ *             with the distribution.
+ *           * Neither the name of The Linux Foundation nor the names of its
+ *             contributors may be used to endorse or promote products derived
+ *             from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests and throughput benchmark for {@link AvrcpBipRspYuvConverter}.
+ */
+public class AvrcpBipRspYuvConverterTest extends AndroidTestCase {
+    private static final String TAG = "AvrcpBipRspYuvConverterTest";
+
+    private static final int BENCH_ITERATIONS = 20;
+
+    /* Per pixel conversion the parser used before the lookup tables */
+    private static void rgb2yuv(int rgb, byte[] convArray) {
+        int a = (rgb >> 16) & 0xff;
+        int b = (rgb >> 8) & 0xff;
+        int c = rgb & 0xff;
+        convArray[0] = (byte) ((19595 * a + 38470 * b + 7471 * c) >> 16);
+        convArray[1] = (byte) (((-11059 * a + -21709 * b + 32768 * c) >> 16) + 128);
+        convArray[2] = (byte) (((32768 * a + -27439 * b + -5329 * c) >> 16) + 128);
+    }
+
+    private static byte[] referenceConvert(int[] rgb, int w, int h) {
+        byte[] convArray = new byte[w * h * AvrcpBipRspYuvConverter.BYTES_PER_PIXEL];
+        byte[] col0 = new byte[3];
+        byte[] col1 = new byte[3];
+        for (int i = 0; i < h; ++i) {
+            for (int j = 0; j < w; j += 2) {
+                int id = i * w + j;
+                rgb2yuv(rgb[id], col0);
+                rgb2yuv(rgb[id + 1], col1);
+                int index = id / 2 * 4;
+                convArray[index] = col0[0];
+                convArray[index + 1] = col0[1];
+                convArray[index + 2] = col1[0];
+                convArray[index + 3] = col0[2];
+            }
+        }
+        return convArray;
+    }
+
+    private static int[] randomPixels(int w, int h) {
+        Random rnd = new Random(w * 31 + h);
+        int[] rgb = new int[w * h];
+        for (int i = 0; i < rgb.length; i++) {
+            rgb[i] = 0xff000000 | rnd.nextInt(0x1000000);
+        }
+        return rgb;
+    }
+
+    @SmallTest
+    public void testMatchesReference() {
+        int[] rgb = randomPixels(200, 200);
+        assertTrue(Arrays.equals(referenceConvert(rgb, 200, 200),
+                AvrcpBipRspYuvConverter.convert(rgb, 200, 200)));
+    }
+
+    @SmallTest
+    public void testMatchesReferenceNonSquare() {
+        int[] rgb = randomPixels(640, 480);
+        assertTrue(Arrays.equals(referenceConvert(rgb, 640, 480),
+                AvrcpBipRspYuvConverter.convert(rgb, 640, 480)));
+    }
+
+    @SmallTest
+    public void testOddWidth() {
+        int[] rgb = randomPixels(3, 2);
+        byte[] yuv = AvrcpBipRspYuvConverter.convert(rgb, 3, 2);
+        assertEquals(4 * 2 * AvrcpBipRspYuvConverter.BYTES_PER_PIXEL, yuv.length);
+        /* The last pixel is paired with itself */
+        assertEquals(yuv[4], yuv[6]);
+    }
+
+    private static long timeReference(int[] rgb, int w, int h) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCH_ITERATIONS; i++) {
+            referenceConvert(rgb, w, h);
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    private static long timeConvert(int[] rgb, int w, int h) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCH_ITERATIONS; i++) {
+            AvrcpBipRspYuvConverter.convert(rgb, w, h);
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    private static String mpixPerSec(int w, int h, long nanos) {
+        double mpix = (double) w * h * BENCH_ITERATIONS / 1e6;
+        return String.format("%.1f Mpix/s", mpix / (nanos / 1e9));
+    }
+
+    private static void benchmark(int w, int h) {
+        int[] rgb = randomPixels(w, h);
+        /* Warm up the JIT */
+        timeReference(rgb, w, h);
+        timeConvert(rgb, w, h);
+        Log.i(TAG, w + "x" + h + ": reference " + mpixPerSec(w, h, timeReference(rgb, w, h)) +
+                ", lookup " + mpixPerSec(w, h, timeConvert(rgb, w, h)));
+    }
+
+    @LargeTest
+    public void testBenchmarkThumbnail() {
+        benchmark(200, 200);
+    }
+
+    @LargeTest
+    public void testBenchmark500() {
+        benchmark(500, 500);
+    }
+
+    /* Native album art sizes, the cost of converting art without scaling it first */
+    @LargeTest
+    public void testBenchmarkNative640() {
+        benchmark(640, 640);
+    }
+
+    @LargeTest
+    public void testBenchmarkNative1000() {
+        benchmark(1000, 1000);
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2015, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *           * Redistributions of source code must retain the above copyright
+ *             notice, this list of conditions and the following disclaimer.
+ *           * Redistributions in binary form must reproduce the above
+ *           * copyright notice, this list of conditions and the following
+ *             disclaimer in the documentation and/or other materials provided
+ *             with the distribution.
+ *           * Neither the name of The Linux Foundation nor the names of its
+ *             contributors may be used to endorse or promote products derived
+ *             from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.android.bluetooth.avrcp;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.bluetooth.tests.mock.BluetoothMockContext;
+
+import java.util.Random;
+
+/**
+ * Replays recorded controller browse sequences through
+ * {@link AvrcpBrowseCommands}, the code the Avrcp message handler runs for
+ * each browse command short of the JNI response, against a fake MediaStore
+ * of 10k to 100k tracks, and logs per command latency histograms in
+ * microseconds. Commands on the library paths are answered on the browse
+ * lane of the device without a hand off to the Avrcp handler, so none is
+ * measured.
+ */
+public class AvrcpBrowseBenchmarkTest extends AndroidTestCase {
+    private static final String TAG = "AvrcpBrowseBenchmarkTest";
+
+    private static final int TRACKS_PER_ALBUM = 12;
+    private static final int ALBUMS_PER_ARTIST = 4;
+    private static final int PAGE_SIZE = 10;
+    private static final long BUILD_TIMEOUT_MS = 120000;
+    /* Up to 2^17us, about 131ms, before the overflow bucket */
+    private static final int NUM_BUCKETS_US = 19;
+
+    private static final int CMD_CHANGE_PATH = 0;
+    private static final int CMD_GET_TOTAL_NUMBER_OF_ITEMS = 1;
+    private static final int CMD_GET_FOLDER_ITEMS = 2;
+    private static final int CMD_GET_ITEM_ATTRS = 3;
+    private static final String[] CMD_NAMES = new String[] {
+            "ChangePath", "GetTotalNumberOfItems", "GetFolderItems", "GetItemAttributes"
+    };
+
+    /* Recorded head unit session: open the album list, page through it,
+     * step into an album, list its first page and read the attributes of
+     * its tracks. Paging restarts with every folder listed. */
+    private static final int[] ALBUM_BROWSE_SEQUENCE = new int[] {
+            CMD_GET_TOTAL_NUMBER_OF_ITEMS, CMD_GET_FOLDER_ITEMS, CMD_GET_FOLDER_ITEMS,
+            CMD_GET_FOLDER_ITEMS, CMD_CHANGE_PATH, CMD_GET_TOTAL_NUMBER_OF_ITEMS,
+            CMD_GET_FOLDER_ITEMS, CMD_GET_ITEM_ATTRS, CMD_GET_ITEM_ATTRS, CMD_GET_ITEM_ATTRS
+    };
+
+    private static final int[] ALL_ATTRS = new int[] {
+            Avrcp.MEDIA_ATTR_TITLE, Avrcp.MEDIA_ATTR_ARTIST, Avrcp.MEDIA_ATTR_ALBUM,
+            Avrcp.MEDIA_ATTR_TRACK_NUM, Avrcp.MEDIA_ATTR_NUM_TRACKS, Avrcp.MEDIA_ATTR_GENRE,
+            Avrcp.MEDIA_ATTR_PLAYING_TIME, Avrcp.MEDIA_ATTR_COVER_ART
+    };
+
+    /**
+     * MediaStore stand-in serving generated audio rows in the requested
+     * projection, a single row when the selection ends with "_id=<id>".
+     * Playlists and genres are empty.
+     */
+    private static class FakeMediaStoreProvider extends MockContentProvider {
+        private final int mNumTracks;
+
+        FakeMediaStoreProvider(int numTracks) {
+            mNumTracks = numTracks;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            // "column AS alias" projections are served under the alias
+            String[] names = new String[projection.length];
+            String[] columns = new String[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                int as = projection[i].indexOf(" AS ");
+                names[i] = (as < 0) ? projection[i] : projection[i].substring(as + 4);
+                columns[i] = (as < 0) ? projection[i] : names[i];
+            }
+            MatrixCursor cursor = new MatrixCursor(names);
+            if (!MediaStore.Audio.Media.EXTERNAL_CONTENT_URI.equals(uri)) {
+                return cursor;
+            }
+            int first = 1;
+            int last = mNumTracks;
+            int idSelection = (selection == null) ? -1 : selection.lastIndexOf("_id=");
+            if (idSelection >= 0) {
+                first = Integer.parseInt(selection.substring(idSelection + 4));
+                last = Math.min(first, mNumTracks);
+            }
+            Object[] row = new Object[projection.length];
+            for (int id = first; id <= last; id++) {
+                addRow(cursor, columns, row, id);
+            }
+            return cursor;
+        }
+
+        private static void addRow(MatrixCursor cursor, String[] columns, Object[] row, int id) {
+            long albumId = (id - 1) / TRACKS_PER_ALBUM + 1;
+            long artistId = (albumId - 1) / ALBUMS_PER_ARTIST + 1;
+            for (int i = 0; i < columns.length; i++) {
+                row[i] = getColumn(columns[i], id, albumId, artistId);
+            }
+            cursor.addRow(row);
+        }
+
+        private static Object getColumn(String column, long id, long albumId, long artistId) {
+            if (MediaStore.Audio.Media._ID.equals(column)) {
+                return id;
+            } else if (MediaStore.Audio.Media.TITLE.equals(column)) {
+                return String.format("Track %06d", id);
+            } else if (MediaStore.Audio.Media.ARTIST.equals(column)) {
+                return "Artist " + artistId;
+            } else if (MediaStore.Audio.Media.ALBUM.equals(column)) {
+                return "Album " + albumId;
+            } else if (MediaStore.Audio.Media.DURATION.equals(column)) {
+                return String.valueOf(180000 + id % 120000);
+            } else if (MediaStore.Audio.Media.ALBUM_ID.equals(column)) {
+                return albumId;
+            } else if (MediaStore.Audio.Media.ARTIST_ID.equals(column)) {
+                return artistId;
+            } else if (MediaStore.Audio.Media.ALBUM_KEY.equals(column)) {
+                return String.format("album%06d", albumId);
+            } else if (MediaStore.Audio.Media.ARTIST_KEY.equals(column)) {
+                return String.format("artist%06d", artistId);
+            }
+            return null;
+        }
+    }
+
+    private AvrcpMediaLibrary mLibrary;
+    private AvrcpBrowseCommands mCommands;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mLibrary != null) {
+            mLibrary.stop();
+            mLibrary = null;
+        }
+        mCommands = null;
+        super.tearDown();
+    }
+
+    private AvrcpMediaLibrary.Snapshot buildLibrary(int numTracks) throws Exception {
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(MediaStore.AUTHORITY, new FakeMediaStoreProvider(numTracks));
+        mLibrary = new AvrcpMediaLibrary(new BluetoothMockContext(resolver, getContext()), null);
+        mCommands = new AvrcpBrowseCommands(resolver, mLibrary, null);
+
+        long start = SystemClock.elapsedRealtime();
+        mLibrary.start();
+        AvrcpMediaLibrary.Snapshot snapshot = null;
+        while (snapshot == null) {
+            assertTrue("library not built in time",
+                    SystemClock.elapsedRealtime() - start < BUILD_TIMEOUT_MS);
+            Thread.sleep(10);
+            snapshot = mLibrary.getSnapshot(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI);
+        }
+        Log.i(TAG, "indexed " + numTracks + " tracks in " +
+                (SystemClock.elapsedRealtime() - start) + "ms");
+        return snapshot;
+    }
+
+    /* pathUid is null while the album list itself is browsed */
+    private int runCommand(int cmd, AvrcpMediaLibrary.Snapshot snapshot, String pathUid,
+            int page, Random random) {
+        switch (cmd) {
+            case CMD_GET_TOTAL_NUMBER_OF_ITEMS:
+                return (int)mCommands.getTotalNumberOfItems(snapshot, Avrcp.PATH_ALBUMS,
+                        pathUid);
+            case CMD_GET_FOLDER_ITEMS:
+                AvrcpBrowseCommands.FolderItems items = mCommands.getFolderItems(snapshot,
+                        Avrcp.PATH_ALBUMS, pathUid, page * PAGE_SIZE, PAGE_SIZE,
+                        (byte)ALL_ATTRS.length, ALL_ATTRS);
+                return items.mNumItems;
+            case CMD_GET_ITEM_ATTRS:
+                AvrcpMediaLibrary.Folder folder = snapshot.getAlbum(Long.valueOf(pathUid));
+                long uid = folder.tracks.get(random.nextInt(folder.size())).id;
+                String[] textArray = new String[ALL_ATTRS.length];
+                return mCommands.getItemAttr((byte)Avrcp.SCOPE_VIRTUAL_FILE_SYS, uid,
+                        (byte)ALL_ATTRS.length, ALL_ATTRS,
+                        MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, Avrcp.PATH_ALBUMS,
+                        textArray);
+            default:
+                return 0;
+        }
+    }
+
+    private AvrcpLatencyHistogram[] replay(AvrcpMediaLibrary.Snapshot snapshot,
+            int sessions) {
+        AvrcpLatencyHistogram[] histograms = new AvrcpLatencyHistogram[CMD_NAMES.length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new AvrcpLatencyHistogram(NUM_BUCKETS_US, "us");
+        }
+        Random random = new Random(sessions);
+        int sink = 0;
+        for (int s = 0; s < sessions; s++) {
+            long albumId = snapshot.albums.get(random.nextInt(snapshot.albums.size())).id;
+            String pathUid = null;
+            int page = 0;
+            for (int cmd : ALBUM_BROWSE_SEQUENCE) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                if (cmd == CMD_CHANGE_PATH) {
+                    AvrcpBrowseCommands.ChangePathResult result =
+                            mCommands.changePathDown(snapshot, Avrcp.PATH_ALBUMS, null, albumId);
+                    pathUid = result.mPathUid;
+                    sink += result.mNumItems;
+                    page = 0;
+                } else {
+                    sink += runCommand(cmd, snapshot, pathUid, page, random);
+                    if (cmd == CMD_GET_FOLDER_ITEMS) {
+                        page++;
+                    }
+                }
+                histograms[cmd].record((SystemClock.elapsedRealtimeNanos() - start) / 1000);
+            }
+        }
+        assertTrue(sink > 0);
+        return histograms;
+    }
+
+    private void benchmark(int numTracks) throws Exception {
+        AvrcpMediaLibrary.Snapshot snapshot = buildLibrary(numTracks);
+        assertEquals(numTracks, snapshot.titles.size());
+        AvrcpLatencyHistogram[] histograms = replay(snapshot, 1000);
+        for (int i = 0; i < histograms.length; i++) {
+            Log.i(TAG, numTracks + " tracks, " + CMD_NAMES[i] + ": " + histograms[i]);
+        }
+    }
+
+    @SmallTest
+    public void testHistogramBuckets() {
+        AvrcpLatencyHistogram histogram = new AvrcpLatencyHistogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.record(0);
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.record(5);
+        }
+        histogram.record(5000);
+        assertEquals(100, histogram.getCount());
+        assertEquals(1, histogram.getPercentile(50));
+        assertEquals(8, histogram.getPercentile(99));
+        assertEquals(5000, histogram.getPercentile(100));
+        assertEquals(5000, histogram.getMax());
+    }
+
+    @SmallTest
+    public void testHistogramMicroseconds() {
+        AvrcpLatencyHistogram histogram = new AvrcpLatencyHistogram(NUM_BUCKETS_US, "us");
+        for (int i = 0; i < 99; i++) {
+            histogram.record(300);
+        }
+        histogram.record(100000);
+        assertEquals(512, histogram.getPercentile(50));
+        assertEquals(512, histogram.getPercentile(99));
+        assertEquals(131072, histogram.getPercentile(100));
+        assertTrue(histogram.toString().contains("p50<512us"));
+    }
+
+    @SmallTest
+    public void testLibraryFromFakeMediaStore() throws Exception {
+        AvrcpMediaLibrary.Snapshot snapshot = buildLibrary(100);
+        assertEquals(100, snapshot.titles.size());
+        assertEquals((100 + TRACKS_PER_ALBUM - 1) / TRACKS_PER_ALBUM, snapshot.albums.size());
+        assertEquals("Album 1", snapshot.getTrack(1).album);
+    }
+
+    @SmallTest
+    public void testBrowseCommandsFromFakeMediaStore() throws Exception {
+        AvrcpMediaLibrary.Snapshot snapshot = buildLibrary(100);
+        AvrcpBrowseCommands.FolderItems albums = mCommands.getFolderItems(snapshot,
+                Avrcp.PATH_ALBUMS, null, 0, PAGE_SIZE, (byte)0, new int[0]);
+        assertEquals(Avrcp.OPERATION_SUCCESSFUL, albums.mStatus);
+        assertEquals(PAGE_SIZE, albums.mNumItems);
+        assertEquals("Album 1", albums.mDisplayName[0]);
+
+        AvrcpBrowseCommands.ChangePathResult result =
+                mCommands.changePathDown(snapshot, Avrcp.PATH_ALBUMS, null, albums.mUid[0]);
+        assertEquals(Avrcp.OPERATION_SUCCESSFUL, result.mStatus);
+        assertEquals(TRACKS_PER_ALBUM, result.mNumItems);
+        assertEquals(TRACKS_PER_ALBUM, mCommands.getTotalNumberOfItems(snapshot,
+                Avrcp.PATH_ALBUMS, result.mPathUid));
+
+        AvrcpBrowseCommands.FolderItems tracks = mCommands.getFolderItems(snapshot,
+                Avrcp.PATH_ALBUMS, result.mPathUid, PAGE_SIZE, PAGE_SIZE,
+                (byte)ALL_ATTRS.length, ALL_ATTRS);
+        assertEquals(TRACKS_PER_ALBUM - PAGE_SIZE, tracks.mNumItems);
+        assertEquals("Track 000011", tracks.mDisplayName[0]);
+        assertEquals(Avrcp.RANGE_OUT_OF_BOUNDS, mCommands.getFolderItems(snapshot,
+                Avrcp.PATH_ALBUMS, result.mPathUid, TRACKS_PER_ALBUM, PAGE_SIZE,
+                (byte)0, new int[0]).mStatus);
+
+        String[] textArray = new String[ALL_ATTRS.length];
+        assertEquals(ALL_ATTRS.length, mCommands.getItemAttr(
+                (byte)Avrcp.SCOPE_VIRTUAL_FILE_SYS, 11, (byte)ALL_ATTRS.length, ALL_ATTRS,
+                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, Avrcp.PATH_ALBUMS, textArray));
+        assertEquals("Track 000011", textArray[0]);
+        assertEquals("Album 1", textArray[2]);
+        assertEquals("", textArray[7]);
+    }
+
+    @LargeTest
+    public void testBrowseBenchmark10k() throws Exception {
+        benchmark(10000);
+    }
+
+    @LargeTest
+    public void testBrowseBenchmark100k() throws Exception {
+        benchmark(100000);
+    }
+}
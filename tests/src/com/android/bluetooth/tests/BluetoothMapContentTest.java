@@ -10,9 +10,11 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedHashMap;
+import java.util.List;
 
 import android.annotation.TargetApi;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -20,9 +22,12 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.Debug;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.MmsSms;
+import android.provider.Telephony.Sms;
 import android.provider.Telephony.Threads;
 import android.test.AndroidTestCase;
 import android.util.Log;
@@ -32,13 +37,16 @@ import com.android.bluetooth.map.BluetoothMapAccountItem;
 import com.android.bluetooth.map.BluetoothMapAccountLoader;
 import com.android.bluetooth.map.BluetoothMapAppParams;
 import com.android.bluetooth.map.BluetoothMapContent;
+import com.android.bluetooth.map.BluetoothMapContentObserver;
 import com.android.bluetooth.map.BluetoothMapFolderElement;
 import com.android.bluetooth.map.BluetoothMapMessageListing;
+import com.android.bluetooth.map.BluetoothMapMessageListingElement;
 import com.android.bluetooth.map.BluetoothMapUtils;
 import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
 import com.android.bluetooth.map.MapContact;
 import com.android.bluetooth.map.SmsMmsContacts;
 import com.android.bluetooth.mapapi.BluetoothMapContract;
+import com.google.android.mms.pdu.PduHeaders;
 
 public class BluetoothMapContentTest extends AndroidTestCase {
 
@@ -694,6 +702,279 @@ public class BluetoothMapContentTest extends AndroidTestCase {
         Uri mUri = mResolver.insert(Uri.parse("content://sms"), item);
     }
 
+    private Uri addSms(int type, int read) {
+        ContentValues item = new ContentValues();
+        item.put(Sms.ADDRESS, "1234");
+        item.put(Sms.BODY, "incremental test message");
+        item.put(Sms.DATE, System.currentTimeMillis());
+        item.put(Sms.TYPE, type);
+        item.put(Sms.READ, read);
+        return mResolver.insert(Sms.CONTENT_URI, item);
+    }
+
+    private void setColumn(Uri uri, String column, int value) {
+        ContentValues values = new ContentValues();
+        values.put(column, value);
+        assertEquals(1, mResolver.update(uri, values, null, null));
+    }
+
+    /* Each incremental pass of the content observer must leave the same
+     * tracked messages as a full rescan of the SMS and MMS tables */
+    private void assertIncrementalMatchesRescan(BluetoothMapContentObserver observer) {
+        ArrayList<String> incremental = observer.updateMsgListsSmsMms(false);
+        assertNotNull("incremental update fell back to a full rescan", incremental);
+        assertEquals(observer.updateMsgListsSmsMms(true), incremental);
+    }
+
+    public void testIncrementalSmsMmsChanges() throws RemoteException {
+        mContext = this.getContext();
+        mResolver = mContext.getContentResolver();
+        BluetoothMapContentObserver observer = new BluetoothMapContentObserver(mContext,
+                null, new MockMasInstance(MAS_ID, REMOTE_FEATURE_MASK), null, true);
+        assertNotNull(observer.updateMsgListsSmsMms(true));
+
+        ArrayList<Uri> added = new ArrayList<Uri>();
+        try {
+            /* New messages, unread and settled ones */
+            Uri unread = addSms(Sms.MESSAGE_TYPE_INBOX, 0);
+            added.add(unread);
+            added.add(addSms(Sms.MESSAGE_TYPE_SENT, 1));
+            Uri draft = addSms(Sms.MESSAGE_TYPE_DRAFT, 1);
+            added.add(draft);
+            assertIncrementalMatchesRescan(observer);
+
+            /* Unsettled messages that are read, moved and deleted */
+            setColumn(unread, Sms.READ, 1);
+            setColumn(draft, Sms.TYPE, Sms.MESSAGE_TYPE_SENT);
+            assertIncrementalMatchesRescan(observer);
+            assertEquals(1, mResolver.delete(draft, null, null));
+            added.remove(draft);
+            assertIncrementalMatchesRescan(observer);
+
+            /* An MMS notification is not tracked until it is retrieved, and
+             * messages arriving after it are still found */
+            ContentValues item = new ContentValues();
+            item.put(Mms.MESSAGE_BOX, Mms.MESSAGE_BOX_INBOX);
+            item.put(Mms.MESSAGE_TYPE, PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND);
+            item.put(Mms.DATE, System.currentTimeMillis() / 1000);
+            item.put(Mms.READ, 0);
+            item.put(Mms.THREAD_ID, Threads.getOrCreateThreadId(mContext, "1234"));
+            Uri notification = mResolver.insert(Mms.Inbox.CONTENT_URI, item);
+            assertNotNull(notification);
+            added.add(notification);
+            assertIncrementalMatchesRescan(observer);
+            added.add(addSms(Sms.MESSAGE_TYPE_INBOX, 1));
+            assertIncrementalMatchesRescan(observer);
+            setColumn(notification, Mms.MESSAGE_TYPE, PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF);
+            ArrayList<String> state = observer.updateMsgListsSmsMms(false);
+            assertNotNull(state);
+            assertTrue(state.toString(), state.get(state.size() - 1).startsWith(
+                    "mms " + ContentUris.parseId(notification) + " "));
+            assertEquals(observer.updateMsgListsSmsMms(true), state);
+        } finally {
+            for (Uri uri : added) {
+                mResolver.delete(uri, null, null);
+            }
+        }
+    }
+
+    private BluetoothMapMessageListing smsMmsListing(BluetoothMapContent content,
+            BluetoothMapFolderElement folder, int filterMessageType, int count, int offset) {
+        BluetoothMapAppParams appParams = new BluetoothMapAppParams();
+        appParams.setFilterMessageType(filterMessageType);
+        appParams.setMaxListCount(count);
+        appParams.setStartOffset(offset);
+        return content.msgListing(folder, appParams);
+    }
+
+    private static ArrayList<String> getHandles(List<BluetoothMapMessageListingElement> list) {
+        ArrayList<String> handles = new ArrayList<String>(list.size());
+        for (BluetoothMapMessageListingElement element : list) {
+            handles.add(element.getType() + ":" + element.getHandle());
+        }
+        return handles;
+    }
+
+    /* Pages of a mixed SMS/MMS listing must match sorting the complete SMS and
+     * MMS listings by date and cutting out the page */
+    public void testMixedSmsMmsListingPages() throws UnsupportedEncodingException {
+        mContext = this.getContext();
+        mResolver = mContext.getContentResolver();
+        BluetoothMapFolderElement inbox = new BluetoothMapFolderElement("root", null)
+                .addFolder("telecom").addFolder("msg").addSmsMmsFolder("inbox");
+        BluetoothMapContent content = new BluetoothMapContent(mContext, null,
+                new MockMasInstance(MAS_ID, REMOTE_FEATURE_MASK));
+        final int noEmailIm = BluetoothMapAppParams.FILTER_NO_EMAIL
+                | BluetoothMapAppParams.FILTER_NO_IM;
+
+        ArrayList<Uri> added = new ArrayList<Uri>();
+        try {
+            /* Interleaved dates, with one SMS and one MMS of the same date */
+            long date = (System.currentTimeMillis() / 1000) * 1000;
+            long threadId = Threads.getOrCreateThreadId(mContext, "1234");
+            for (int i = 0; i < 6; i++) {
+                ContentValues sms = new ContentValues();
+                sms.put(Sms.ADDRESS, "1234");
+                sms.put(Sms.BODY, "paging test sms " + i);
+                sms.put(Sms.DATE, date + i * 2000);
+                sms.put(Sms.TYPE, Sms.MESSAGE_TYPE_INBOX);
+                sms.put(Sms.READ, 1);
+                added.add(mResolver.insert(Sms.CONTENT_URI, sms));
+
+                ContentValues mms = new ContentValues();
+                mms.put(Mms.MESSAGE_BOX, Mms.MESSAGE_BOX_INBOX);
+                mms.put(Mms.MESSAGE_TYPE, PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF);
+                mms.put(Mms.SUBJECT, "paging test mms " + i);
+                mms.put(Mms.DATE, (date + i * 2000 + (i == 3 ? 0 : 1000)) / 1000);
+                mms.put(Mms.READ, 1);
+                mms.put(Mms.THREAD_ID, threadId);
+                added.add(mResolver.insert(Mms.Inbox.CONTENT_URI, mms));
+            }
+            assertFalse(added.contains(null));
+
+            BluetoothMapMessageListing expected = smsMmsListing(content, inbox,
+                    noEmailIm | BluetoothMapAppParams.FILTER_NO_MMS, 1024, 0);
+            BluetoothMapMessageListing mmsOnly = smsMmsListing(content, inbox,
+                    noEmailIm | BluetoothMapAppParams.FILTER_NO_SMS_GSM
+                    | BluetoothMapAppParams.FILTER_NO_SMS_CDMA, 1024, 0);
+            expected.getList().addAll(mmsOnly.getList());
+            expected.sort();
+            ArrayList<String> expectedHandles = getHandles(expected.getList());
+            assertTrue(expectedHandles.size() >= 12);
+
+            final int count = 5;
+            for (int offset = 0; offset < expectedHandles.size() + count; offset += count) {
+                BluetoothMapMessageListing page =
+                        smsMmsListing(content, inbox, noEmailIm, count, offset);
+                int end = Math.min(expectedHandles.size(), offset + count);
+                assertEquals("page at " + offset,
+                        expectedHandles.subList(Math.min(offset, end), end),
+                        getHandles(page.getList()));
+                assertEquals(content.msgListingHasUnread(inbox, new BluetoothMapAppParams()),
+                        page.hasUnread());
+            }
+        } finally {
+            for (Uri uri : added) {
+                if (uri != null) {
+                    mResolver.delete(uri, null, null);
+                }
+            }
+        }
+    }
+
+    private BluetoothMapMessageListing smsListing(BluetoothMapContent content,
+            BluetoothMapFolderElement folder, int readStatus, int count, int offset) {
+        BluetoothMapAppParams appParams = new BluetoothMapAppParams();
+        appParams.setFilterMessageType(BluetoothMapAppParams.FILTER_NO_EMAIL
+                | BluetoothMapAppParams.FILTER_NO_MMS | BluetoothMapAppParams.FILTER_NO_IM);
+        appParams.setFilterReadStatus(readStatus);
+        appParams.setMaxListCount(count);
+        appParams.setStartOffset(offset);
+        return content.msgListing(folder, appParams);
+    }
+
+    /* The page of content must match the one built without the listing cache */
+    private void assertSmsListingPage(BluetoothMapContent content, BluetoothMapContent uncached,
+            BluetoothMapFolderElement folder, int readStatus, int count, int offset) {
+        assertEquals("page at " + offset,
+                getHandles(smsListing(uncached, folder, readStatus, count, offset).getList()),
+                getHandles(smsListing(content, folder, readStatus, count, offset).getList()));
+    }
+
+    /* Waits until the observer has handled every change notification and the
+     * folder version counter has moved past version */
+    private static void waitForFolderVersion(BluetoothMapMasInstance masInstance, long version) {
+        long deadline = SystemClock.uptimeMillis() + 5000;
+        while (!masInstance.isFolderVersionCounterTracked()
+                || masInstance.getFolderVersionCounter() <= version) {
+            assertTrue("folder version not updated", SystemClock.uptimeMillis() < deadline);
+            SystemClock.sleep(50);
+        }
+    }
+
+    public void testSmsListingCache() throws RemoteException {
+        mContext = this.getContext();
+        mResolver = mContext.getContentResolver();
+        BluetoothMapFolderElement inbox = new BluetoothMapFolderElement("root", null)
+                .addFolder("telecom").addFolder("msg").addSmsMmsFolder("inbox");
+        MockMasInstance masInstance = new MockMasInstance(MAS_ID, REMOTE_FEATURE_MASK);
+        BluetoothMapContentObserver observer = new BluetoothMapContentObserver(mContext,
+                null, masInstance, null, true);
+        masInstance.setContentObserver(observer);
+        BluetoothMapContent content = new BluetoothMapContent(mContext, null, masInstance);
+        BluetoothMapContent uncached = new BluetoothMapContent(mContext, null,
+                new MockMasInstance(MAS_ID, REMOTE_FEATURE_MASK));
+        final int unreadOnly = 0x01;
+        final int count = 3;
+
+        ArrayList<Uri> added = new ArrayList<Uri>();
+        try {
+            /* Newer than the messages on the device, so they fill the first pages */
+            long date = System.currentTimeMillis() + 60000;
+            for (int i = 0; i < 16; i++) {
+                ContentValues sms = new ContentValues();
+                sms.put(Sms.ADDRESS, "1234");
+                sms.put(Sms.BODY, "listing cache test sms " + i);
+                sms.put(Sms.DATE, date - i * 1000);
+                sms.put(Sms.TYPE, Sms.MESSAGE_TYPE_INBOX);
+                sms.put(Sms.READ, 0);
+                added.add(mResolver.insert(Sms.CONTENT_URI, sms));
+            }
+            assertFalse(added.contains(null));
+            observer.registerObserver();
+            waitForFolderVersion(masInstance, -1);
+
+            /* The first page caches the handles of four pages, the next three are
+             * served from them */
+            assertSmsListingPage(content, uncached, inbox, 0, count, 0);
+            int hits = content.getListingCacheHits();
+            for (int offset = count; offset < count * 4; offset += count) {
+                assertSmsListingPage(content, uncached, inbox, 0, count, offset);
+                assertEquals(++hits, content.getListingCacheHits());
+            }
+            /* Past the cached handles the entry is built again, from that page on */
+            assertSmsListingPage(content, uncached, inbox, 0, count, count * 4);
+            assertEquals(hits, content.getListingCacheHits());
+            assertSmsListingPage(content, uncached, inbox, 0, count, count * 5);
+            assertEquals(++hits, content.getListingCacheHits());
+
+            /* A deleted message leaves the page, also before the observer counted it */
+            long version = masInstance.getFolderVersionCounter();
+            BluetoothMapMessageListingElement deleted =
+                    smsListing(content, inbox, 0, count, count * 5).getList().get(0);
+            String deletedHandle = deleted.getType() + ":" + deleted.getHandle();
+            assertEquals(1, mResolver.delete(
+                    ContentUris.withAppendedId(Sms.CONTENT_URI, deleted.getHandle()), null, null));
+            assertFalse(getHandles(smsListing(content, inbox, 0, count, count * 5).getList())
+                    .contains(deletedHandle));
+            waitForFolderVersion(masInstance, version);
+            assertSmsListingPage(content, uncached, inbox, 0, count, count * 5);
+
+            /* A message marked read by the MCE leaves the pages of unread messages. The
+             * observer does not see this change, the write itself is counted. */
+            assertSmsListingPage(content, uncached, inbox, unreadOnly, count, 0);
+            hits = content.getListingCacheHits();
+            BluetoothMapMessageListingElement read =
+                    smsListing(content, inbox, unreadOnly, count, count).getList().get(0);
+            assertEquals(++hits, content.getListingCacheHits());
+            String readHandle = read.getType() + ":" + read.getHandle();
+            version = masInstance.getFolderVersionCounter();
+            assertTrue(observer.setMessageStatusRead(read.getHandle(), read.getType(), null,
+                    BluetoothMapAppParams.STATUS_VALUE_YES));
+            assertTrue(masInstance.getFolderVersionCounter() > version);
+            assertFalse(getHandles(smsListing(content, inbox, unreadOnly, count, count)
+                    .getList()).contains(readHandle));
+            assertSmsListingPage(content, uncached, inbox, unreadOnly, count, count);
+        } finally {
+            observer.unregisterObserver();
+            for (Uri uri : added) {
+                if (uri != null) {
+                    mResolver.delete(uri, null, null);
+                }
+            }
+        }
+    }
+
     /*
      * MMS content test cases
      */